@@ -0,0 +1,229 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+// Envoi groupé (ENVOYER_LOT) : le client enchaîne nom, taille et contenu de chaque fichier, un nom
+// vide terminant le lot. Les petits fichiers sont rangés à la suite dans un objet partagé
+// « lot-<id> » des sous-serveurs, chacun ayant son manifeste qui désigne sa plage de l'objet :
+// l'objet n'est supprimé qu'avec le dernier de ses fichiers. Les autres passent par FileStorage
+// comme pour ENVOYER.
+// Un groupe plein part vers les sous-serveurs pendant que la suite du lot est reçue. Chaque fichier
+// est acquitté (nom, puis « OK » ou l'erreur) dès que son manifeste est enregistré, dans l'ordre où
+// les écritures se terminent ; une chaîne vide suit le dernier acquittement.
+public class BatchUploader {
+    private static final long FILE_MAX_BYTES = ServerConfigLoader.getBatchFileMaxBytes();
+    private static final int PACK_BYTES = ServerConfigLoader.getBatchPackBytes();
+    // Groupes en mémoire par lot : un sous-serveur plus lent que le client finit par bloquer la réception.
+    private static final int MAX_PENDING_PACKS = 4;
+
+    private static final ExecutorService WRITERS = ClientExecutors.newWorkerPool("lot-writer");
+    private static final Metrics.Counter PACKED_FILES = Metrics.counter("fichiers_groupes_total",
+            "Petits fichiers rangés dans un objet partagé");
+
+    // Renvoie le nombre d'octets de contenu reçus. Comme pour ENVOYER, une erreur sur un fichier
+    // envoyé seul interrompt la connexion ; les fichiers déjà reçus en entier sont tout de même enregistrés.
+    public static long receive(DataInputStream dis, DataOutputStream dos) throws IOException {
+        Semaphore slots = new Semaphore(MAX_PENDING_PACKS);
+        List<Future<?>> writes = new ArrayList<>();
+        Pack pack = null;
+        long received = 0;
+        int files = 0;
+        try {
+            String fileName;
+            while (!(fileName = dis.readUTF()).isEmpty()) {
+                long fileSize = dis.readLong();
+                if (fileSize > FILE_MAX_BYTES || fileSize > PACK_BYTES) {
+                    FileStorage.store(dis, fileName, fileSize);
+                    acknowledge(dos, List.of(fileName), "OK");
+                } else {
+                    if (pack != null && !pack.fits(fileSize)) {
+                        writes.add(submit(pack, slots, dos));
+                        pack = null;
+                    }
+                    if (pack == null) {
+                        acquire(slots);
+                        pack = new Pack();
+                    }
+                    pack.add(dis, fileName, (int) fileSize);
+                }
+                received += fileSize;
+                files++;
+            }
+            if (pack != null) {
+                writes.add(submit(pack, slots, dos));
+                pack = null;
+            }
+        } finally {
+            if (pack != null) {
+                BufferPool.give(pack.data);
+            }
+            await(writes);
+        }
+        synchronized (dos) {
+            dos.writeUTF("");
+            dos.flush();
+        }
+        Log.info("Lot reçu : " + files + " fichiers, " + writes.size() + " objets partagés");
+        return received;
+    }
+
+    private static void acquire(Semaphore slots) throws IOException {
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Envoi groupé interrompu");
+        }
+    }
+
+    private static Future<?> submit(Pack pack, Semaphore slots, DataOutputStream dos) {
+        return WRITERS.submit(() -> {
+            try {
+                write(pack, dos);
+            } finally {
+                slots.release();
+            }
+        });
+    }
+
+    private static void await(List<Future<?>> writes) throws IOException {
+        for (Future<?> write : writes) {
+            try {
+                write.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Envoi groupé interrompu");
+            } catch (ExecutionException e) {
+                Log.error("Erreur lors d'un envoi groupé : " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    // Écrit le groupe sur ses répliques puis enregistre d'un coup les manifestes de ses fichiers.
+    private static void write(Pack pack, DataOutputStream dos) {
+        String object = "lot-" + UUID.randomUUID();
+        List<ServerConfigLoader.SubServerInfo> targets = PlacementRing.current().placementFor(object);
+        List<String> addresses = new ArrayList<>();
+        for (ServerConfigLoader.SubServerInfo target : targets) {
+            addresses.add(target.address());
+        }
+        List<FileManifest.Fragment> pinned = List.of(new FileManifest.Fragment(object, 0, pack.length, addresses));
+        MetadataStore.pin(object);
+        String result = "OK";
+        try {
+            List<String> nodes = store(object, pack, targets);
+            long now = System.currentTimeMillis();
+            List<FileManifest> manifests = new ArrayList<>(pack.members.size());
+            for (Member member : pack.members) {
+                manifests.add(new FileManifest(member.name, member.size, FileManifest.SPLIT, now, member.checksum,
+                        List.of(new FileManifest.Fragment(object, member.offset, member.size, nodes)), 0, 0, 0));
+            }
+            FileStorage.deleteObjects(MetadataStore.putAll(manifests));
+            for (Member member : pack.members) {
+                HotFileCache.invalidate(member.name);
+            }
+            PACKED_FILES.add(pack.members.size());
+        } catch (IOException e) {
+            result = "Erreur lors de l'envoi : " + e.getMessage();
+            Log.error("Échec de l'envoi groupé de " + pack.members.size() + " fichiers : " + e.getMessage());
+        } finally {
+            BufferPool.give(pack.data);
+            FileStorage.deleteObjects(MetadataStore.unpin(pinned));
+        }
+
+        List<String> names = new ArrayList<>(pack.members.size());
+        for (Member member : pack.members) {
+            names.add(member.name);
+        }
+        try {
+            acknowledge(dos, names, result);
+        } catch (IOException e) {
+            Log.error("Acquittements d'un envoi groupé non transmis : " + e.getMessage());
+        }
+    }
+
+    // Le groupe part sur toutes les répliques avant d'attendre leurs confirmations. Renvoie les
+    // répliques écrites ; une réplique en échec est laissée au rééquilibrage, tant qu'il en reste une.
+    private static List<String> store(String object, Pack pack, List<ServerConfigLoader.SubServerInfo> targets)
+            throws IOException {
+        List<SubServerConnection.Exchange> stores = new ArrayList<>();
+        List<ServerConfigLoader.SubServerInfo> started = new ArrayList<>();
+        IOException failure = null;
+        for (ServerConfigLoader.SubServerInfo target : targets) {
+            SubServerConnection.Exchange store = null;
+            try {
+                store = SubServerPool.acquire(target).store(object);
+                store.write(pack.data, 0, pack.length);
+                stores.add(store);
+                started.add(target);
+            } catch (IOException e) {
+                if (store != null) {
+                    store.abort();
+                }
+                failure = replicaFailure(object, target, e);
+            }
+        }
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < stores.size(); i++) {
+            try {
+                stores.get(i).finish();
+                nodes.add(started.get(i).address());
+            } catch (IOException e) {
+                failure = replicaFailure(object, started.get(i), e);
+            }
+        }
+        if (nodes.isEmpty()) {
+            throw failure != null ? failure : new IOException("Aucun sous-serveur disponible pour " + object);
+        }
+        return nodes;
+    }
+
+    private static IOException replicaFailure(String object, ServerConfigLoader.SubServerInfo target, IOException e) {
+        Metrics.fragmentFailure("ecriture", target.address());
+        Log.error("Réplique de " + object + " non écrite sur " + target.address() + " : " + e.getMessage());
+        return e;
+    }
+
+    private static void acknowledge(DataOutputStream dos, List<String> names, String result) throws IOException {
+        synchronized (dos) {
+            for (String name : names) {
+                dos.writeUTF(name);
+                dos.writeUTF(result);
+            }
+            dos.flush();
+        }
+    }
+
+    private static class Pack {
+        final byte[] data = BufferPool.take(PACK_BYTES);
+        final List<Member> members = new ArrayList<>();
+        int length;
+
+        boolean fits(long size) {
+            return length + size <= PACK_BYTES;
+        }
+
+        void add(DataInputStream dis, String fileName, int size) throws IOException {
+            dis.readFully(data, length, size);
+            CRC32C checksum = new CRC32C();
+            checksum.update(data, length, size);
+            members.add(new Member(fileName, length, size, checksum.getValue()));
+            length += size;
+        }
+    }
+
+    private static class Member {
+        final String name;
+        final int offset;
+        final int size;
+        final long checksum;
+
+        Member(String name, int offset, int size, long checksum) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+}
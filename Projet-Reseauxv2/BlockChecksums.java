@@ -0,0 +1,179 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+// Sommes de contrôle CRC32C par bloc d'un objet d'un sous-serveur, rangées à côté de lui dans
+// « objet.crc » : magique, taille de bloc, taille de l'objet puis un int par bloc. Un objet rangé
+// dans un segment (SegmentStore) porte les mêmes int à la suite de ses données.
+// Elles sont calculées au fil de la réception, sans relire le fichier, et vérifiées à chaque lecture.
+public class BlockChecksums {
+    public static final int BLOCK_SIZE = 64 * 1024;
+    public static final String SUFFIX = ".crc";
+    private static final int MAGIC = 0x42435243;
+    private static final int HEADER_SIZE = 16;
+
+    public final long size;
+    private final int[] sums;
+
+    private BlockChecksums(long size, int[] sums) {
+        this.size = size;
+        this.sums = sums;
+    }
+
+    public static File sidecar(File object) {
+        return new File(object.getPath() + SUFFIX);
+    }
+
+    // Sommes de l'objet, ou null s'il a été stocké avant leur introduction.
+    public static BlockChecksums load(File object) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(sidecar(object).toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != BLOCK_SIZE) {
+            throw new CorruptionException("Sommes de contrôle illisibles : " + object.getName());
+        }
+        long size = buffer.getLong();
+        if (size < 0 || buffer.remaining() != 4L * blockCount(size)) {
+            throw new CorruptionException("Sommes de contrôle illisibles : " + object.getName());
+        }
+        int[] sums = new int[blockCount(size)];
+        buffer.asIntBuffer().get(sums);
+        return new BlockChecksums(size, sums);
+    }
+
+    public void write(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 * sums.length);
+        buffer.putInt(MAGIC).putInt(BLOCK_SIZE).putLong(size);
+        buffer.asIntBuffer().put(sums);
+        Files.write(file.toPath(), buffer.array());
+    }
+
+    // Forme rangée dans un enregistrement de segment : les int seuls, la taille étant dans l'en-tête.
+    public static BlockChecksums decode(ByteBuffer encoded, long size) {
+        int[] sums = new int[blockCount(size)];
+        encoded.duplicate().asIntBuffer().get(sums);
+        return new BlockChecksums(size, sums);
+    }
+
+    public void encode(ByteBuffer target) {
+        target.asIntBuffer().put(sums);
+        target.position(target.position() + 4 * sums.length);
+    }
+
+    public static int encodedLength(long size) {
+        return 4 * blockCount(size);
+    }
+
+    private static int blockCount(long size) {
+        return (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    // Vérifie sur place, sans copie, les blocs de l'objet qui couvrent [start, end) ; data donne
+    // l'objet entier à partir de sa position 0 (tranche d'un segment projeté en mémoire).
+    public void verify(ByteBuffer data, long start, long end, String name) throws CorruptionException {
+        if (data.limit() != size) {
+            throw new CorruptionException("Taille incorrecte pour " + name + " : " + data.limit()
+                    + " octets au lieu de " + size);
+        }
+        CRC32C crc = new CRC32C();
+        ByteBuffer view = data.duplicate();
+        for (int block = (int) (start / BLOCK_SIZE); (long) block * BLOCK_SIZE < end; block++) {
+            int from = block * BLOCK_SIZE;
+            view.limit((int) Math.min(size, from + (long) BLOCK_SIZE)).position(from);
+            crc.reset();
+            crc.update(view);
+            if ((int) crc.getValue() != sums[block]) {
+                throw new CorruptionException("Bloc " + block + " corrompu dans " + name);
+            }
+        }
+    }
+
+    // Lit dans buffer les blocs entiers qui couvrent [start, end) et les vérifie. Au retour, le
+    // tampon ne donne plus que les octets de [start, end). Sa capacité doit dépasser end - start
+    // de deux blocs.
+    public void read(FileChannel file, long start, long end, ByteBuffer buffer, String name) throws IOException {
+        if (file.size() != size) {
+            throw new CorruptionException("Taille incorrecte pour " + name + " : " + file.size()
+                    + " octets au lieu de " + size);
+        }
+        long first = start / BLOCK_SIZE;
+        long blockStart = first * BLOCK_SIZE;
+        long blockEnd = Math.min(size, (end + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE);
+        buffer.clear();
+        buffer.limit((int) (blockEnd - blockStart));
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, blockStart + buffer.position()) < 0) {
+                throw new CorruptionException("Fragment tronqué : " + name);
+            }
+        }
+        CRC32C crc = new CRC32C();
+        for (int offset = 0; offset < buffer.limit(); offset += BLOCK_SIZE) {
+            buffer.limit(Math.min((int) (blockEnd - blockStart), offset + BLOCK_SIZE)).position(offset);
+            crc.reset();
+            crc.update(buffer);
+            int block = (int) (first + offset / BLOCK_SIZE);
+            if ((int) crc.getValue() != sums[block]) {
+                throw new CorruptionException("Bloc " + block + " corrompu dans " + name);
+            }
+            buffer.limit((int) (blockEnd - blockStart));
+        }
+        buffer.limit((int) (end - blockStart)).position((int) (start - blockStart));
+    }
+
+    // Accumule les sommes pendant l'écriture d'un objet ; les blocs peuvent arriver découpés
+    // n'importe comment.
+    public static class Builder {
+        private final CRC32C block = new CRC32C();
+        private int inBlock;
+        private long size;
+        private int[] sums = new int[16];
+        private int count;
+
+        // Consomme les octets restants du tampon sans déplacer sa position.
+        public void update(ByteBuffer data) {
+            ByteBuffer view = data.duplicate();
+            int limit = view.limit();
+            while (view.position() < limit) {
+                int length = Math.min(limit - view.position(), BLOCK_SIZE - inBlock);
+                view.limit(view.position() + length);
+                block.update(view);
+                inBlock += length;
+                size += length;
+                if (inBlock == BLOCK_SIZE) {
+                    closeBlock();
+                }
+            }
+        }
+
+        public BlockChecksums finish() {
+            if (inBlock > 0) {
+                closeBlock();
+            }
+            return new BlockChecksums(size, Arrays.copyOf(sums, count));
+        }
+
+        private void closeBlock() {
+            if (count == sums.length) {
+                sums = Arrays.copyOf(sums, count * 2);
+            }
+            sums[count++] = (int) block.getValue();
+            block.reset();
+            inBlock = 0;
+        }
+    }
+
+    public static class CorruptionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CorruptionException(String message) {
+            super(message);
+        }
+    }
+}
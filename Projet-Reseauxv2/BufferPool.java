@@ -0,0 +1,59 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Réserve de tableaux d'octets réutilisables pour les boucles de copie, par classes de tailles
+// puissances de deux. take() rend un tableau de la classe qui couvre la taille demandée (plus
+// grand qu'elle si elle n'est pas une puissance de deux) ; give() le remet en réserve, dans la
+// limite de buffer_pool_mb. Un tableau jamais rendu est simplement laissé au ramasse-miettes.
+public class BufferPool {
+    private static final int MIN_CLASS = 10;
+    private static final int MAX_CLASS = 24;
+    private static final long CAPACITY = ServerConfigLoader.getBufferPoolBytes();
+
+    // Indexée par classe de taille ; les classes sous MIN_CLASS restent vides (null).
+    private static final List<ConcurrentLinkedQueue<byte[]>> CLASSES = new ArrayList<>(MAX_CLASS + 1);
+    private static final AtomicLong POOLED = new AtomicLong();
+    private static final Metrics.Counter ALLOCATIONS = Metrics.counter("tampons_alloues_total",
+            "Tampons de copie alloués faute d'un tampon libre en réserve");
+
+    static {
+        for (int i = 0; i <= MAX_CLASS; i++) {
+            CLASSES.add(i < MIN_CLASS ? null : new ConcurrentLinkedQueue<>());
+        }
+        Metrics.gauge("tampons_reserve_octets", "Octets des tampons de copie libres en réserve", POOLED::get);
+    }
+
+    public static byte[] take(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass > MAX_CLASS) {
+            ALLOCATIONS.increment();
+            return new byte[size];
+        }
+        byte[] buffer = CLASSES.get(sizeClass).poll();
+        if (buffer != null) {
+            POOLED.addAndGet(-buffer.length);
+            return buffer;
+        }
+        ALLOCATIONS.increment();
+        return new byte[1 << sizeClass];
+    }
+
+    // Seuls les tableaux d'une taille de classe sont repris ; l'appelant ne doit plus y toucher.
+    public static void give(byte[] buffer) {
+        int length = buffer.length;
+        if (Integer.bitCount(length) != 1 || length < (1 << MIN_CLASS) || length > (1 << MAX_CLASS)) {
+            return;
+        }
+        if (POOLED.addAndGet(length) > CAPACITY) {
+            POOLED.addAndGet(-length);
+            return;
+        }
+        CLASSES.get(Integer.numberOfTrailingZeros(length)).add(buffer);
+    }
+
+    private static int sizeClass(int size) {
+        return Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+    }
+}
@@ -0,0 +1,197 @@
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Envoi en mode cdc : le flux du client est découpé par ContentChunker et chaque bloc est nommé par
+// son empreinte SHA-256. Seuls les blocs encore inconnus partent vers les sous-serveurs ; les autres
+// sont simplement référencés par le nouveau manifeste.
+public class ChunkUploader {
+    private static final int MAX_IN_FLIGHT = 32;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ExecutorService WRITERS = ClientExecutors.newWorkerPool("chunk-writer");
+
+    // Les objets référencés sont ajoutés à pinned au fur et à mesure, pour que l'appelant les
+    // libère une fois le manifeste enregistré (ou l'envoi abandonné).
+    public static List<FileManifest.Fragment> upload(DataInputStream dis, String fileName, long fileSize,
+                                                     PlacementRing ring, List<FileManifest.Fragment> pinned)
+            throws IOException {
+        MessageDigest digest = sha256();
+        List<FileManifest.Fragment> chunks = new ArrayList<>();
+        // Répliques effectivement écrites (ou déjà existantes) de chaque objet du fichier.
+        Map<String, List<String>> locations = new ConcurrentHashMap<>();
+        Map<String, Byte> codecs = new HashMap<>();
+        PendingWrites writes = new PendingWrites();
+        long[] stats = new long[2];
+
+        try {
+            ContentChunker.fromConfiguration().split(dis, fileSize, (data, length) -> {
+                String object = "chunk-" + hex(digest.digest(data));
+                List<String> targets = new ArrayList<>();
+                for (ServerConfigLoader.SubServerInfo node : ring.placementFor(object)) {
+                    targets.add(node.address());
+                }
+                if (codecs.containsKey(object)) {
+                    chunks.add(new FileManifest.Fragment(object, 0, length, targets, codecs.get(object)));
+                    return;
+                }
+                List<String> existing = MetadataStore.pin(object);
+                if (existing != null) {
+                    // Bloc déjà stocké : il garde le codec avec lequel il a été écrit.
+                    byte codec = MetadataStore.codec(object);
+                    chunks.add(new FileManifest.Fragment(object, 0, length, targets, codec));
+                    pinned.add(new FileManifest.Fragment(object, 0, length, existing, codec));
+                    codecs.put(object, codec);
+                    locations.put(object, existing);
+                    return;
+                }
+                FragmentCodec.Encoder encoder = FragmentCodec.encoder();
+                byte[] encoded = encoder.encode(data, 0, length);
+                byte[] trailer = encoder.finish();
+                if (trailer.length > 0) {
+                    encoded = Arrays.copyOf(encoded, encoded.length + trailer.length);
+                    System.arraycopy(trailer, 0, encoded, encoded.length - trailer.length, trailer.length);
+                }
+                byte[] stored = encoded;
+                FileManifest.Fragment chunk = new FileManifest.Fragment(object, 0, length, targets, encoder.codec());
+                chunks.add(chunk);
+                codecs.put(object, encoder.codec());
+                pinned.add(chunk);
+                List<String> written = Collections.synchronizedList(new ArrayList<>());
+                locations.put(object, written);
+                stats[0]++;
+                stats[1] += stored.length;
+                for (String target : targets) {
+                    writes.submit(fileName, () -> {
+                        try {
+                            store(ServerConfigLoader.SubServerInfo.parse(target), object, stored, stored.length);
+                            written.add(target);
+                        } catch (IOException e) {
+                            if (!writes.abandoned()) {
+                                Metrics.fragmentFailure("ecriture", target);
+                                Log.error("Réplique de " + object + " non écrite sur " + target + " : "
+                                        + e.getMessage());
+                            }
+                        }
+                    });
+                }
+            });
+
+            writes.await(fileName);
+        } catch (IOException | RuntimeException e) {
+            // Les objets écrits seront libérés et supprimés par l'appelant : aucune écriture ne doit
+            // plus arriver aux sous-serveurs après ce retour.
+            writes.abandonAndAwait();
+            throw e;
+        }
+        List<FileManifest.Fragment> fragments = new ArrayList<>(chunks.size());
+        for (FileManifest.Fragment chunk : chunks) {
+            List<String> nodes = locations.get(chunk.object);
+            if (nodes.isEmpty()) {
+                throw new IOException("Échec de l'envoi d'un bloc de " + fileName + " : aucune réplique de "
+                        + chunk.object + " n'a pu être écrite");
+            }
+            fragments.add(chunk.withNodes(nodes));
+        }
+        Log.info("Fichier " + fileName + " : " + fragments.size() + " blocs, " + stats[0]
+                + " nouveaux (" + stats[1] + " octets envoyés sur " + fileSize + ")");
+        return fragments;
+    }
+
+    private static void store(ServerConfigLoader.SubServerInfo target, String object, byte[] data, int length)
+            throws IOException {
+        SubServerConnection.Exchange store = SubServerPool.acquire(target).store(object);
+        try {
+            store.write(data, 0, length);
+            store.finish();
+        } catch (IOException e) {
+            store.abort();
+            throw e;
+        }
+    }
+
+    private static void acquire(Semaphore semaphore, String fileName, int permits) throws InterruptedIOException {
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Envoi interrompu : " + fileName);
+        }
+    }
+
+    // Écritures asynchrones d'un envoi, au plus MAX_IN_FLIGHT à la fois. En cas d'abandon, celles
+    // qui n'ont pas commencé ne partent pas et celles en cours sont interrompues.
+    private static final class PendingWrites {
+        private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        private final Set<Thread> running = new HashSet<>();
+        private boolean abandoned;
+
+        void submit(String fileName, Runnable write) throws InterruptedIOException {
+            acquire(inFlight, fileName, 1);
+            WRITERS.execute(() -> {
+                try {
+                    if (begin()) {
+                        write.run();
+                    }
+                } finally {
+                    end();
+                    inFlight.release();
+                }
+            });
+        }
+
+        private synchronized boolean begin() {
+            if (abandoned) {
+                return false;
+            }
+            running.add(Thread.currentThread());
+            return true;
+        }
+
+        // L'interruption éventuelle d'abandonAndAwait() ne doit pas toucher la tâche suivante du thread.
+        private synchronized void end() {
+            if (running.remove(Thread.currentThread())) {
+                Thread.interrupted();
+            }
+        }
+
+        synchronized boolean abandoned() {
+            return abandoned;
+        }
+
+        void await(String fileName) throws InterruptedIOException {
+            acquire(inFlight, fileName, MAX_IN_FLIGHT);
+            inFlight.release(MAX_IN_FLIGHT);
+        }
+
+        void abandonAndAwait() {
+            synchronized (this) {
+                abandoned = true;
+                for (Thread thread : running) {
+                    thread.interrupt();
+                }
+            }
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+            inFlight.release(MAX_IN_FLIGHT);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponible", e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -3,12 +3,20 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.zip.CRC32C;
 
 public class Client {
     private static final String SERVER_HOST = ServerConfigLoader.getMainServerHost();
     private static final int SERVER_PORT = ServerConfigLoader.getMainServerPort();
-    private static final int CHUNK_SIZE = ServerConfigLoader.getChunkSize();
+    // Les tampons de copie suivent le débit mesuré vers le serveur (voir LinkTuning).
+    private static final String SERVER_LINK = SERVER_HOST + ":" + SERVER_PORT;
+
+    private static Socket connection;
+    private static DataInputStream connectionIn;
+    private static DataOutputStream connectionOut;
 
     public static void main(String[] args) {
         SwingUtilities.invokeLater(Client::createAndShowGUI);
@@ -38,6 +46,22 @@ public class Client {
         buttonPanel.add(listFilesButton);
         buttonPanel.add(deleteFileButton);
 
+        // Deuxième rangée : les mêmes opérations sur un dossier entier (commandes groupées)
+        JPanel folderPanel = new JPanel();
+        folderPanel.setLayout(new FlowLayout(FlowLayout.CENTER, 20, 10));
+
+        JButton sendFolderButton = new JButton("Envoyer un dossier");
+        JButton receiveFolderButton = new JButton("Télécharger un dossier");
+        JButton deleteFolderButton = new JButton("Supprimer un dossier");
+
+        folderPanel.add(sendFolderButton);
+        folderPanel.add(receiveFolderButton);
+        folderPanel.add(deleteFolderButton);
+
+        JPanel buttonsPanel = new JPanel(new GridLayout(2, 1));
+        buttonsPanel.add(buttonPanel);
+        buttonsPanel.add(folderPanel);
+
         // Zone de texte pour les logs
         JTextArea logArea = new JTextArea();
         logArea.setEditable(false);
@@ -94,34 +118,163 @@ public class Client {
             }
         });
 
+        sendFolderButton.addActionListener(e -> {
+            JFileChooser folderChooser = new JFileChooser();
+            folderChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (folderChooser.showOpenDialog(frame) == JFileChooser.APPROVE_OPTION
+                    && folderChooser.getSelectedFile() != null) {
+                try {
+                    FolderTransfer.upload(folderChooser.getSelectedFile(), message -> logArea.append(message + "\n"));
+                } catch (IOException ex) {
+                    logArea.append("Erreur lors de l'envoi du dossier : " + ex.getMessage() + "\n");
+                }
+            }
+        });
+
+        receiveFolderButton.addActionListener(e -> {
+            String folder = JOptionPane.showInputDialog(frame, "Entrez le nom du dossier à télécharger :");
+            if (folder != null && !folder.isEmpty()) {
+                try {
+                    FolderTransfer.download(folder, new File("downloads"), message -> logArea.append(message + "\n"));
+                } catch (IOException ex) {
+                    logArea.append("Erreur lors du téléchargement du dossier : " + ex.getMessage() + "\n");
+                }
+            }
+        });
+
+        deleteFolderButton.addActionListener(e -> {
+            String folder = JOptionPane.showInputDialog(frame, "Entrez le nom du dossier à supprimer :");
+            if (folder != null && !folder.isEmpty()) {
+                try {
+                    FolderTransfer.delete(folder, message -> logArea.append(message + "\n"));
+                } catch (IOException ex) {
+                    logArea.append("Erreur lors de la suppression du dossier : " + ex.getMessage() + "\n");
+                }
+            }
+        });
+
         // Ajout des panels au frame
-        mainPanel.add(buttonPanel, BorderLayout.NORTH);
+        mainPanel.add(buttonsPanel, BorderLayout.NORTH);
         mainPanel.add(scrollPane, BorderLayout.CENTER);
 
         frame.getContentPane().add(mainPanel);
         frame.setVisible(true);
     }
 
-    private static void sendFileToServer(File file, JTextArea logArea) throws IOException {
-        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-             FileInputStream fis = new FileInputStream(file)) {
+    private interface Command {
+        void run(DataInputStream dis, DataOutputStream dos) throws IOException;
+    }
 
-            dos.writeUTF("ENVOYER");
-            dos.writeUTF(file.getName());
-            dos.writeLong(file.length());
+    // Connexion unique réutilisée par toutes les commandes. Une connexion fermée par le serveur
+    // depuis la commande précédente (serveur redémarré...) est remplacée avant d'envoyer quoi que
+    // ce soit. Une erreur pendant la commande n'est rejouée que pour une lecture (idempotent) :
+    // le serveur a pu appliquer une suppression ou un envoi avant que la connexion tombe.
+    private static void execute(Command command, boolean idempotent) throws IOException {
+        boolean reused = connection != null;
+        try {
+            ensureConnected();
+            command.run(connectionIn, connectionOut);
+        } catch (IOException e) {
+            closeConnection();
+            if (!reused || !idempotent) {
+                throw e;
+            }
+            ensureConnected();
+            try {
+                command.run(connectionIn, connectionOut);
+            } catch (IOException retryFailure) {
+                closeConnection();
+                throw retryFailure;
+            }
+        }
+    }
 
-            byte[] buffer = new byte[CHUNK_SIZE];
-            int bytesRead;
-            long totalSent = 0;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytesRead);
-                totalSent += bytesRead;
+    private static void ensureConnected() throws IOException {
+        if (connection != null && isStale()) {
+            closeConnection();
+        }
+        if (connection == null) {
+            connection = new Socket();
+            LinkTuning.configure(connection);
+            long connectStart = System.nanoTime();
+            connection.connect(new InetSocketAddress(SERVER_HOST, SERVER_PORT));
+            LinkTuning.recordRoundTrip(SERVER_LINK, System.nanoTime() - connectStart);
+            int bufferSize = LinkTuning.streamBufferSize();
+            connectionIn = new DataInputStream(new BufferedInputStream(connection.getInputStream(), bufferSize));
+            connectionOut = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream(), bufferSize));
+        }
+    }
+
+    // Sans rien envoyer : une lecture brève qui trouve la fin du flux (ou une erreur) signale une
+    // connexion fermée par le serveur ; une lecture qui expire, une connexion encore ouverte.
+    private static boolean isStale() {
+        try {
+            connection.setSoTimeout(1);
+            connectionIn.mark(1);
+            if (connectionIn.read() < 0) {
+                return true;
+            }
+            connectionIn.reset();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        } finally {
+            try {
+                connection.setSoTimeout(0);
+            } catch (IOException e) {
+                // la connexion sera remplacée
             }
-            logArea.append("Fichier envoyé : " + file.getName() + " (" + totalSent + " octets)\n");
         }
     }
 
+    private static void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // déjà fermée
+            }
+            connection = null;
+        }
+    }
+
+    private static void sendFileToServer(File file, JTextArea logArea) throws IOException {
+        // Gros fichier : envoi en parties parallèles, avec reprise.
+        if (ParallelTransfer.isLarge(file.length())) {
+            ParallelTransfer.upload(file, message -> logArea.append(message + "\n"));
+            return;
+        }
+        execute((dis, dos) -> {
+            byte[] buffer = BufferPool.take(LinkTuning.bufferSize(SERVER_LINK));
+            long start = System.nanoTime();
+            long totalSent = 0;
+            try (FileInputStream fis = new FileInputStream(file)) {
+                dos.writeUTF("ENVOYER");
+                dos.writeUTF(file.getName());
+                dos.writeLong(file.length());
+
+                int bytesRead;
+                while ((bytesRead = fis.read(buffer)) != -1) {
+                    dos.write(buffer, 0, bytesRead);
+                    totalSent += bytesRead;
+                }
+                dos.flush();
+
+                String response = dis.readUTF();
+                if ("OK".equals(response)) {
+                    LinkTuning.recordTransfer(SERVER_LINK, totalSent, System.nanoTime() - start);
+                    logArea.append("Fichier envoyé : " + file.getName() + " (" + totalSent + " octets)\n");
+                } else {
+                    logArea.append("Erreur : " + response + "\n");
+                }
+            } finally {
+                BufferPool.give(buffer);
+            }
+        }, false);
+    }
+
     private static void receiveFileFromServer(String fileName, JTextArea logArea) throws IOException {
         File downloadDir = new File("downloads");
         if (!downloadDir.exists() && !downloadDir.mkdirs()) {
@@ -130,42 +283,83 @@ public class Client {
         }
 
         File file = new File(downloadDir, "downloaded_" + fileName);
-        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+        // Taille et CRC32C du fichier, par une plage vide.
+        long[] description = new long[2];
+        String[] error = new String[1];
+        execute((dis, dos) -> {
+            dos.writeUTF("RECEVOIR_PLAGE");
+            dos.writeUTF(fileName);
+            dos.writeLong(0);
+            dos.writeLong(0);
+            dos.flush();
+            String response = dis.readUTF();
+            if ("OK".equals(response)) {
+                description[0] = dis.readLong();
+                dis.readLong();
+                description[1] = dis.readLong();
+            } else {
+                error[0] = response;
+            }
+        }, true);
+        if (error[0] != null) {
+            logArea.append("Erreur : " + error[0] + "\n");
+            return;
+        }
+        long expectedChecksum = description[1];
+        if (ParallelTransfer.isLarge(description[0])) {
+            ParallelTransfer.download(fileName, description[0], expectedChecksum, file,
+                    message -> logArea.append(message + "\n"));
+            return;
+        }
 
+        execute((dis, dos) -> {
             dos.writeUTF("RECEVOIR");
             dos.writeUTF(fileName);
+            dos.flush();
 
             String response = dis.readUTF();
             if ("OK".equals(response)) {
                 long fileSize = dis.readLong();
+                CRC32C checksum = new CRC32C();
 
+                byte[] buffer = BufferPool.take(LinkTuning.bufferSize(SERVER_LINK));
+                long start = System.nanoTime();
                 try (FileOutputStream fos = new FileOutputStream(file)) {
-                    byte[] buffer = new byte[CHUNK_SIZE];
                     long totalRead = 0;
                     int bytesRead;
 
+                    // On ne lit pas au-delà du fichier : la suite du flux appartient à la commande suivante.
                     while (totalRead < fileSize) {
-                        bytesRead = dis.read(buffer);
+                        bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalRead));
+                        if (bytesRead < 0) {
+                            throw new EOFException("Connexion interrompue pendant le téléchargement");
+                        }
                         fos.write(buffer, 0, bytesRead);
+                        checksum.update(buffer, 0, bytesRead);
                         totalRead += bytesRead;
                     }
+                } finally {
+                    BufferPool.give(buffer);
+                }
+                LinkTuning.recordTransfer(SERVER_LINK, fileSize, System.nanoTime() - start);
+                // Vérification de bout en bout, sauf si le fichier a été remplacé entre les deux requêtes.
+                if (fileSize == description[0] && checksum.getValue() != expectedChecksum) {
+                    logArea.append("Erreur : fichier corrompu pendant le transfert (CRC32C incorrect) : "
+                            + file.getName() + "\n");
+                    return;
                 }
                 logArea.append("Fichier téléchargé : " + file.getName() + " (" + fileSize + " octets)\n");
             } else {
                 logArea.append("Erreur : " + response + "\n");
             }
-        }
+        }, true);
     }
 
     private static void listFilesFromServer(JTextArea logArea) throws IOException {
-        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
-    
+        execute((dis, dos) -> {
             dos.writeUTF("LISTER");
-    
+            dos.flush();
+
             String response = dis.readUTF();
             if ("OK".equals(response)) {
                 String fileName;
@@ -175,19 +369,17 @@ public class Client {
             } else {
                 logArea.append(response + "\n");
             }
-        }
+        }, true);
     }
-    
+
     private static void deleteFileOnServer(String fileName, JTextArea logArea) throws IOException {
-        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
-    
+        execute((dis, dos) -> {
             dos.writeUTF("SUPPRIMER");
             dos.writeUTF(fileName);
-    
+            dos.flush();
+
             String response = dis.readUTF();
             logArea.append(response + "\n");
-        }
+        }, false);
     }
 }
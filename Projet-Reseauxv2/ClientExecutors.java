@@ -0,0 +1,68 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+// Modèles d'exécution du serveur principal, choisis par la clé client_executor de servers_config.txt :
+//   cached  : un thread système par client (comportement historique) ;
+//   bounded : pool fixe de client_executor_threads threads et file d'admission de client_executor_queue ;
+//   virtual : un thread virtuel par client (Java 21+, sinon repli sur cached).
+public class ClientExecutors {
+    public static final String CACHED = "cached";
+    public static final String BOUNDED = "bounded";
+    public static final String VIRTUAL = "virtual";
+
+    public static ExecutorService create() {
+        return create(ServerConfigLoader.getClientExecutorMode());
+    }
+
+    public static ExecutorService create(String mode) {
+        switch (mode.toLowerCase()) {
+            case BOUNDED:
+                int threads = ServerConfigLoader.getClientExecutorThreads();
+                // Pas de CallerRunsPolicy : le thread d'acceptation ne doit jamais traiter un client lui-même.
+                return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(ServerConfigLoader.getClientExecutorQueue()),
+                        namedThreads("client-handler"), new ThreadPoolExecutor.AbortPolicy());
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+                if (virtual != null) {
+                    return virtual;
+                }
+                Log.error("Threads virtuels indisponibles sur cette JVM, utilisation du mode cached.");
+                return Executors.newCachedThreadPool(namedThreads("client-handler"));
+            case CACHED:
+                return Executors.newCachedThreadPool(namedThreads("client-handler"));
+            default:
+                Log.error("Mode d'exécution inconnu : " + mode + ", utilisation du mode cached.");
+                return Executors.newCachedThreadPool(namedThreads("client-handler"));
+        }
+    }
+
+    // Pool des tâches d'entrée/sortie vers les sous-serveurs, aligné sur le mode des clients.
+    public static ExecutorService newWorkerPool(String name) {
+        if (VIRTUAL.equalsIgnoreCase(ServerConfigLoader.getClientExecutorMode())) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+                return virtual;
+            }
+        }
+        return Executors.newCachedThreadPool(namedThreads(name));
+    }
+
+    private static ThreadFactory namedThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Appel réflexif : le projet compile et tourne encore sur Java 17.
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.*;
+import java.util.*;
+
+// Taux de compression et coût processeur de FragmentCodec, par Mo de contenu, sur des fichiers
+// donnés ou, à défaut, sur trois contenus types : texte source, données aléatoires (incompressibles,
+// l'échantillon doit les écarter) et un mélange des deux. Le coût est du temps processeur du thread
+// de mesure, pour l'encodage (compression_level de la configuration) puis le décodage.
+// Usage : java CompressionBenchmark [fichier...]
+public class CompressionBenchmark {
+    private static final long MEASURE_NANOS = 1_000_000_000L;
+    private static final int SAMPLE_SIZE = 16 * 1024 * 1024;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        Map<String, byte[]> inputs = new LinkedHashMap<>();
+        if (args.length > 0) {
+            for (String arg : args) {
+                inputs.put(Paths.get(arg).getFileName().toString(), Files.readAllBytes(Paths.get(arg)));
+            }
+        } else {
+            inputs.put("texte", text(SAMPLE_SIZE));
+            inputs.put("aléatoire", random(SAMPLE_SIZE));
+            byte[] mixed = text(SAMPLE_SIZE);
+            byte[] noise = random(SAMPLE_SIZE);
+            // Une trame sur deux incompressible : l'échantillon accepte, certaines trames restent brutes.
+            for (int offset = FragmentCodec.FRAME_SIZE; offset < mixed.length; offset += 2 * FragmentCodec.FRAME_SIZE) {
+                System.arraycopy(noise, offset, mixed, offset, Math.min(FragmentCodec.FRAME_SIZE, mixed.length - offset));
+            }
+            inputs.put("mélange", mixed);
+        }
+
+        System.out.println("Deflate niveau "
+                + ServerConfigLoader.getCompressionLevel() + ", gain minimal "
+                + ServerConfigLoader.getCompressionMinGainPercent() + " %");
+        for (Map.Entry<String, byte[]> input : inputs.entrySet()) {
+            byte[] data = input.getValue();
+            FragmentCodec.Encoder encoder = encode(data);
+            byte[] stored = encoded(data);
+            double megabytes = data.length / (1024.0 * 1024.0);
+
+            // Échauffement pour le JIT, puis mesure.
+            measure(() -> encode(data), MEASURE_NANOS / 4);
+            double encodeCpu = measure(() -> encode(data), MEASURE_NANOS);
+            double decodeCpu = 0;
+            if (encoder.codec() == FragmentCodec.DEFLATE) {
+                measure(() -> decode(stored, data.length), MEASURE_NANOS / 4);
+                decodeCpu = measure(() -> decode(stored, data.length), MEASURE_NANOS);
+            }
+            System.out.printf("%-12s %8.1f Mo : codec %-7s taux %5.3f (%5.1f %% économisés), "
+                            + "codage %6.2f ms CPU/Mo, décodage %6.2f ms CPU/Mo%n",
+                    input.getKey(), megabytes, FragmentCodec.name(encoder.codec()),
+                    (double) encoder.storedLength() / Math.max(1, data.length),
+                    100.0 * (1 - (double) encoder.storedLength() / Math.max(1, data.length)),
+                    encodeCpu * 1e3 / megabytes, decodeCpu * 1e3 / megabytes);
+        }
+    }
+
+    private static FragmentCodec.Encoder encode(byte[] data) {
+        FragmentCodec.Encoder encoder = new FragmentCodec.Encoder(true);
+        for (int offset = 0; offset < data.length; offset += FragmentCodec.FRAME_SIZE) {
+            encoder.encode(data, offset, Math.min(FragmentCodec.FRAME_SIZE, data.length - offset));
+        }
+        encoder.finish();
+        return encoder;
+    }
+
+    private static byte[] encoded(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FragmentCodec.Encoder encoder = new FragmentCodec.Encoder(true);
+        for (int offset = 0; offset < data.length; offset += FragmentCodec.FRAME_SIZE) {
+            out.writeBytes(encoder.encode(data, offset, Math.min(FragmentCodec.FRAME_SIZE, data.length - offset)));
+        }
+        out.writeBytes(encoder.finish());
+        return out.toByteArray();
+    }
+
+    private static void decode(byte[] stored, int rawLength) {
+        try {
+            FragmentCodec.decodeFrames(stored, rawLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Secondes de processeur par opération.
+    private static double measure(Runnable operation, long durationNanos) {
+        long start = System.nanoTime();
+        long cpuStart = THREADS.getCurrentThreadCpuTime();
+        long operations = 0;
+        do {
+            operation.run();
+            operations++;
+        } while (System.nanoTime() - start < durationNanos);
+        return (THREADS.getCurrentThreadCpuTime() - cpuStart) / 1e9 / operations;
+    }
+
+    // Texte proche d'un source C : lignes tirées d'un petit vocabulaire.
+    private static byte[] text(int size) {
+        String[] lines = {
+                "    for (int i = 0; i < n; i++) {\n",
+                "        for (int j = 0; j < n; j++) {\n",
+                "            c[i][j] += a[i][k] * b[k][j];\n",
+                "        }\n",
+                "    }\n",
+                "    printf(\"%d \", matrice[i][j]);\n",
+                "int **allouer_matrice(int lignes, int colonnes) {\n",
+                "    free(m);\n",
+                "    return resultat;\n",
+        };
+        Random random = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        while (out.size() < size) {
+            out.writeBytes(lines[random.nextInt(lines.length)].getBytes());
+            if (random.nextInt(8) == 0) {
+                out.writeBytes(("    // valeur " + random.nextInt(100000) + "\n").getBytes());
+            }
+        }
+        return Arrays.copyOf(out.toByteArray(), size);
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(7).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.*;
+import java.util.*;
+
+// Découpage par contenu (empreinte roulante « Gear ») : une frontière est placée là où les derniers
+// octets lus donnent une empreinte dont les bits de poids faible sont nuls. Insérer ou retirer des
+// octets ne déplace donc que les frontières voisines, et les autres blocs gardent le même contenu
+// d'une version à l'autre du fichier.
+public class ContentChunker {
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Table fixe : changer la graine changerait toutes les frontières déjà stockées.
+        Random random = new Random(0x5EEDC0DEL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public interface ChunkConsumer {
+        void accept(byte[] data, int length) throws IOException;
+    }
+
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+
+    public ContentChunker(int minSize, int averageSize, int maxSize) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        // Masque de log2(taille moyenne) bits, pris dans les bits hauts plus mélangés par le décalage.
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(2, averageSize - minSize));
+        this.mask = ((1L << bits) - 1) << (64 - bits);
+    }
+
+    public static ContentChunker fromConfiguration() {
+        return new ContentChunker(ServerConfigLoader.getCdcMinChunkSize(),
+                ServerConfigLoader.getCdcAverageChunkSize(), ServerConfigLoader.getCdcMaxChunkSize());
+    }
+
+    // Lit exactement size octets et les livre bloc par bloc ; chaque bloc est un tableau neuf que
+    // le consommateur peut conserver.
+    public void split(DataInputStream in, long size, ChunkConsumer consumer) throws IOException {
+        byte[] buffer = new byte[maxSize * 2];
+        int start = 0;
+        int end = 0;
+        long remaining = size;
+
+        while (remaining > 0 || end > start) {
+            // Garder au moins maxSize octets disponibles tant que le flux n'est pas épuisé.
+            if (end - start < maxSize && remaining > 0) {
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                }
+                int toRead = (int) Math.min(buffer.length - end, remaining);
+                in.readFully(buffer, end, toRead);
+                end += toRead;
+                remaining -= toRead;
+            }
+
+            int length = boundary(buffer, start, end - start);
+            byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+            consumer.accept(chunk, length);
+            start += length;
+        }
+    }
+
+    private int boundary(byte[] data, int offset, int available) {
+        if (available <= minSize) {
+            return available;
+        }
+        int limit = Math.min(available, maxSize);
+        long hash = 0;
+        for (int i = minSize; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & mask) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+}
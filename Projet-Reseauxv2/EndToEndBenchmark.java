@@ -0,0 +1,296 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Banc de bout en bout dans un seul processus : sous-serveurs et serveur principal sur des ports
+// libres, puis pour chaque taille et chaque niveau de concurrence, N clients qui font leurs ENVOYER
+// puis leurs RECEVOIR sur une connexion persistante. Débit et latences (p50, p90, p99, max) de
+// chaque opération sont écrits en JSON, pour suivre les régressions d'une version à l'autre.
+// Écrit son propre servers_config.txt : à lancer dans un répertoire de travail jetable (mvn -Pe2e
+// en crée un sous target/e2e).
+// Usage : java EndToEndBenchmark [-sizes 1K,64K,1M,16M,256M] [-concurrency 1,4,16] [-o fichier.json]
+//         [clé=valeur de configuration...]
+public class EndToEndBenchmark {
+    private static final String CONFIG_FILE = "servers_config.txt";
+    private static final int SUB_SERVERS = 3;
+    // Volume visé par case du tableau, dans la limite de MAX_ROUNDS opérations par client.
+    private static final long TARGET_BYTES = 256L * 1024 * 1024;
+    private static final int MAX_ROUNDS = 100;
+    private static final int GENERATOR_BLOCK = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        List<Long> sizes = new ArrayList<>();
+        List<Integer> concurrencies = new ArrayList<>();
+        String output = null;
+        Map<String, String> settings = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-sizes".equals(args[i])) {
+                for (String size : args[++i].split(",")) {
+                    sizes.add(parseSize(size.trim()));
+                }
+            } else if ("-concurrency".equals(args[i])) {
+                for (String level : args[++i].split(",")) {
+                    concurrencies.add(Integer.parseInt(level.trim()));
+                }
+            } else if ("-o".equals(args[i])) {
+                output = args[++i];
+            } else if (args[i].contains("=")) {
+                settings.put(args[i].substring(0, args[i].indexOf('=')), args[i].substring(args[i].indexOf('=') + 1));
+            } else {
+                System.err.println("Argument inconnu : " + args[i]);
+                System.exit(2);
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes.addAll(List.of(1024L, 64 * 1024L, 1024 * 1024L, 16 * 1024 * 1024L, 256 * 1024 * 1024L));
+        }
+        if (concurrencies.isEmpty()) {
+            concurrencies.addAll(List.of(1, 4, 16));
+        }
+        if (Files.exists(Paths.get(CONFIG_FILE))) {
+            System.err.println("Un " + CONFIG_FILE + " existe déjà ici : lancez le banc dans un répertoire jetable.");
+            System.exit(2);
+        }
+        writeConfiguration(settings);
+
+        PrintStream console = System.out;
+        // Les traces du serveur fausseraient la mesure.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        int port = startServers();
+
+        List<String> results = new ArrayList<>();
+        for (long size : sizes) {
+            for (int concurrency : concurrencies) {
+                int rounds = (int) Math.max(1, Math.min(MAX_ROUNDS, TARGET_BYTES / (size * concurrency)));
+                Result[] cell = run(port, size, concurrency, rounds);
+                for (Result result : cell) {
+                    console.printf("%-9s %12d octets x %3d clients : %9.1f Mo/s, p50 %9.2f ms, p99 %9.2f ms, %d échecs%n",
+                            result.operation, size, concurrency, result.megabytesPerSecond(size),
+                            result.percentile(0.50), result.percentile(0.99), result.failures);
+                    results.add(result.toJson(size, concurrency));
+                }
+            }
+        }
+
+        String json = "{\n  \"date\": \"" + Instant.now() + "\",\n"
+                + "  \"java\": \"" + System.getProperty("java.version") + "\",\n"
+                + "  \"os\": \"" + System.getProperty("os.name") + " " + System.getProperty("os.arch") + "\",\n"
+                + "  \"processeurs\": " + Runtime.getRuntime().availableProcessors() + ",\n"
+                + "  \"sous_serveurs\": " + SUB_SERVERS + ",\n"
+                + "  \"configuration\": {" + settingsJson(settings) + "},\n"
+                + "  \"resultats\": [\n    " + String.join(",\n    ", results) + "\n  ]\n}\n";
+        if (output != null) {
+            Files.write(Paths.get(output), json.getBytes(StandardCharsets.UTF_8));
+            console.println("Résultats écrits dans " + output);
+        } else {
+            console.print(json);
+        }
+        System.exit(0);
+    }
+
+    private static long parseSize(String size) {
+        String unit = size.substring(size.length() - 1).toUpperCase();
+        long factor = "K".equals(unit) ? 1024L : "M".equals(unit) ? 1024L * 1024 : "G".equals(unit) ? 1024L * 1024 * 1024 : 1;
+        return Long.parseLong(factor == 1 ? size : size.substring(0, size.length() - 1)) * factor;
+    }
+
+    // Ports libres au moment du choix ; le serveur principal écoute sur un port éphémère à part.
+    private static void writeConfiguration(Map<String, String> settings) throws IOException {
+        StringBuilder config = new StringBuilder("main_server:127.0.0.1:0\n");
+        for (int i = 0; i < SUB_SERVERS; i++) {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                config.append("sub_server:127.0.0.1:").append(probe.getLocalPort()).append('\n');
+            }
+        }
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            config.append(setting.getKey()).append(':').append(setting.getValue()).append('\n');
+        }
+        Files.write(Paths.get(CONFIG_FILE), config.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int startServers() throws IOException, InterruptedException {
+        Files.createDirectories(Paths.get(ServerConfigLoader.getServerDirectory()));
+        MetadataStore.initialize();
+        MainServer.startSubServers();
+        Thread.sleep(500);
+        ServerSocket serverSocket = new ServerSocket();
+        LinkTuning.configure(serverSocket);
+        serverSocket.bind(new InetSocketAddress(0));
+        ExecutorService threadPool = ClientExecutors.create();
+        Thread acceptor = new Thread(() -> {
+            try {
+                MainServer.acceptClients(serverSocket, threadPool);
+            } catch (IOException e) {
+                // fin du banc
+            }
+        }, "e2e-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket.getLocalPort();
+    }
+
+    // Tous les clients envoient, puis tous relisent : chaque phase est chronométrée séparément.
+    private static Result[] run(int port, long size, int concurrency, int rounds) throws Exception {
+        Result upload = new Result("ENVOYER");
+        Result download = new Result("RECEVOIR");
+        CyclicBarrier phase = new CyclicBarrier(concurrency + 1);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < concurrency; c++) {
+            String prefix = "e2e-" + size + "-" + concurrency + "-" + c + "-";
+            long seed = size * 31 + c;
+            Thread thread = new Thread(() -> {
+                try (Socket socket = connect(port);
+                     DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                     DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+                    phase.await();
+                    SplittableRandom random = new SplittableRandom(seed);
+                    for (int round = 0; round < rounds; round++) {
+                        long begin = System.nanoTime();
+                        upload(dos, dis, prefix + round, size, random);
+                        upload.record(System.nanoTime() - begin, true);
+                    }
+                    phase.await();
+                    phase.await();
+                    for (int round = 0; round < rounds; round++) {
+                        long begin = System.nanoTime();
+                        boolean ok = download(dos, dis, prefix + round, size);
+                        download.record(System.nanoTime() - begin, ok);
+                    }
+                    phase.await();
+                    for (int round = 0; round < rounds; round++) {
+                        dos.writeUTF("SUPPRIMER");
+                        dos.writeUTF(prefix + round);
+                        dos.flush();
+                        dis.readUTF();
+                    }
+                } catch (IOException e) {
+                    upload.record(0, false);
+                    phase.reset();
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    phase.reset();
+                }
+            }, "e2e-client-" + c);
+            threads.add(thread);
+            thread.start();
+        }
+
+        try {
+            upload.seconds = timePhase(phase);
+            download.seconds = timePhase(phase);
+        } catch (BrokenBarrierException e) {
+            // un client a échoué : ses échecs sont comptés
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new Result[] {upload, download};
+    }
+
+    // Mêmes réglages de socket que Client.
+    private static Socket connect(int port) throws IOException {
+        Socket socket = new Socket();
+        LinkTuning.configure(socket);
+        socket.connect(new InetSocketAddress("127.0.0.1", port));
+        return socket;
+    }
+
+    private static double timePhase(CyclicBarrier phase) throws InterruptedException, BrokenBarrierException {
+        phase.await();
+        long begin = System.nanoTime();
+        phase.await();
+        return (System.nanoTime() - begin) / 1e9;
+    }
+
+    // Envoie size octets pseudo-aléatoires, tirés à la volée pour ne rien garder en mémoire et ne
+    // pas fausser la déduplication du mode cdc.
+    private static void upload(DataOutputStream dos, DataInputStream dis, String fileName, long size,
+                               SplittableRandom random) throws IOException {
+        byte[] block = new byte[(int) Math.min(GENERATOR_BLOCK, Math.max(8, size))];
+        ByteBuffer longs = ByteBuffer.wrap(block);
+        dos.writeUTF("ENVOYER");
+        dos.writeUTF(fileName);
+        dos.writeLong(size);
+        for (long sent = 0; sent < size; sent += block.length) {
+            longs.clear();
+            while (longs.remaining() >= 8) {
+                longs.putLong(random.nextLong());
+            }
+            dos.write(block, 0, (int) Math.min(block.length, size - sent));
+        }
+        dos.flush();
+        String response = dis.readUTF();
+        if (!"OK".equals(response)) {
+            throw new IOException("ENVOYER refusé : " + response);
+        }
+    }
+
+    private static boolean download(DataOutputStream dos, DataInputStream dis, String fileName, long size)
+            throws IOException {
+        dos.writeUTF("RECEVOIR");
+        dos.writeUTF(fileName);
+        dos.flush();
+        if (!"OK".equals(dis.readUTF())) {
+            return false;
+        }
+        long announced = dis.readLong();
+        dis.skipNBytes(announced);
+        return announced == size;
+    }
+
+    private static String settingsJson(Map<String, String> settings) {
+        List<String> entries = new ArrayList<>();
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            entries.add("\"" + setting.getKey() + "\": \"" + setting.getValue() + "\"");
+        }
+        return String.join(", ", entries);
+    }
+
+    private static class Result {
+        final String operation;
+        private final List<Long> latencies = new ArrayList<>();
+        int operations;
+        int failures;
+        double seconds;
+
+        Result(String operation) {
+            this.operation = operation;
+        }
+
+        synchronized void record(long nanos, boolean ok) {
+            if (ok) {
+                latencies.add(nanos);
+                operations++;
+            } else {
+                failures++;
+            }
+        }
+
+        synchronized double percentile(double p) {
+            if (latencies.isEmpty()) {
+                return 0;
+            }
+            Collections.sort(latencies);
+            int index = (int) Math.ceil(p * latencies.size()) - 1;
+            return latencies.get(Math.max(0, index)) / 1e6;
+        }
+
+        double megabytesPerSecond(long size) {
+            return seconds > 0 ? operations * (double) size / (1024 * 1024) / seconds : 0;
+        }
+
+        String toJson(long size, int concurrency) {
+            return String.format(Locale.ROOT, "{\"operation\": \"%s\", \"taille_octets\": %d, \"clients\": %d, "
+                            + "\"operations\": %d, \"echecs\": %d, \"secondes\": %.4f, \"mo_par_s\": %.2f, "
+                            + "\"operations_par_s\": %.2f, \"latence_ms\": {\"p50\": %.3f, \"p90\": %.3f, "
+                            + "\"p99\": %.3f, \"max\": %.3f}}",
+                    operation, size, concurrency, operations, failures, seconds, megabytesPerSecond(size),
+                    seconds > 0 ? operations / seconds : 0,
+                    percentile(0.50), percentile(0.90), percentile(0.99), percentile(1.0));
+        }
+    }
+}
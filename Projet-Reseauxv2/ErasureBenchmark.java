@@ -0,0 +1,59 @@
+import java.util.*;
+
+// Débit du codage de Reed–Solomon sur un seul cœur, en Go/s de données utiles : calcul de la parité,
+// puis reconstruction de m fragments de données perdus (le pire cas pour la lecture).
+// Usage : java ErasureBenchmark [k+m,k+m,...] [taille de part en Ko]
+public class ErasureBenchmark {
+    private static final long MEASURE_NANOS = 2_000_000_000L;
+
+    public static void main(String[] args) {
+        String[] schemes = (args.length > 0 ? args[0] : "4+2,6+3,10+4").split(",");
+        int unit = (args.length > 1 ? Integer.parseInt(args[1]) : 64) * 1024;
+
+        System.out.println("Taille de part : " + (unit / 1024) + " Ko");
+        for (String scheme : schemes) {
+            String[] parts = scheme.split("\\+");
+            int dataShards = Integer.parseInt(parts[0]);
+            int parityShards = Integer.parseInt(parts[1]);
+            ReedSolomon codec = ReedSolomon.get(dataShards, parityShards);
+
+            byte[][] shards = new byte[codec.totalShards()][unit];
+            Random random = new Random(42);
+            for (int i = 0; i < dataShards; i++) {
+                random.nextBytes(shards[i]);
+            }
+            boolean[] present = new boolean[codec.totalShards()];
+            Arrays.fill(present, true);
+            // Les m premiers fragments de données sont perdus et reconstruits depuis la parité.
+            for (int i = 0; i < Math.min(parityShards, dataShards); i++) {
+                present[i] = false;
+            }
+
+            // Échauffement pour le JIT, puis mesure.
+            measure(() -> codec.encodeParity(shards, 0, unit), MEASURE_NANOS / 4);
+            double encode = measure(() -> codec.encodeParity(shards, 0, unit), MEASURE_NANOS);
+            measure(() -> codec.decodeMissing(shards, present, 0, unit), MEASURE_NANOS / 4);
+            double decode = measure(() -> codec.decodeMissing(shards, present, 0, unit), MEASURE_NANOS);
+
+            double bytesPerOperation = (double) dataShards * unit;
+            System.out.printf("%2d+%d : codage %6.2f Go/s, reconstruction de %d fragments %6.2f Go/s%n",
+                    dataShards, parityShards, encode * bytesPerOperation / 1e9,
+                    Math.min(parityShards, dataShards), decode * bytesPerOperation / 1e9);
+        }
+    }
+
+    // Nombre d'opérations par seconde.
+    private static double measure(Runnable operation, long durationNanos) {
+        long start = System.nanoTime();
+        long operations = 0;
+        long elapsed;
+        do {
+            for (int i = 0; i < 16; i++) {
+                operation.run();
+            }
+            operations += 16;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < durationNanos);
+        return operations / (elapsed / 1e9);
+    }
+}
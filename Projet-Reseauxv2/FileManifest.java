@@ -0,0 +1,148 @@
+import java.io.*;
+import java.util.*;
+
+// Description d'un fichier stocké : sa taille et la liste ordonnée des fragments qui le composent,
+// avec pour chacun l'objet qui le contient sur les sous-serveurs et les nœuds qui le détiennent.
+// C'est ce manifeste, et non la configuration courante, qui permet de relire un fichier.
+public class FileManifest {
+    public static final String SPLIT = "split";
+    public static final String CDC = "cdc";
+    public static final String ERASURE = "rs";
+
+    private static final int FORMAT_VERSION = 1;
+
+    public final String name;
+    public final long size;
+    public final String mode;
+    public final long createdAt;
+    // CRC32C du contenu complet, calculé pendant l'envoi.
+    public final long checksum;
+    public final List<Fragment> fragments;
+    // Mode rs uniquement : k fragments de données, m de parité, et taille de la part de chaque
+    // fragment dans une bande. Les fragments du manifeste sont alors les k + m objets codés.
+    public final int dataShards;
+    public final int parityShards;
+    public final int stripeUnit;
+
+    public FileManifest(String name, long size, String mode, long createdAt, long checksum, List<Fragment> fragments,
+                        int dataShards, int parityShards, int stripeUnit) {
+        this.name = name;
+        this.size = size;
+        this.mode = mode;
+        this.createdAt = createdAt;
+        this.checksum = checksum;
+        this.fragments = Collections.unmodifiableList(new ArrayList<>(fragments));
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.stripeUnit = stripeUnit;
+    }
+
+    // Même fichier, mêmes paramètres, avec d'autres fragments (emplacements mis à jour...).
+    public FileManifest withFragments(List<Fragment> fragments) {
+        return new FileManifest(name, size, mode, createdAt, checksum, fragments, dataShards, parityShards, stripeUnit);
+    }
+
+    // Début des noms d'objets dérivés du nom d'un fichier : les noms de fichiers d'un dossier
+    // (« dossier/sous-dossier/fichier ») deviennent des noms de fichiers valides sur les
+    // sous-serveurs, sans que deux noms différents donnent le même objet.
+    public static String objectPrefix(String fileName) {
+        if (fileName.indexOf('/') < 0 && fileName.indexOf('\\') < 0 && fileName.indexOf('%') < 0) {
+            return fileName;
+        }
+        return fileName.replace("%", "%25").replace("/", "%2F").replace("\\", "%5C");
+    }
+
+    // Début des noms d'objets d'un envoi : chaque envoi écrit ses propres objets, si bien qu'un
+    // nouvel envoi du même fichier ne touche pas ceux de la version en place. Ceux-ci sont supprimés
+    // par le ramasse-miettes quand plus aucun manifeste ne les désigne.
+    public static String uploadPrefix(String fileName) {
+        return objectPrefix(fileName) + "." + UUID.randomUUID();
+    }
+
+    public static class Fragment {
+        // Nom de l'objet sur les sous-serveurs (« fichier.<envoi>.partN », « chunk-<sha256> »...).
+        public final String object;
+        public final long objectOffset;
+        public final long length;
+        public final List<String> nodes;
+        // Codec de l'objet (FragmentCodec.NONE ou DEFLATE) ; objectOffset et length restent des
+        // positions dans le contenu décompressé.
+        public final byte codec;
+
+        public Fragment(String object, long objectOffset, long length, List<String> nodes) {
+            this(object, objectOffset, length, nodes, FragmentCodec.NONE);
+        }
+
+        public Fragment(String object, long objectOffset, long length, List<String> nodes, byte codec) {
+            this.object = object;
+            this.objectOffset = objectOffset;
+            this.length = length;
+            this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+            this.codec = codec;
+        }
+
+        public Fragment withNodes(List<String> nodes) {
+            return new Fragment(object, objectOffset, length, nodes, codec);
+        }
+
+        public List<ServerConfigLoader.SubServerInfo> nodeInfos() {
+            List<ServerConfigLoader.SubServerInfo> infos = new ArrayList<>(nodes.size());
+            for (String node : nodes) {
+                infos.add(ServerConfigLoader.SubServerInfo.parse(node));
+            }
+            return infos;
+        }
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        out.writeUTF(name);
+        out.writeLong(size);
+        out.writeUTF(mode);
+        out.writeLong(createdAt);
+        out.writeLong(checksum);
+        out.writeByte(dataShards);
+        out.writeByte(parityShards);
+        out.writeInt(stripeUnit);
+        out.writeInt(fragments.size());
+        for (Fragment fragment : fragments) {
+            out.writeUTF(fragment.object);
+            out.writeLong(fragment.objectOffset);
+            out.writeLong(fragment.length);
+            out.writeByte(fragment.nodes.size());
+            for (String node : fragment.nodes) {
+                out.writeUTF(node);
+            }
+            out.writeByte(fragment.codec);
+        }
+    }
+
+    public static FileManifest readFrom(DataInputStream in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Version de manifeste inconnue : " + version);
+        }
+        String name = in.readUTF();
+        long size = in.readLong();
+        String mode = in.readUTF();
+        long createdAt = in.readLong();
+        long checksum = in.readLong();
+        int dataShards = in.readUnsignedByte();
+        int parityShards = in.readUnsignedByte();
+        int stripeUnit = in.readInt();
+        int fragmentCount = in.readInt();
+        List<Fragment> fragments = new ArrayList<>(fragmentCount);
+        for (int i = 0; i < fragmentCount; i++) {
+            String object = in.readUTF();
+            long objectOffset = in.readLong();
+            long length = in.readLong();
+            int nodeCount = in.readUnsignedByte();
+            List<String> nodes = new ArrayList<>(nodeCount);
+            for (int j = 0; j < nodeCount; j++) {
+                nodes.add(in.readUTF());
+            }
+            fragments.add(new Fragment(object, objectOffset, length, nodes, in.readByte()));
+        }
+        return new FileManifest(name, size, mode, createdAt, checksum, fragments, dataShards, parityShards, stripeUnit);
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+// Opérations du serveur principal sur les fichiers : envoi selon le mode de stockage configuré,
+// lecture d'après le manifeste enregistré, suppression avec ramasse-miettes des objets orphelins.
+public class FileStorage {
+    private static final String LEGACY_SUFFIX = ".part";
+    private static final Pattern UPLOAD_ID =
+            Pattern.compile("\\.[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
+
+    public static void store(DataInputStream dis, String fileName, long fileSize) throws IOException {
+        List<FileManifest.Fragment> pinned = new ArrayList<>();
+        try {
+            FileManifest manifest = write(dis, fileName, fileSize, ServerConfigLoader.getStorageMode(), pinned);
+            deleteObjects(MetadataStore.put(manifest));
+            HotFileCache.invalidate(fileName);
+        } finally {
+            deleteObjects(MetadataStore.unpin(pinned));
+        }
+    }
+
+    // Écrit le contenu sur les sous-serveurs et renvoie le manifeste correspondant, sans
+    // l'enregistrer. Les objets écrits sont ajoutés à pinned ; c'est à l'appelant de les libérer.
+    static FileManifest write(DataInputStream dis, String fileName, long fileSize, String mode,
+                              List<FileManifest.Fragment> pinned) throws IOException {
+        // Empreinte du contenu calculée au passage, pour le manifeste.
+        CRC32C checksum = new CRC32C();
+        DataInputStream in = new DataInputStream(new CheckedInputStream(dis, checksum));
+        List<FileManifest.Fragment> fragments;
+        ReedSolomon codec = null;
+        int stripeUnit = 0;
+        if (FileManifest.CDC.equals(mode)) {
+            fragments = ChunkUploader.upload(in, fileName, fileSize, PlacementRing.current(), pinned);
+        } else if (FileManifest.ERASURE.equals(mode)) {
+            codec = ReedSolomon.get(ServerConfigLoader.getErasureDataShards(),
+                    ServerConfigLoader.getErasureParityShards());
+            stripeUnit = StripeUploader.stripeUnit(fileSize, codec.dataShards(),
+                    ServerConfigLoader.getErasureStripeUnit());
+            List<FileManifest.Fragment> layout = StripeUploader.layout(fileName, FileManifest.uploadPrefix(fileName),
+                    fileSize, codec, stripeUnit, PlacementRing.current());
+            pin(layout, pinned);
+            fragments = StripeUploader.upload(in, fileName, fileSize, layout, codec, stripeUnit);
+        } else {
+            mode = FileManifest.SPLIT;
+            PlacementRing ring = PlacementRing.current();
+            List<FileManifest.Fragment> layout = FragmentUploader.splitLayout(FileManifest.uploadPrefix(fileName), fileSize,
+                    Math.max(1, ring.size()), ring);
+            pin(layout, pinned);
+            fragments = FragmentUploader.distribute(in, fileName, layout);
+        }
+        return new FileManifest(fileName, fileSize, mode, System.currentTimeMillis(),
+                checksum.getValue(), fragments, codec == null ? 0 : codec.dataShards(),
+                codec == null ? 0 : codec.totalShards() - codec.dataShards(), stripeUnit);
+    }
+
+    private static void pin(List<FileManifest.Fragment> layout, List<FileManifest.Fragment> pinned) {
+        for (FileManifest.Fragment fragment : layout) {
+            MetadataStore.pin(fragment.object);
+            pinned.add(fragment);
+        }
+    }
+
+    // Renvoie false si le fichier est inconnu ; dans ce cas rien n'a été écrit vers le client.
+    public static boolean stream(String fileName, DataOutputStream dos) throws IOException {
+        FileManifest manifest = lookup(fileName);
+        if (manifest == null) {
+            return false;
+        }
+        if (HotFileCache.serve(manifest, dos)) {
+            return true;
+        }
+        HotFileCache.Fill fill = HotFileCache.beginFill(manifest);
+        try {
+            if (FileManifest.ERASURE.equals(manifest.mode)) {
+                StripeDownloader.stream(manifest, dos, fill);
+            } else {
+                FragmentDownloader.stream(manifest, dos, fill);
+            }
+            if (fill != null) {
+                fill.commit();
+            }
+        } finally {
+            if (fill != null) {
+                fill.abort();
+            }
+        }
+        return true;
+    }
+
+    // RECEVOIR_LOT : pour chaque nom, le nom puis la réponse de RECEVOIR, et une chaîne vide à la fin.
+    // Les fichiers lus par FragmentDownloader partagent sa fenêtre de lecture anticipée ; un fichier
+    // en cache, rs ou inconnu est servi seul, comme par RECEVOIR, entre deux séries.
+    public static void streamAll(List<String> fileNames, DataOutputStream dos) throws IOException {
+        List<FileManifest> run = new ArrayList<>();
+        for (String fileName : fileNames) {
+            FileManifest manifest = lookup(fileName);
+            if (manifest != null && !FileManifest.ERASURE.equals(manifest.mode) && !HotFileCache.contains(manifest)) {
+                run.add(manifest);
+                continue;
+            }
+            FragmentDownloader.streamAll(run, dos);
+            run.clear();
+            dos.writeUTF(fileName);
+            if (!stream(fileName, dos)) {
+                dos.writeUTF("Fichier introuvable");
+            }
+        }
+        FragmentDownloader.streamAll(run, dos);
+        dos.writeUTF("");
+    }
+
+    // Plage d'un fichier : « OK », taille du fichier, longueur de la plage (bornée à la fin du
+    // fichier), CRC32C du fichier entier, puis le contenu de la plage. Une longueur négative
+    // demande tout le reste du fichier.
+    public static boolean streamRange(String fileName, long offset, long length, DataOutputStream dos)
+            throws IOException {
+        FileManifest manifest = lookup(fileName);
+        if (manifest == null) {
+            return false;
+        }
+        long start = Math.max(0, Math.min(offset, manifest.size));
+        long end = length < 0 ? manifest.size : start + Math.min(length, manifest.size - start);
+        FragmentDownloader.Header header = () -> {
+            dos.writeUTF("OK");
+            dos.writeLong(manifest.size);
+            dos.writeLong(end - start);
+            dos.writeLong(manifest.checksum);
+        };
+        if (HotFileCache.serveRange(manifest, start, end, header, dos)) {
+            return true;
+        }
+        if (FileManifest.ERASURE.equals(manifest.mode)) {
+            StripeDownloader.streamRange(manifest, start, end, header, dos);
+        } else {
+            FragmentDownloader.streamRange(manifest, start, end, header, dos);
+        }
+        return true;
+    }
+
+    public static boolean delete(String fileName) throws IOException {
+        List<FileManifest.Fragment> orphans = MetadataStore.remove(fileName);
+        if (orphans == null) {
+            return false;
+        }
+        HotFileCache.invalidate(fileName);
+        deleteObjects(orphans);
+        return true;
+    }
+
+    // Suppression groupée, enregistrée en une fois : les fichiers supprimés sont ajoutés à removed.
+    // Renvoie les objets devenus orphelins, que l'appelant supprime avec deleteObjects() une fois
+    // le client servi.
+    public static List<FileManifest.Fragment> deleteAll(List<String> fileNames, Set<String> removed)
+            throws IOException {
+        List<FileManifest.Fragment> orphans = MetadataStore.removeAll(fileNames, removed);
+        for (String fileName : removed) {
+            HotFileCache.invalidate(fileName);
+        }
+        return orphans;
+    }
+
+    // Suppression au mieux : un nœud injoignable garde un objet orphelin, sans conséquence sur les lectures.
+    static void deleteObjects(List<FileManifest.Fragment> orphans) {
+        for (FileManifest.Fragment fragment : orphans) {
+            for (ServerConfigLoader.SubServerInfo node : fragment.nodeInfos()) {
+                try {
+                    SubServerPool.acquire(node).delete(fragment.object);
+                } catch (IOException e) {
+                    Metrics.fragmentFailure("suppression", node.address());
+                    Log.error("Impossible de supprimer " + fragment.object + " sur " + node.address()
+                            + " : " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static FileManifest lookup(String fileName) {
+        return MetadataStore.get(fileName);
+    }
+
+    // Fichiers envoyés avant l'introduction des manifestes : le serveur d'origine écrivait
+    // « nom.partI » sur le I-ème sous-serveur, dans le répertoire local que lui donnait son propre
+    // processus. On les reprend une fois au démarrage, avant de lancer les sous-serveurs, avec leur
+    // CRC32C ; un fichier dont une partie manque reste en place et est signalé. Les objets déjà
+    // référencés et les restes d'envois interrompus (« nom.<envoi>.partN ») sont ignorés.
+    public static void adoptLegacyFiles() {
+        List<ServerConfigLoader.SubServerInfo> subServers = ServerConfigLoader.getSubServers();
+        if (subServers.isEmpty()) {
+            return;
+        }
+        File[] candidates = subServerDirectory(subServers.get(0))
+                .listFiles((dir, name) -> name.endsWith(LEGACY_SUFFIX + 0));
+        if (candidates == null) {
+            return;
+        }
+        Map<String, List<String>> referenced = MetadataStore.locations();
+        List<FileManifest> adopted = new ArrayList<>();
+        for (File candidate : candidates) {
+            String fileName = candidate.getName().substring(0, candidate.getName().length() - LEGACY_SUFFIX.length() - 1);
+            if (UPLOAD_ID.matcher(fileName).find() || referenced.containsKey(candidate.getName())
+                    || MetadataStore.get(fileName) != null) {
+                continue;
+            }
+            try {
+                FileManifest manifest = readLegacyFile(fileName, subServers);
+                if (manifest != null) {
+                    adopted.add(manifest);
+                }
+            } catch (IOException e) {
+                Log.error("Fichier de l'ancien format non repris : " + fileName + " (" + e.getMessage() + ")");
+            }
+        }
+        if (adopted.isEmpty()) {
+            return;
+        }
+        try {
+            deleteObjects(MetadataStore.putAll(adopted));
+            Log.info("Fichiers de l'ancien format repris : " + adopted.size());
+        } catch (IOException e) {
+            Log.error("Impossible d'enregistrer les fichiers de l'ancien format : " + e.getMessage());
+        }
+    }
+
+    private static FileManifest readLegacyFile(String fileName, List<ServerConfigLoader.SubServerInfo> subServers)
+            throws IOException {
+        CRC32C checksum = new CRC32C();
+        List<FileManifest.Fragment> fragments = new ArrayList<>();
+        long size = 0;
+        byte[] buffer = BufferPool.take(1 << 16);
+        try {
+            for (int i = 0; i < subServers.size(); i++) {
+                String object = fileName + LEGACY_SUFFIX + i;
+                File part = new File(subServerDirectory(subServers.get(i)), object);
+                if (!part.isFile()) {
+                    Log.error("Fichier de l'ancien format incomplet, non repris : " + fileName + " (" + object
+                            + " absent)");
+                    return null;
+                }
+                try (InputStream in = new FileInputStream(part)) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        checksum.update(buffer, 0, read);
+                    }
+                }
+                fragments.add(new FileManifest.Fragment(object, 0, part.length(),
+                        List.of(subServers.get(i).address())));
+                size += part.length();
+            }
+        } finally {
+            BufferPool.give(buffer);
+        }
+        return new FileManifest(fileName, size, FileManifest.SPLIT, System.currentTimeMillis(), checksum.getValue(),
+                fragments, 0, 0, 0);
+    }
+
+    private static File subServerDirectory(ServerConfigLoader.SubServerInfo node) {
+        return new File("sub_server_directory_" + node.port);
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Transferts de dossiers côté client, sur une connexion dédiée et avec les commandes groupées du
+// serveur : un fichier du dossier « photos » est enregistré sous « photos/chemin/relatif ».
+// L'envoi part en un seul ENVOYER_LOT, dont les acquittements sont lus au fil de l'eau par un
+// second thread ; le téléchargement et la suppression parcourent les noms du dossier par pages
+// (LISTER_PAGE) et traitent chaque page en une commande RECEVOIR_LOT ou SUPPRIMER_LOT.
+public class FolderTransfer {
+    private static final String SERVER_HOST = ServerConfigLoader.getMainServerHost();
+    private static final int SERVER_PORT = ServerConfigLoader.getMainServerPort();
+    private static final String SERVER_LINK = SERVER_HOST + ":" + SERVER_PORT;
+    private static final int PAGE_SIZE = 1000;
+
+    public static void upload(File folder, Consumer<String> log) throws IOException {
+        Path root = folder.toPath();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).sorted().toList();
+        }
+
+        try (Socket socket = connect()) {
+            int bufferSize = LinkTuning.streamBufferSize();
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferSize));
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), bufferSize));
+            Acknowledgements acknowledgements = new Acknowledgements(dis, log);
+            Thread reader = new Thread(acknowledgements, "lot-acquittements");
+            reader.start();
+
+            byte[] buffer = BufferPool.take(LinkTuning.bufferSize(SERVER_LINK));
+            long start = System.nanoTime();
+            long totalSent = 0;
+            try {
+                dos.writeUTF("ENVOYER_LOT");
+                for (Path file : files) {
+                    long size = Files.size(file);
+                    dos.writeUTF(remoteName(folder.getName(), root.relativize(file)));
+                    dos.writeLong(size);
+                    // Exactement la taille annoncée, même si le fichier change pendant l'envoi.
+                    try (InputStream in = Files.newInputStream(file)) {
+                        long remaining = size;
+                        while (remaining > 0) {
+                            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (bytesRead < 0) {
+                                throw new EOFException("Fichier raccourci pendant l'envoi : " + file);
+                            }
+                            dos.write(buffer, 0, bytesRead);
+                            remaining -= bytesRead;
+                        }
+                    }
+                    totalSent += size;
+                }
+                dos.writeUTF("");
+                dos.flush();
+            } finally {
+                BufferPool.give(buffer);
+            }
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Envoi du dossier interrompu");
+            }
+            if (acknowledgements.failure != null) {
+                throw acknowledgements.failure;
+            }
+            LinkTuning.recordTransfer(SERVER_LINK, totalSent, System.nanoTime() - start);
+            log.accept("Dossier envoyé : " + folder.getName() + " (" + acknowledgements.stored + "/" + files.size()
+                    + " fichiers, " + totalSent + " octets)");
+        }
+    }
+
+    // Les fichiers sont écrits sous target, en recréant l'arborescence du dossier.
+    public static void download(String folder, File target, Consumer<String> log) throws IOException {
+        Path base = target.toPath().toAbsolutePath().normalize();
+        int received = 0;
+        int failed = 0;
+        long totalRead = 0;
+        try (Socket socket = connect()) {
+            int bufferSize = LinkTuning.streamBufferSize();
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferSize));
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), bufferSize));
+            byte[] buffer = BufferPool.take(LinkTuning.bufferSize(SERVER_LINK));
+            long start = System.nanoTime();
+            try {
+                String cursor = "";
+                do {
+                    List<String> names = new ArrayList<>();
+                    cursor = listPage(dis, dos, prefix(folder), cursor, names);
+                    if (names.isEmpty()) {
+                        break;
+                    }
+                    dos.writeUTF("RECEVOIR_LOT");
+                    for (String name : names) {
+                        dos.writeUTF(name);
+                    }
+                    dos.writeUTF("");
+                    dos.flush();
+
+                    String name;
+                    while (!(name = dis.readUTF()).isEmpty()) {
+                        String response = dis.readUTF();
+                        if (!"OK".equals(response)) {
+                            log.accept("Erreur : " + name + " : " + response);
+                            failed++;
+                            continue;
+                        }
+                        long size = dis.readLong();
+                        Path file = base.resolve(name).normalize();
+                        // Un nom qui sortirait du répertoire de téléchargement est lu sans être écrit.
+                        OutputStream out = file.startsWith(base) ? open(file) : OutputStream.nullOutputStream();
+                        try (OutputStream fos = out) {
+                            long remaining = size;
+                            while (remaining > 0) {
+                                int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                                if (bytesRead < 0) {
+                                    throw new EOFException("Connexion interrompue pendant le téléchargement");
+                                }
+                                fos.write(buffer, 0, bytesRead);
+                                remaining -= bytesRead;
+                            }
+                        }
+                        if (file.startsWith(base)) {
+                            received++;
+                        } else {
+                            log.accept("Erreur : nom de fichier refusé : " + name);
+                            failed++;
+                        }
+                        totalRead += size;
+                    }
+                } while (!cursor.isEmpty());
+            } finally {
+                BufferPool.give(buffer);
+            }
+            LinkTuning.recordTransfer(SERVER_LINK, totalRead, System.nanoTime() - start);
+        }
+        if (received == 0 && failed == 0) {
+            log.accept("Aucun fichier dans le dossier " + folder);
+            return;
+        }
+        log.accept("Dossier téléchargé : " + folder + " (" + received + " fichiers, " + totalRead + " octets"
+                + (failed > 0 ? ", " + failed + " erreurs" : "") + ")");
+    }
+
+    public static void delete(String folder, Consumer<String> log) throws IOException {
+        int deleted = 0;
+        int failed = 0;
+        try (Socket socket = connect()) {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            String cursor = "";
+            do {
+                List<String> names = new ArrayList<>();
+                cursor = listPage(dis, dos, prefix(folder), cursor, names);
+                if (names.isEmpty()) {
+                    break;
+                }
+                dos.writeUTF("SUPPRIMER_LOT");
+                for (String name : names) {
+                    dos.writeUTF(name);
+                }
+                dos.writeUTF("");
+                dos.flush();
+
+                String name;
+                while (!(name = dis.readUTF()).isEmpty()) {
+                    String response = dis.readUTF();
+                    if ("OK".equals(response)) {
+                        deleted++;
+                    } else {
+                        log.accept("Erreur : " + name + " : " + response);
+                        failed++;
+                    }
+                }
+            } while (!cursor.isEmpty());
+        }
+        log.accept("Dossier supprimé : " + folder + " (" + deleted + " fichiers"
+                + (failed > 0 ? ", " + failed + " erreurs" : "") + ")");
+    }
+
+    // Les séparateurs du système deviennent « / », quel que soit le système du client.
+    private static String remoteName(String folder, Path relative) {
+        StringBuilder name = new StringBuilder(folder);
+        for (Path part : relative) {
+            name.append('/').append(part);
+        }
+        return name.toString();
+    }
+
+    private static String prefix(String folder) {
+        return folder.endsWith("/") ? folder : folder + "/";
+    }
+
+    // Ajoute les noms d'une page à names et renvoie le curseur de la page suivante (vide à la fin).
+    private static String listPage(DataInputStream dis, DataOutputStream dos, String prefix, String cursor,
+                                   List<String> names) throws IOException {
+        dos.writeUTF("LISTER_PAGE");
+        dos.writeUTF(prefix);
+        dos.writeUTF(cursor);
+        dos.writeInt(PAGE_SIZE);
+        dos.flush();
+        String response = dis.readUTF();
+        if (!"OK".equals(response)) {
+            throw new IOException(response);
+        }
+        int count = dis.readInt();
+        for (int i = 0; i < count; i++) {
+            names.add(dis.readUTF());
+            dis.readLong();
+            dis.readLong();
+        }
+        return dis.readUTF();
+    }
+
+    private static OutputStream open(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        return new BufferedOutputStream(Files.newOutputStream(file));
+    }
+
+    private static Socket connect() throws IOException {
+        Socket socket = new Socket();
+        LinkTuning.configure(socket);
+        long connectStart = System.nanoTime();
+        socket.connect(new InetSocketAddress(SERVER_HOST, SERVER_PORT));
+        LinkTuning.recordRoundTrip(SERVER_LINK, System.nanoTime() - connectStart);
+        return socket;
+    }
+
+    // Lit les acquittements d'ENVOYER_LOT pendant que le thread principal envoie la suite : sans
+    // lui, le serveur finirait bloqué sur des acquittements que personne ne lit.
+    private static class Acknowledgements implements Runnable {
+        private final DataInputStream dis;
+        private final Consumer<String> log;
+        volatile int stored;
+        volatile IOException failure;
+
+        Acknowledgements(DataInputStream dis, Consumer<String> log) {
+            this.dis = dis;
+            this.log = log;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String name;
+                while (!(name = dis.readUTF()).isEmpty()) {
+                    String response = dis.readUTF();
+                    if ("OK".equals(response)) {
+                        stored++;
+                    } else {
+                        log.accept("Erreur : " + name + " : " + response);
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+}
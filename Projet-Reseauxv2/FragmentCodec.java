@@ -0,0 +1,424 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.*;
+
+// Compression des fragments, décidée fragment par fragment : le premier bloc sert d'échantillon et
+// le fragment n'est compressé que si cet échantillon gagne au moins compression_min_gain_percent.
+// Un objet compressé est une suite de trames « taille brute, taille stockée, données », chacune
+// couvrant FRAME_SIZE octets du fragment (une trame que Deflater ne réduit pas est gardée telle
+// quelle), suivie de l'index des tailles de trames et d'un pied de page : une plage au milieu de
+// l'objet se lit sans relire ce qui précède. Le codec de chaque fragment est noté dans le manifeste.
+public class FragmentCodec {
+    public static final byte NONE = 0;
+    public static final byte DEFLATE = 1;
+
+    static final int FRAME_SIZE = 64 * 1024;
+    private static final int FRAME_HEADER = 8;
+    private static final int FOOTER_SIZE = 12;
+    private static final int FOOTER_MAGIC = 0x46524D31;
+
+    private static final boolean ENABLED = "deflate".equals(ServerConfigLoader.getCompression());
+    private static final int LEVEL = ServerConfigLoader.getCompressionLevel();
+    private static final int MIN_GAIN_PERCENT = ServerConfigLoader.getCompressionMinGainPercent();
+
+    // Deflater et Inflater réservent de la mémoire native : ils sont réutilisés.
+    private static final ConcurrentLinkedQueue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+    public static String name(byte codec) {
+        return codec == DEFLATE ? "deflate" : "none";
+    }
+
+    public static Encoder encoder() {
+        return new Encoder(ENABLED);
+    }
+
+    // Lecture d'une plage brute d'un objet, avec la même séquence d'appels qu'un RETRIEVE :
+    // awaitHeader() (longueur disponible, -1 si l'objet est absent), puis nextData() jusqu'à null.
+    public interface RangeReader {
+        long awaitHeader() throws IOException;
+
+        byte[] nextData() throws IOException;
+
+        void abort();
+    }
+
+    public static RangeReader retrieve(SubServerConnection connection, String object, byte codec, long offset,
+                                       long length) throws IOException {
+        if (codec == NONE) {
+            return connection.retrieve(object, offset, length);
+        }
+        if (codec != DEFLATE) {
+            throw new IOException("Codec inconnu pour " + object + " : " + codec);
+        }
+        return new FrameReader(connection, object, offset, length);
+    }
+
+    // Encodage d'un objet, bloc par bloc et dans l'ordre. Les blocs reçus n'ont pas de taille imposée
+    // (celle du tampon de la liaison) : l'entrée est regroupée en trames de FRAME_SIZE octets bruts
+    // exactement, la dernière exceptée, pour que la lecture d'une plage trouve sa trame par division.
+    public static class Encoder {
+        private final boolean enabled;
+        private byte codec = -1;
+        private int[] frames = new int[16];
+        private int frameCount;
+        private long rawLength;
+        private long storedLength;
+        private byte[] pending;
+        private int pendingLength;
+
+        Encoder(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        // Octets à stocker pour ce bloc ; data lui-même quand le fragment n'est pas compressé. En
+        // compression, seules les trames complètes sont rendues (éventuellement aucune) : le reste
+        // attend le bloc suivant ou finish().
+        public byte[] encode(byte[] data, int offset, int length) {
+            if (codec < 0) {
+                codec = enabled && worthCompressing(data, offset, Math.min(length, FRAME_SIZE)) ? DEFLATE : NONE;
+                if (codec == DEFLATE) {
+                    pending = new byte[FRAME_SIZE];
+                }
+            }
+            rawLength += length;
+            if (codec == NONE) {
+                storedLength += length;
+                return offset == 0 && length == data.length ? data : Arrays.copyOfRange(data, offset, offset + length);
+            }
+            int frameTotal = (pendingLength + length) / FRAME_SIZE;
+            byte[] out = new byte[frameTotal * (FRAME_SIZE + FRAME_HEADER)];
+            int position = 0;
+            Deflater deflater = borrowDeflater();
+            try {
+                for (int done = 0; done < length; ) {
+                    int count = Math.min(FRAME_SIZE - pendingLength, length - done);
+                    if (pendingLength == 0 && count == FRAME_SIZE) {
+                        // Trame entière dans le bloc : pas de copie intermédiaire.
+                        position = writeFrame(deflater, data, offset + done, FRAME_SIZE, out, position);
+                    } else {
+                        System.arraycopy(data, offset + done, pending, pendingLength, count);
+                        pendingLength += count;
+                        if (pendingLength == FRAME_SIZE) {
+                            position = writeFrame(deflater, pending, 0, FRAME_SIZE, out, position);
+                            pendingLength = 0;
+                        }
+                    }
+                    done += count;
+                }
+            } finally {
+                DEFLATERS.add(deflater);
+            }
+            storedLength += position;
+            return position == out.length ? out : Arrays.copyOf(out, position);
+        }
+
+        // Dernière trame incomplète, index et pied de page, à écrire après le dernier bloc (vide si
+        // non compressé).
+        public byte[] finish() {
+            if (codec != DEFLATE) {
+                return new byte[0];
+            }
+            byte[] last = new byte[pendingLength == 0 ? 0 : pendingLength + FRAME_HEADER];
+            if (pendingLength > 0) {
+                Deflater deflater = borrowDeflater();
+                try {
+                    last = Arrays.copyOf(last, writeFrame(deflater, pending, 0, pendingLength, last, 0));
+                } finally {
+                    DEFLATERS.add(deflater);
+                }
+                pendingLength = 0;
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(last.length + frameCount * 4 + FOOTER_SIZE);
+            trailer.put(last);
+            for (int i = 0; i < frameCount; i++) {
+                trailer.putInt(frames[i]);
+            }
+            trailer.putInt(frameCount).putInt(FRAME_SIZE).putInt(FOOTER_MAGIC);
+            storedLength += trailer.capacity();
+            return trailer.array();
+        }
+
+        // Écrit en out[position] la trame des rawFrame octets de data ; renvoie la position suivante.
+        private int writeFrame(Deflater deflater, byte[] data, int offset, int rawFrame, byte[] out, int position) {
+            int stored = deflate(deflater, data, offset, rawFrame, out, position + FRAME_HEADER);
+            if (stored < 0) {
+                System.arraycopy(data, offset, out, position + FRAME_HEADER, rawFrame);
+                stored = rawFrame;
+            }
+            ByteBuffer.wrap(out, position, FRAME_HEADER).putInt(rawFrame).putInt(stored);
+            addFrame(FRAME_HEADER + stored);
+            return position + FRAME_HEADER + stored;
+        }
+
+        public byte codec() {
+            return codec == DEFLATE ? DEFLATE : NONE;
+        }
+
+        public long rawLength() {
+            return rawLength;
+        }
+
+        public long storedLength() {
+            return storedLength;
+        }
+
+        private void addFrame(int size) {
+            if (frameCount == frames.length) {
+                frames = Arrays.copyOf(frames, frameCount * 2);
+            }
+            frames[frameCount++] = size;
+        }
+    }
+
+    private static boolean worthCompressing(byte[] data, int offset, int length) {
+        if (length == 0) {
+            return false;
+        }
+        Deflater deflater = borrowDeflater();
+        try {
+            int budget = (int) ((long) length * (100 - MIN_GAIN_PERCENT) / 100);
+            return deflate(deflater, data, offset, length, new byte[budget + 1], 0, budget) >= 0;
+        } finally {
+            DEFLATERS.add(deflater);
+        }
+    }
+
+    // Taille compressée, ou -1 si elle n'est pas strictement inférieure à length.
+    private static int deflate(Deflater deflater, byte[] data, int offset, int length, byte[] out, int at) {
+        return deflate(deflater, data, offset, length, out, at, length - 1);
+    }
+
+    private static int deflate(Deflater deflater, byte[] data, int offset, int length, byte[] out, int at,
+                               int capacity) {
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        int total = 0;
+        while (!deflater.finished()) {
+            if (total >= capacity) {
+                return -1;
+            }
+            total += deflater.deflate(out, at + total, capacity - total);
+        }
+        return total;
+    }
+
+    // Décode un objet compressé entier, déjà en mémoire.
+    static byte[] decodeFrames(byte[] stored, int rawLength) throws IOException {
+        byte[] raw = new byte[rawLength];
+        ByteBuffer frames = ByteBuffer.wrap(stored);
+        for (int position = 0; position < rawLength; ) {
+            int frameRaw = frames.getInt();
+            int frameStored = frames.getInt();
+            if (frameStored == frameRaw) {
+                frames.get(raw, position, frameRaw);
+            } else {
+                byte[] decoded = inflate(stored, frames.position(), frameStored, frameRaw, "objet en mémoire");
+                System.arraycopy(decoded, 0, raw, position, frameRaw);
+                frames.position(frames.position() + frameStored);
+            }
+            position += frameRaw;
+        }
+        return raw;
+    }
+
+    private static byte[] inflate(byte[] stored, int offset, int storedLength, int rawLength, String object)
+            throws IOException {
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = borrowInflater();
+        try {
+            inflater.reset();
+            inflater.setInput(stored, offset, storedLength);
+            int produced = 0;
+            while (produced < rawLength && !inflater.finished()) {
+                int count = inflater.inflate(raw, produced, rawLength - produced);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                produced += count;
+            }
+            if (produced != rawLength) {
+                throw new IOException("Trame corrompue dans " + object);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Trame corrompue dans " + object + " : " + e.getMessage(), e);
+        } finally {
+            INFLATERS.add(inflater);
+        }
+        return raw;
+    }
+
+    private static Deflater borrowDeflater() {
+        Deflater deflater = DEFLATERS.poll();
+        return deflater != null ? deflater : new Deflater(LEVEL, true);
+    }
+
+    private static Inflater borrowInflater() {
+        Inflater inflater = INFLATERS.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    // Lecture d'un objet compressé : la trame qui contient le début de la plage est trouvée grâce à
+    // l'index (trois petites lectures en plus), puis les trames sont lues et décompressées dans
+    // l'ordre. La lecture est abandonnée dès que la plage est complète.
+    private static class FrameReader implements RangeReader {
+        private final SubServerConnection connection;
+        private final String object;
+        private final long offset;
+        private final long length;
+        private SubServerConnection.Exchange data;
+        private byte[] chunk = new byte[0];
+        private int chunkPosition;
+        private int skip;
+        private long delivered;
+        private boolean done;
+        private boolean shortFrameSeen;
+
+        FrameReader(SubServerConnection connection, String object, long offset, long length) throws IOException {
+            this.connection = connection;
+            this.object = object;
+            this.offset = offset;
+            this.length = length;
+            // Lecture depuis le début : la requête part tout de suite, comme un RETRIEVE ordinaire.
+            if (offset < FRAME_SIZE && length != 0) {
+                data = connection.retrieve(object, 0, -1);
+            }
+        }
+
+        @Override
+        public long awaitHeader() throws IOException {
+            if (length == 0) {
+                done = true;
+                return 0;
+            }
+            long frame = offset / FRAME_SIZE;
+            if (data == null) {
+                SubServerConnection.Exchange probe = connection.retrieve(object, 0, 0);
+                if (probe.awaitHeader() < 0) {
+                    return -1;
+                }
+                while (probe.nextData() != null) {
+                    // plage vide : seule la trame de fin est attendue
+                }
+                long size = probe.objectSize();
+                ByteBuffer footer = ByteBuffer.wrap(read(size - FOOTER_SIZE, FOOTER_SIZE));
+                int frameCount = footer.getInt();
+                int frameSize = footer.getInt();
+                if (footer.getInt() != FOOTER_MAGIC || frameSize != FRAME_SIZE || frame >= frameCount) {
+                    throw new IOException("Index de trames invalide : " + object);
+                }
+                ByteBuffer index = ByteBuffer.wrap(read(size - FOOTER_SIZE - 4L * frameCount, (int) frame * 4));
+                long storedOffset = 0;
+                while (index.hasRemaining()) {
+                    storedOffset += index.getInt();
+                }
+                data = connection.retrieve(object, storedOffset, -1);
+            }
+            if (data.awaitHeader() < 0) {
+                return -1;
+            }
+            skip = (int) (offset - frame * FRAME_SIZE);
+            return length;
+        }
+
+        @Override
+        public byte[] nextData() throws IOException {
+            while (!done) {
+                byte[] frame = readFrame();
+                if (frame == null) {
+                    throw new IOException("Fragment incomplet : " + object + " (" + delivered + " octets sur " + length + ")");
+                }
+                // Seule la dernière trame peut être incomplète : sinon les positions calculées par
+                // awaitHeader() ne désignent pas les bons octets.
+                if (shortFrameSeen) {
+                    throw new IOException("Trame incomplète avant la fin de " + object);
+                }
+                shortFrameSeen = frame.length < FRAME_SIZE;
+                int from = skip;
+                skip = 0;
+                int count = (int) Math.min(frame.length - from, length - delivered);
+                if (count <= 0) {
+                    continue;
+                }
+                delivered += count;
+                if (delivered == length) {
+                    done = true;
+                    // Le reste de l'objet (trames suivantes, index) n'est pas lu.
+                    data.abort();
+                }
+                return from == 0 && count == frame.length ? frame : Arrays.copyOfRange(frame, from, from + count);
+            }
+            return null;
+        }
+
+        @Override
+        public void abort() {
+            if (data != null) {
+                data.abort();
+            }
+        }
+
+        private byte[] readFrame() throws IOException {
+            byte[] header = new byte[FRAME_HEADER];
+            if (!readFully(header, true)) {
+                return null;
+            }
+            ByteBuffer fields = ByteBuffer.wrap(header);
+            int rawLength = fields.getInt();
+            int storedLength = fields.getInt();
+            if (rawLength <= 0 || rawLength > FRAME_SIZE || storedLength <= 0 || storedLength > rawLength) {
+                throw new IOException("Trame invalide dans " + object);
+            }
+            byte[] stored = new byte[storedLength];
+            readFully(stored, false);
+            if (storedLength == rawLength) {
+                return stored;
+            }
+            return inflate(stored, 0, storedLength, rawLength, object);
+        }
+
+        // Renvoie false si l'objet se termine avant le premier octet et que c'est permis.
+        private boolean readFully(byte[] target, boolean endAllowed) throws IOException {
+            int position = 0;
+            while (position < target.length) {
+                if (chunkPosition == chunk.length) {
+                    byte[] next = data.nextData();
+                    if (next == null) {
+                        if (position == 0 && endAllowed) {
+                            return false;
+                        }
+                        throw new IOException("Fragment tronqué : " + object);
+                    }
+                    BufferPool.give(chunk);
+                    chunk = next;
+                    chunkPosition = 0;
+                }
+                int count = Math.min(target.length - position, chunk.length - chunkPosition);
+                System.arraycopy(chunk, chunkPosition, target, position, count);
+                chunkPosition += count;
+                position += count;
+            }
+            return true;
+        }
+
+        private byte[] read(long at, int count) throws IOException {
+            SubServerConnection.Exchange retrieve = connection.retrieve(object, at, count);
+            if (retrieve.awaitHeader() != count) {
+                retrieve.abort();
+                throw new IOException("Index de trames illisible : " + object);
+            }
+            byte[] bytes = new byte[count];
+            int position = 0;
+            byte[] block;
+            while ((block = retrieve.nextData()) != null) {
+                System.arraycopy(block, 0, bytes, position, block.length);
+                position += block.length;
+                BufferPool.give(block);
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.*;
+import java.util.*;
+
+// Téléchargement en flux : les fragments du manifeste sont demandés en parallèle sur les connexions
+// multiplexées, avec au plus PREFETCH_FRAGMENTS requêtes d'avance, puis recopiés dans l'ordre
+// directement sur la socket du client, sans fichier temporaire. La fenêtre de crédits du protocole
+// borne ce qui est mis en mémoire par fragment.
+public class FragmentDownloader {
+    private static final int PREFETCH_FRAGMENTS = 16;
+
+    // Écrit l'en-tête OK et la taille, puis le contenu. Le premier fragment est attendu avant de
+    // répondre, pour qu'un fichier dont le début manque donne une erreur et non un flux tronqué.
+    // Le contenu est aussi recopié dans copy s'il n'est pas null (remplissage du cache).
+    public static void stream(FileManifest manifest, DataOutputStream dos, OutputStream copy) throws IOException {
+        stream(manifest.fragments, () -> {
+            dos.writeUTF("OK");
+            dos.writeLong(manifest.size);
+        }, dos, copy);
+    }
+
+    // Plage [start, end) du fichier : seuls les morceaux de fragments qui la recouvrent sont demandés.
+    public static void streamRange(FileManifest manifest, long start, long end, Header header, DataOutputStream dos)
+            throws IOException {
+        stream(slice(manifest.fragments, start, end), header, dos, null);
+    }
+
+    // Plusieurs fichiers à la suite (RECEVOIR_LOT), chacun précédé de son nom : la fenêtre de
+    // lecture anticipée court d'un fichier au suivant, si bien que les petits fichiers sont demandés
+    // aux sous-serveurs bien avant d'être recopiés. Un fichier dont le début manque est remplacé par
+    // son message d'erreur et le lot continue ; une perte au milieu d'un fichier interrompt le flux.
+    public static void streamAll(List<FileManifest> manifests, DataOutputStream dos) throws IOException {
+        List<FileManifest.Fragment> fragments = new ArrayList<>();
+        for (FileManifest manifest : manifests) {
+            fragments.addAll(manifest.fragments);
+        }
+        ArrayDeque<ReplicaReader> window = new ArrayDeque<>();
+        int next = 0;
+        try {
+            for (FileManifest manifest : manifests) {
+                next = prefetch(fragments, next, window);
+                int count = manifest.fragments.size();
+                IOException missing = null;
+                if (count > 0) {
+                    try {
+                        window.peekFirst().awaitHeader();
+                    } catch (IOException e) {
+                        missing = e;
+                    }
+                }
+                dos.writeUTF(manifest.name);
+                if (missing != null) {
+                    dos.writeUTF("Fichier illisible : " + missing.getMessage());
+                    for (int i = 0; i < count; i++) {
+                        window.pollFirst().abort();
+                        next = prefetch(fragments, next, window);
+                    }
+                    continue;
+                }
+                dos.writeUTF("OK");
+                dos.writeLong(manifest.size);
+                for (int i = 0; i < count; i++) {
+                    ReplicaReader reader = window.peekFirst();
+                    if (i > 0) {
+                        reader.awaitHeader();
+                    }
+                    reader.copyTo(dos, null);
+                    window.pollFirst();
+                    next = prefetch(fragments, next, window);
+                }
+            }
+            dos.flush();
+        } catch (IOException e) {
+            for (ReplicaReader reader : window) {
+                reader.abort();
+            }
+            throw e;
+        }
+    }
+
+    private static int prefetch(List<FileManifest.Fragment> fragments, int next, ArrayDeque<ReplicaReader> window) {
+        while (next < fragments.size() && window.size() < PREFETCH_FRAGMENTS) {
+            window.add(new ReplicaReader(fragments.get(next++)));
+        }
+        return next;
+    }
+
+    static List<FileManifest.Fragment> slice(List<FileManifest.Fragment> fragments, long start, long end) {
+        List<FileManifest.Fragment> slice = new ArrayList<>();
+        long position = 0;
+        for (FileManifest.Fragment fragment : fragments) {
+            long from = Math.max(start, position);
+            long to = Math.min(end, position + fragment.length);
+            if (from < to) {
+                slice.add(new FileManifest.Fragment(fragment.object, fragment.objectOffset + (from - position),
+                        to - from, fragment.nodes, fragment.codec));
+            }
+            position += fragment.length;
+        }
+        return slice;
+    }
+
+    private static void stream(List<FileManifest.Fragment> fragments, Header header, DataOutputStream dos,
+                               OutputStream copy) throws IOException {
+        ArrayDeque<ReplicaReader> window = new ArrayDeque<>();
+        int next = 0;
+        try {
+            next = prefetch(fragments, next, window);
+            if (!window.isEmpty()) {
+                window.peekFirst().awaitHeader();
+            }
+
+            header.write();
+            for (int i = 0; i < fragments.size(); i++) {
+                ReplicaReader reader = window.peekFirst();
+                if (i > 0) {
+                    reader.awaitHeader();
+                }
+                reader.copyTo(dos, copy);
+                window.pollFirst();
+                next = prefetch(fragments, next, window);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            for (ReplicaReader reader : window) {
+                reader.abort();
+            }
+            throw e;
+        }
+    }
+
+    // En-tête de réponse, écrit une fois le début du contenu disponible.
+    public interface Header {
+        void write() throws IOException;
+    }
+
+    // Lecture d'un fragment sur la plus rapide de ses répliques joignables. Si elle échoue, la suite
+    // du fragment (à partir du dernier octet transmis) est redemandée à la réplique suivante.
+    private static class ReplicaReader {
+        private final FileManifest.Fragment fragment;
+        private final Iterator<ServerConfigLoader.SubServerInfo> candidates;
+        private FragmentCodec.RangeReader retrieve;
+        private ServerConfigLoader.SubServerInfo node;
+        private long delivered;
+        private IOException lastFailure;
+
+        ReplicaReader(FileManifest.Fragment fragment) {
+            this.fragment = fragment;
+            this.candidates = SubServerPool.rankReplicas(fragment.nodeInfos()).iterator();
+            openNext();
+        }
+
+        private void openNext() {
+            retrieve = null;
+            while (retrieve == null && candidates.hasNext()) {
+                node = candidates.next();
+                try {
+                    retrieve = FragmentCodec.retrieve(SubServerPool.acquire(node), fragment.object, fragment.codec,
+                            fragment.objectOffset + delivered, fragment.length - delivered);
+                } catch (IOException e) {
+                    lastFailure = e;
+                }
+            }
+        }
+
+        void awaitHeader() throws IOException {
+            while (retrieve != null) {
+                long expected = fragment.length - delivered;
+                try {
+                    long length = retrieve.awaitHeader();
+                    if (length == expected) {
+                        return;
+                    }
+                    retrieve.abort();
+                    lastFailure = new IOException(length < 0
+                            ? "Fragment introuvable : " + fragment.object
+                            : "Fragment incomplet : " + fragment.object + " (" + length + " octets au lieu de " + expected + ")");
+                } catch (IOException e) {
+                    lastFailure = e;
+                }
+                failOver();
+            }
+            throw lastFailure != null ? lastFailure : new IOException("Aucune réplique pour " + fragment.object);
+        }
+
+        // Seules les erreurs côté sous-serveur déclenchent un changement de réplique ; une erreur
+        // d'écriture vers le client est remontée telle quelle.
+        // Le débit obtenu de la réplique alimente la taille des tampons de son lien.
+        void copyTo(DataOutputStream dos, OutputStream copy) throws IOException {
+            long started = System.nanoTime();
+            long from = delivered;
+            while (true) {
+                byte[] data;
+                try {
+                    data = retrieve.nextData();
+                } catch (IOException e) {
+                    lastFailure = e;
+                    failOver();
+                    awaitHeader();
+                    started = System.nanoTime();
+                    from = delivered;
+                    continue;
+                }
+                if (data == null) {
+                    LinkTuning.recordTransfer(node.address(), delivered - from, System.nanoTime() - started);
+                    return;
+                }
+                dos.write(data);
+                if (copy != null) {
+                    copy.write(data);
+                }
+                delivered += data.length;
+                if (fragment.codec == FragmentCodec.NONE) {
+                    // Trame brute du sous-serveur, déjà recopiée : son tableau retourne à la réserve.
+                    BufferPool.give(data);
+                }
+            }
+        }
+
+        private void failOver() {
+            Metrics.fragmentFailure("lecture", node.address());
+            Log.error("Réplique de " + fragment.object + " indisponible sur " + node.address()
+                    + " : " + lastFailure.getMessage());
+            openNext();
+        }
+
+        void abort() {
+            if (retrieve != null) {
+                retrieve.abort();
+            }
+        }
+    }
+}
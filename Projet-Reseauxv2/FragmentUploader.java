@@ -0,0 +1,281 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Envoi pipeliné des fragments : le flux du client est découpé en blocs placés dans une file
+// bornée par réplique, et chaque réplique est écrite par son propre thread sur une connexion
+// multiplexée de SubServerPool.
+// Le fichier est réparti par bandes de STRIPE_BYTES au plus, tour à tour sur chaque « .partN » :
+// pendant la lecture du flux, toutes les files sont alimentées et tous les sous-serveurs écrivent
+// en même temps, au lieu d'attendre que le flux atteigne la plage de leur fragment.
+// Le volume en circulation est borné : un sous-serveur lent bloque le producteur. Les blocs ont la
+// taille de tampon choisie pour le plus lent des liens concernés (LinkTuning) et leurs tableaux
+// reviennent à BufferPool une fois écrits sur toutes les répliques.
+public class FragmentUploader {
+    private static final int QUEUE_BYTES = 1024 * 1024;
+    // Une bande remplit au plus la file d'un fragment : le producteur passe au fragment suivant
+    // pendant que le précédent vide la sienne.
+    private static final long STRIPE_BYTES = QUEUE_BYTES;
+    private static final Block END_OF_FRAGMENT = new Block(new byte[0], 0, 0);
+
+    private static final ExecutorService WRITERS = ClientExecutors.newWorkerPool("fragment-writer");
+
+    public static void distribute(DataInputStream dis, String fileName, long fileSize,
+                                  List<ServerConfigLoader.SubServerInfo> subServers) throws IOException {
+        PlacementRing ring = new PlacementRing(subServers, ServerConfigLoader.getRingVirtualNodes(),
+                ServerConfigLoader.getReplicationFactor());
+        distribute(dis, fileName, splitLayout(FileManifest.uploadPrefix(fileName), fileSize, subServers.size(), ring));
+    }
+
+    // Un objet « <objectPrefix>.partN » par fragment, placé sur l'anneau avec ses répliques ; sa
+    // longueur est la somme des bandes qui lui reviennent. Un petit fichier n'a qu'une bande par objet.
+    public static List<FileManifest.Fragment> splitLayout(String objectPrefix, long fileSize, int fragmentCount,
+                                                          PlacementRing ring) {
+        long[] lengths = new long[fragmentCount];
+        long unit = stripeUnit(fileSize, fragmentCount);
+        int next = 0;
+        for (long position = 0; position < fileSize; position += unit) {
+            lengths[next] += Math.min(unit, fileSize - position);
+            next = (next + 1) % fragmentCount;
+        }
+        List<FileManifest.Fragment> layout = new ArrayList<>(fragmentCount);
+        for (int i = 0; i < fragmentCount; i++) {
+            String object = objectPrefix + ".part" + i;
+            List<String> nodes = new ArrayList<>();
+            for (ServerConfigLoader.SubServerInfo node : ring.placementFor(object)) {
+                nodes.add(node.address());
+            }
+            layout.add(new FileManifest.Fragment(object, 0, lengths[i], nodes));
+        }
+        return layout;
+    }
+
+    private static long stripeUnit(long fileSize, int fragmentCount) {
+        return Math.max(1, Math.min(STRIPE_BYTES, (fileSize + fragmentCount - 1) / fragmentCount));
+    }
+
+    // Les bandes sont lues dans l'ordre sur le flux du client et chaque bloc est remis à toutes les
+    // répliques de son fragment. Renvoie les fragments du manifeste, une entrée par bande (objet,
+    // position dans l'objet, longueur). Une réplique en échec est retirée de son objet (le
+    // rééquilibrage la recréera), tant qu'il en reste au moins une.
+    public static List<FileManifest.Fragment> distribute(DataInputStream dis, String fileName,
+                                                         List<FileManifest.Fragment> layout) throws IOException {
+        int fragmentCount = layout.size();
+        long fileSize = 0;
+        for (FileManifest.Fragment fragment : layout) {
+            fileSize += fragment.length;
+        }
+        long unit = stripeUnit(fileSize, fragmentCount);
+        int blockSize = blockSize(layout);
+        int queueCapacity = Math.max(2, QUEUE_BYTES / blockSize);
+        List<List<BlockingQueue<Block>>> queues = new ArrayList<>(fragmentCount);
+        List<List<Future<?>>> writers = new ArrayList<>(fragmentCount);
+        for (FileManifest.Fragment fragment : layout) {
+            List<BlockingQueue<Block>> replicaQueues = new ArrayList<>();
+            List<Future<?>> replicaWriters = new ArrayList<>();
+            for (ServerConfigLoader.SubServerInfo target : fragment.nodeInfos()) {
+                BlockingQueue<Block> queue = new ArrayBlockingQueue<>(queueCapacity);
+                replicaQueues.add(queue);
+                replicaWriters.add(WRITERS.submit(() -> {
+                    writeFragment(target, fragment.object, queue);
+                    return null;
+                }));
+            }
+            queues.add(replicaQueues);
+            writers.add(replicaWriters);
+        }
+
+        FragmentCodec.Encoder[] encoders = new FragmentCodec.Encoder[fragmentCount];
+        for (int i = 0; i < fragmentCount; i++) {
+            encoders[i] = FragmentCodec.encoder();
+        }
+        // Bandes dans l'ordre du fichier : objet et position dans l'objet.
+        List<long[]> stripes = new ArrayList<>();
+        long[] objectOffsets = new long[fragmentCount];
+        byte[] codecs = new byte[fragmentCount];
+        try {
+            int object = 0;
+            for (long position = 0; position < fileSize; position += unit) {
+                long length = Math.min(unit, fileSize - position);
+                produceStripe(dis, length, blockSize, encoders[object], queues.get(object));
+                stripes.add(new long[]{object, objectOffsets[object], length});
+                objectOffsets[object] += length;
+                object = (object + 1) % fragmentCount;
+            }
+            for (int i = 0; i < fragmentCount; i++) {
+                codecs[i] = endFragment(encoders[i], queues.get(i));
+            }
+        } catch (IOException e) {
+            cancelWriters(writers);
+            throw e;
+        } catch (InterruptedException e) {
+            cancelWriters(writers);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Envoi interrompu : " + fileName);
+        }
+
+        List<FileManifest.Fragment> stored = awaitWriters(layout, codecs, writers, fileName);
+        List<FileManifest.Fragment> fragments = new ArrayList<>(stripes.size());
+        for (long[] stripe : stripes) {
+            FileManifest.Fragment fragment = stored.get((int) stripe[0]);
+            fragments.add(new FileManifest.Fragment(fragment.object, stripe[1], stripe[2], fragment.nodes,
+                    fragment.codec));
+        }
+        return fragments;
+    }
+
+    // Une trame du protocole au plus, pour que chaque bloc parte d'un seul tenant.
+    private static int blockSize(List<FileManifest.Fragment> layout) {
+        int size = MuxProtocol.DATA_FRAME_SIZE;
+        for (FileManifest.Fragment fragment : layout) {
+            for (String node : fragment.nodes) {
+                size = Math.min(size, LinkTuning.bufferSize(node));
+            }
+        }
+        return size;
+    }
+
+    // Les répliques partagent le même tableau, qu'aucun rédacteur ne modifie. Les blocs passent par
+    // l'encodeur du fragment, qui le compresse si son premier bloc s'y prête.
+    private static void produceStripe(DataInputStream dis, long bytesToSend, int blockSize,
+                                      FragmentCodec.Encoder encoder, List<BlockingQueue<Block>> queues)
+            throws IOException, InterruptedException {
+        long bytesRead = 0;
+        while (bytesRead < bytesToSend) {
+            int length = (int) Math.min(blockSize, bytesToSend - bytesRead);
+            byte[] data = BufferPool.take(length);
+            dis.readFully(data, 0, length);
+            byte[] encoded = encoder.encode(data, 0, length);
+            if (encoded != data) {
+                BufferPool.give(data);
+            }
+            if (encoded.length > 0) {
+                put(queues, encoded);
+            }
+            bytesRead += length;
+        }
+    }
+
+    // Fin du fragment : pied de page de l'encodeur puis fin de file ; renvoie le codec retenu.
+    private static byte endFragment(FragmentCodec.Encoder encoder, List<BlockingQueue<Block>> queues)
+            throws InterruptedException {
+        byte[] trailer = encoder.finish();
+        if (trailer.length > 0) {
+            put(queues, trailer);
+        }
+        for (BlockingQueue<Block> queue : queues) {
+            queue.put(END_OF_FRAGMENT);
+        }
+        return encoder.codec();
+    }
+
+    // put() bloque tant que le sous-serveur n'a pas consommé les blocs précédents.
+    private static void put(List<BlockingQueue<Block>> queues, byte[] data) throws InterruptedException {
+        Block block = new Block(data, data.length, queues.size());
+        for (BlockingQueue<Block> queue : queues) {
+            queue.put(block);
+        }
+    }
+
+    private static void writeFragment(ServerConfigLoader.SubServerInfo target, String fragmentName,
+                                      BlockingQueue<Block> queue) throws Exception {
+        SubServerConnection.Exchange store = null;
+        boolean ended = false;
+        long started = System.nanoTime();
+        long written = 0;
+        try {
+            store = SubServerPool.acquire(target).store(fragmentName);
+            Block block;
+            while ((block = queue.take()) != END_OF_FRAGMENT) {
+                store.write(block.data, 0, block.length);
+                written += block.length;
+                block.release();
+            }
+            ended = true;
+            // Le client ne reçoit son OK qu'une fois chaque fragment réellement stocké.
+            store.finish();
+            LinkTuning.recordTransfer(target.address(), written, System.nanoTime() - started);
+        } catch (IOException e) {
+            if (store != null) {
+                store.abort();
+            }
+            // On continue à vider la file pour que le producteur reste synchronisé avec le client.
+            Block block;
+            while (!ended && (block = queue.take()) != END_OF_FRAGMENT) {
+                block.release();
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            // Envoi abandonné par le producteur (client déconnecté) : le fichier temporaire du
+            // sous-serveur ne doit pas rester ouvert.
+            if (store != null) {
+                store.abort();
+            }
+            throw e;
+        }
+    }
+
+    private static void cancelWriters(List<List<Future<?>>> writers) {
+        for (List<Future<?>> replicaWriters : writers) {
+            for (Future<?> writer : replicaWriters) {
+                writer.cancel(true);
+            }
+        }
+    }
+
+    private static List<FileManifest.Fragment> awaitWriters(List<FileManifest.Fragment> layout, byte[] codecs,
+                                                            List<List<Future<?>>> writers, String fileName)
+            throws IOException {
+        List<FileManifest.Fragment> stored = new ArrayList<>(layout.size());
+        IOException failure = null;
+        for (int i = 0; i < layout.size(); i++) {
+            FileManifest.Fragment fragment = layout.get(i);
+            List<String> nodes = new ArrayList<>();
+            Throwable cause = null;
+            for (int r = 0; r < fragment.nodes.size(); r++) {
+                try {
+                    writers.get(i).get(r).get();
+                    nodes.add(fragment.nodes.get(r));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Envoi interrompu : " + fileName);
+                } catch (ExecutionException e) {
+                    cause = e.getCause();
+                    Metrics.fragmentFailure("ecriture", fragment.nodes.get(r));
+                    Log.error("Réplique de " + fragment.object + " non écrite sur " + fragment.nodes.get(r)
+                            + " : " + cause.getMessage());
+                }
+            }
+            if (nodes.isEmpty() && failure == null) {
+                failure = new IOException("Échec de l'envoi d'un fragment de " + fileName + " : "
+                        + cause.getMessage(), cause);
+            }
+            stored.add(new FileManifest.Fragment(fragment.object, fragment.objectOffset, fragment.length, nodes,
+                    codecs[i]));
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return stored;
+    }
+
+    private static class Block {
+        final byte[] data;
+        final int length;
+        private final AtomicInteger readers;
+
+        Block(byte[] data, int length, int readers) {
+            this.data = data;
+            this.length = length;
+            this.readers = new AtomicInteger(readers);
+        }
+
+        // Le dernier rédacteur à en avoir fini avec le bloc rend son tableau.
+        void release() {
+            if (readers.decrementAndGet() == 0) {
+                BufferPool.give(data);
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Cache des fichiers les plus demandés, déjà réassemblés, devant les sous-serveurs. Le contenu est
+// rangé dans des pages de taille fixe prises dans une zone allouée une fois pour toutes (tas, hors
+// tas ou fichier projeté en mémoire selon cache_memory) : pas d'allocation par fichier, et rien à
+// parcourir pour le ramasse-miettes en mode offheap ou mmap.
+// Éviction LRU, avec admission TinyLFU : un nouveau fichier n'entre que s'il est demandé plus souvent
+// que ceux qu'il évincerait, d'après un sketch de fréquences approximatif et vieillissant.
+public class HotFileCache {
+    private static final int PAGE_SIZE = 64 * 1024;
+    private static final int ARENA_PAGES = 16 * 1024;
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[PAGE_SIZE]);
+
+    private static final long CAPACITY = ServerConfigLoader.getCacheSizeBytes();
+    private static final long MAX_ENTRY = Math.min(CAPACITY, ServerConfigLoader.getCacheMaxEntryBytes());
+    private static final ByteBuffer[] ARENAS = allocateArenas(ServerConfigLoader.getCacheMemory(),
+            (int) (CAPACITY / PAGE_SIZE));
+
+    private static final ArrayDeque<Integer> FREE_PAGES = new ArrayDeque<>();
+    // Ordre d'accès : la première entrée est la moins récemment lue.
+    private static final LinkedHashMap<String, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+    private static final FrequencySketch FREQUENCIES = new FrequencySketch(Math.max(64, (int) (CAPACITY / PAGE_SIZE)));
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+    private static final AtomicLong REJECTIONS = new AtomicLong();
+
+    static {
+        int pages = 0;
+        for (ByteBuffer arena : ARENAS) {
+            pages += arena.capacity() / PAGE_SIZE;
+        }
+        for (int page = 0; page < pages; page++) {
+            FREE_PAGES.add(page);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return ARENAS.length > 0;
+    }
+
+    // Écrit « OK », la taille puis le contenu si la version courante du fichier est en cache.
+    public static boolean serve(FileManifest manifest, DataOutputStream dos) throws IOException {
+        return serveRange(manifest, 0, manifest.size, () -> {
+            dos.writeUTF("OK");
+            dos.writeLong(manifest.size);
+        }, dos);
+    }
+
+    // Le fichier est-il en cache dans cette version, sans compter de lecture.
+    public static synchronized boolean contains(FileManifest manifest) {
+        Entry entry = ENTRIES.get(manifest.name);
+        return entry != null && entry.createdAt == manifest.createdAt;
+    }
+
+    // Plage [start, end) du fichier, précédée de l'en-tête donné.
+    public static boolean serveRange(FileManifest manifest, long start, long end, FragmentDownloader.Header header,
+                                     DataOutputStream dos) throws IOException {
+        Entry entry;
+        synchronized (HotFileCache.class) {
+            if (start == 0) {
+                FREQUENCIES.increment(manifest.name);
+            }
+            entry = ENTRIES.get(manifest.name);
+            if (entry == null || entry.createdAt != manifest.createdAt) {
+                MISSES.incrementAndGet();
+                return false;
+            }
+            entry.readers++;
+        }
+        HITS.incrementAndGet();
+        try {
+            header.write();
+            byte[] scratch = SCRATCH.get();
+            for (long position = start; position < end; ) {
+                int pageOffset = (int) (position % PAGE_SIZE);
+                int length = (int) Math.min(PAGE_SIZE - pageOffset, end - position);
+                ByteBuffer buffer = page(entry.pages[(int) (position / PAGE_SIZE)]);
+                if (buffer.hasArray()) {
+                    dos.write(buffer.array(), buffer.arrayOffset() + pageOffset, length);
+                } else {
+                    buffer.position(pageOffset).get(scratch, 0, length);
+                    dos.write(scratch, 0, length);
+                }
+                position += length;
+            }
+            dos.flush();
+        } finally {
+            synchronized (HotFileCache.class) {
+                entry.readers--;
+                releaseIfUnused(entry);
+            }
+        }
+        return true;
+    }
+
+    // Prépare la copie d'un fichier lu depuis les sous-serveurs, ou null s'il n'est pas admis.
+    public static Fill beginFill(FileManifest manifest) {
+        if (!isEnabled() || manifest.size > MAX_ENTRY) {
+            return null;
+        }
+        int needed = (int) ((manifest.size + PAGE_SIZE - 1) / PAGE_SIZE);
+        synchronized (HotFileCache.class) {
+            if (!makeRoom(manifest.name, needed)) {
+                REJECTIONS.incrementAndGet();
+                return null;
+            }
+            int[] pages = new int[needed];
+            for (int i = 0; i < needed; i++) {
+                pages[i] = FREE_PAGES.poll();
+            }
+            return new Fill(new Entry(manifest.name, manifest.size, manifest.createdAt, pages));
+        }
+    }
+
+    // Appelé sur SUPPRIMER et sur un nouvel ENVOYER du même nom.
+    public static synchronized void invalidate(String name) {
+        Entry entry = ENTRIES.remove(name);
+        if (entry != null) {
+            entry.removed = true;
+            releaseIfUnused(entry);
+        }
+    }
+
+    public static String statistics() {
+        synchronized (HotFileCache.class) {
+            long used = 0;
+            for (Entry entry : ENTRIES.values()) {
+                used += entry.size;
+            }
+            return "Cache : " + HITS.get() + " succès, " + MISSES.get() + " échecs, " + EVICTIONS.get()
+                    + " évictions, " + REJECTIONS.get() + " refus, " + ENTRIES.size() + " fichiers, "
+                    + used + "/" + CAPACITY + " octets";
+        }
+    }
+
+    public static long hits() {
+        return HITS.get();
+    }
+
+    public static long misses() {
+        return MISSES.get();
+    }
+
+    public static long evictions() {
+        return EVICTIONS.get();
+    }
+
+    // Libère assez de pages pour le candidat en évinçant les entrées les moins récentes, tant que
+    // le candidat est plus fréquent qu'elles. Rien n'est évincé si l'admission échoue.
+    private static boolean makeRoom(String candidate, int needed) {
+        int available = FREE_PAGES.size();
+        if (available >= needed) {
+            return true;
+        }
+        int candidateFrequency = FREQUENCIES.frequency(candidate);
+        List<Entry> victims = new ArrayList<>();
+        for (Entry entry : ENTRIES.values()) {
+            if (available >= needed) {
+                break;
+            }
+            if (!entry.name.equals(candidate) && FREQUENCIES.frequency(entry.name) >= candidateFrequency) {
+                return false;
+            }
+            victims.add(entry);
+            // Les pages d'une entrée en cours de lecture ne seront rendues qu'à la fin de la lecture.
+            if (entry.readers == 0) {
+                available += entry.pages.length;
+            }
+        }
+        if (available < needed) {
+            return false;
+        }
+        for (Entry victim : victims) {
+            ENTRIES.remove(victim.name);
+            victim.removed = true;
+            releaseIfUnused(victim);
+            EVICTIONS.incrementAndGet();
+        }
+        return true;
+    }
+
+    private static void releaseIfUnused(Entry entry) {
+        if (entry.removed && entry.readers == 0 && !entry.released) {
+            entry.released = true;
+            for (int page : entry.pages) {
+                FREE_PAGES.add(page);
+            }
+        }
+    }
+
+    private static ByteBuffer page(int page) {
+        ByteBuffer arena = ARENAS[page / ARENA_PAGES];
+        int offset = (page % ARENA_PAGES) * PAGE_SIZE;
+        return arena.duplicate().position(offset).limit(offset + PAGE_SIZE).slice();
+    }
+
+    private static ByteBuffer[] allocateArenas(String memory, int pages) {
+        if (pages <= 0) {
+            return new ByteBuffer[0];
+        }
+        List<ByteBuffer> arenas = new ArrayList<>();
+        try (FileChannel file = "mmap".equals(memory) ? openMappedFile() : null) {
+            for (int first = 0; first < pages; first += ARENA_PAGES) {
+                int size = Math.min(ARENA_PAGES, pages - first) * PAGE_SIZE;
+                if (file != null) {
+                    arenas.add(file.map(FileChannel.MapMode.READ_WRITE, (long) first * PAGE_SIZE, size));
+                } else if ("heap".equals(memory)) {
+                    arenas.add(ByteBuffer.allocate(size));
+                } else {
+                    arenas.add(ByteBuffer.allocateDirect(size));
+                }
+            }
+        } catch (IOException | OutOfMemoryError e) {
+            Log.error("Cache désactivé : impossible de réserver " + ((long) pages * PAGE_SIZE)
+                    + " octets (" + e.getMessage() + ")");
+            return new ByteBuffer[0];
+        }
+        return arenas.toArray(new ByteBuffer[0]);
+    }
+
+    private static FileChannel openMappedFile() throws IOException {
+        Path path = Paths.get(ServerConfigLoader.getServerDirectory(), "cache.mmap");
+        Files.createDirectories(path.getParent());
+        File file = path.toFile();
+        file.deleteOnExit();
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static class Entry {
+        final String name;
+        final long size;
+        final long createdAt;
+        final int[] pages;
+        int readers;
+        boolean removed;
+        boolean released;
+
+        Entry(String name, long size, long createdAt, int[] pages) {
+            this.name = name;
+            this.size = size;
+            this.createdAt = createdAt;
+            this.pages = pages;
+        }
+    }
+
+    // Copie du contenu envoyé au client. L'entrée n'est publiée que si le fichier a été copié en
+    // entier ; sinon ses pages sont rendues.
+    public static class Fill extends OutputStream {
+        private final Entry entry;
+        private long written;
+        private boolean closed;
+
+        Fill(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            if (closed || written + length > entry.size) {
+                return;
+            }
+            while (length > 0) {
+                int pageOffset = (int) (written % PAGE_SIZE);
+                int chunk = Math.min(length, PAGE_SIZE - pageOffset);
+                page(entry.pages[(int) (written / PAGE_SIZE)]).position(pageOffset).put(data, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+                written += chunk;
+            }
+        }
+
+        public void commit() {
+            synchronized (HotFileCache.class) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (written != entry.size) {
+                    entry.removed = true;
+                    releaseIfUnused(entry);
+                    return;
+                }
+                Entry previous = ENTRIES.put(entry.name, entry);
+                if (previous != null) {
+                    previous.removed = true;
+                    releaseIfUnused(previous);
+                }
+            }
+        }
+
+        public void abort() {
+            synchronized (HotFileCache.class) {
+                if (!closed) {
+                    closed = true;
+                    entry.removed = true;
+                    releaseIfUnused(entry);
+                }
+            }
+        }
+    }
+
+    // Sketch count-min à compteurs de 4 bits : quatre compteurs par clé, la fréquence estimée est le
+    // plus petit. Tous les compteurs sont divisés par deux après un certain nombre d'accès, pour que
+    // les fichiers autrefois populaires laissent la place.
+    private static class FrequencySketch {
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int size = Integer.highestOneBit(Math.max(16, expectedEntries * 4) - 1) << 1;
+            this.table = new long[size / 16];
+            this.sampleSize = 10 * expectedEntries;
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                frequency = Math.min(frequency, counter(indexOf(hash, i)));
+            }
+            return frequency;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                if (counter(index) < 15) {
+                    table[index >>> 4] += 1L << ((index & 15) << 2);
+                }
+            }
+            if (++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int counter(int index) {
+            return (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 15);
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + (long) i * 0x9E3779B9L) * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 40) & (table.length * 16 - 1);
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.net.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Réglage des liens réseau : options des sockets (TCP_NODELAY, tampons du noyau) et taille des
+// tampons de copie de chaque lien. Cette taille suit le produit débit × aller-retour mesuré sur le
+// lien, arrondi à la puissance de deux supérieure et borné entre chunk_kb et chunk_max_kb ; un lien
+// jamais mesuré part de chunk_kb. Un lien est désigné par « hôte:port » ou par l'adresse du client.
+public class LinkTuning {
+    private static final int MIN_BUFFER = ServerConfigLoader.getChunkSize();
+    private static final int MAX_BUFFER = Math.max(MIN_BUFFER, ServerConfigLoader.getMaxChunkSize());
+    private static final int SOCKET_BUFFER = ServerConfigLoader.getSocketBufferSize();
+    private static final boolean TCP_NODELAY = ServerConfigLoader.isTcpNoDelay();
+    // Aller-retour retenu quand il est inconnu ou plus court : un tampon couvre au moins une
+    // milliseconde de transfert au débit mesuré, ce qui amortit les appels système en local.
+    private static final long MIN_ROUND_TRIP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final ConcurrentHashMap<String, Link> LINKS = new ConcurrentHashMap<>();
+
+    // Une série par sous-serveur configuré ; les liens vers les clients, aussi nombreux que leurs
+    // adresses, sont regroupés en une seule série (moyenne de leurs tampons).
+    static {
+        Metrics.gauge("lien_tampon_octets", "Taille des tampons de copie choisie pour le lien",
+                LinkTuning::averageClientBufferSize, "lien", "clients");
+    }
+
+    // Les petites trames du protocole (en-têtes, OK, fin) partent tout de suite au lieu d'attendre
+    // l'acquittement de la précédente (algorithme de Nagle contre ACK retardé : ~40 ms par échange).
+    public static void configure(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(TCP_NODELAY);
+        if (SOCKET_BUFFER > 0) {
+            socket.setSendBufferSize(SOCKET_BUFFER);
+            socket.setReceiveBufferSize(SOCKET_BUFFER);
+        }
+    }
+
+    // Avant bind() : la fenêtre de réception des connexions acceptées est négociée à leur ouverture.
+    public static void configure(ServerSocket serverSocket) throws SocketException {
+        if (SOCKET_BUFFER > 0) {
+            serverSocket.setReceiveBufferSize(SOCKET_BUFFER);
+        }
+    }
+
+    public static String link(Socket socket) {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    // Tampons des flux bufferisés : ils ne font que regrouper les petites écritures (en-têtes,
+    // réponses), une écriture plus grande qu'eux allant directement à la socket. Agrandis comme les
+    // tampons de copie, ils ajouteraient une recopie des trames de 256 Ko sans gagner d'appel système.
+    public static int streamBufferSize() {
+        return MIN_BUFFER;
+    }
+
+    public static int bufferSize(String link) {
+        Link stats = LINKS.get(link);
+        return stats == null ? MIN_BUFFER : stats.bufferSize;
+    }
+
+    // Un transfert plus court qu'un tampon mesure surtout la latence : il n'entre pas dans le débit.
+    public static void recordTransfer(String link, long bytes, long nanos) {
+        if (bytes >= MIN_BUFFER && nanos > 0) {
+            stats(link).recordThroughput(bytes * 1e9 / nanos);
+        }
+    }
+
+    // Établissement d'une connexion ou PING : un aller-retour.
+    public static void recordRoundTrip(String link, long nanos) {
+        if (nanos > 0) {
+            stats(link).recordRoundTrip(nanos);
+        }
+    }
+
+    private static Link stats(String link) {
+        return LINKS.computeIfAbsent(link, LinkTuning::newLink);
+    }
+
+    private static Link newLink(String link) {
+        boolean subServer = false;
+        for (ServerConfigLoader.SubServerInfo node : ServerConfigLoader.getSubServers()) {
+            subServer |= node.address().equals(link);
+        }
+        Link stats = new Link(subServer);
+        if (subServer) {
+            Metrics.gauge("lien_tampon_octets", "Taille des tampons de copie choisie pour le lien",
+                    () -> stats.bufferSize, "lien", link);
+        }
+        return stats;
+    }
+
+    private static long averageClientBufferSize() {
+        long total = 0;
+        int count = 0;
+        for (Link stats : LINKS.values()) {
+            if (!stats.subServer) {
+                total += stats.bufferSize;
+                count++;
+            }
+        }
+        return count == 0 ? MIN_BUFFER : total / count;
+    }
+
+    private static class Link {
+        // Moyennes glissantes, comme la latence de SubServerPool.
+        private double bytesPerSecond;
+        private long roundTripNanos;
+        volatile int bufferSize = MIN_BUFFER;
+        final boolean subServer;
+
+        Link(boolean subServer) {
+            this.subServer = subServer;
+        }
+
+        synchronized void recordThroughput(double sample) {
+            bytesPerSecond = bytesPerSecond == 0 ? sample : bytesPerSecond + (sample - bytesPerSecond) / 8;
+            resize();
+        }
+
+        synchronized void recordRoundTrip(long sample) {
+            roundTripNanos = roundTripNanos == 0 ? sample : roundTripNanos + (sample - roundTripNanos) / 8;
+            resize();
+        }
+
+        private void resize() {
+            double window = bytesPerSecond * Math.max(roundTripNanos, MIN_ROUND_TRIP_NANOS) / 1e9;
+            int size = MIN_BUFFER;
+            while (size < MAX_BUFFER && size < window) {
+                size <<= 1;
+            }
+            bufferSize = Math.min(size, MAX_BUFFER);
+        }
+    }
+}
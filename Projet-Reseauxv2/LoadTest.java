@@ -0,0 +1,164 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Banc de charge du serveur principal : démarre les sous-serveurs de servers_config.txt, puis pour
+// chaque mode d'exécution un serveur principal sur un port libre, et lance N clients simultanés
+// qui font chacun un ENVOYER puis un RECEVOIR ; les latences sont données par commande.
+// À lancer dans un répertoire de travail jetable.
+// Usage : java LoadTest [clients] [taille en Ko] [tours par client] [modes séparés par des virgules]
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int fileSize = (args.length > 1 ? Integer.parseInt(args[1]) : 64) * 1024;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String[] modes = (args.length > 3 ? args[3] : "cached,bounded,virtual").split(",");
+
+        PrintStream console = System.out;
+        // Les traces du serveur fausseraient la mesure.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        MainServer.startSubServers();
+        Thread.sleep(500);
+
+        byte[] content = new byte[fileSize];
+        new Random(7).nextBytes(content);
+
+        console.printf("%d clients, %d Ko, %d tours par client%n", clients, fileSize / 1024, rounds);
+        console.printf("%-8s %-9s %10s %10s %10s %10s %8s%n", "mode", "commande", "p50 (ms)", "p99 (ms)",
+                "max (ms)", "op/s", "échecs");
+        for (String mode : modes) {
+            ExecutorService threadPool = ClientExecutors.create(mode.trim());
+            try (ServerSocket serverSocket = new ServerSocket(0)) {
+                Thread acceptor = new Thread(() -> {
+                    try {
+                        MainServer.acceptClients(serverSocket, threadPool);
+                    } catch (IOException e) {
+                        // socket fermée en fin de mode
+                    }
+                });
+                acceptor.setDaemon(true);
+                acceptor.start();
+
+                Result result = run(serverSocket.getLocalPort(), mode.trim(), clients, rounds, content);
+                for (String command : Result.COMMANDS) {
+                    Latencies latencies = result.of(command);
+                    console.printf("%-8s %-9s %10.2f %10.2f %10.2f %10.1f %8d%n", mode.trim(), command,
+                            latencies.percentile(0.50), latencies.percentile(0.99), latencies.percentile(1.0),
+                            latencies.operations / result.seconds, latencies.failures);
+                }
+            } finally {
+                threadPool.shutdownNow();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Result run(int port, String mode, int clients, int rounds, byte[] content) throws Exception {
+        Result result = new Result();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            String fileName = "loadtest-" + mode + "-" + i;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int round = 0; round < rounds; round++) {
+                        long begin = System.nanoTime();
+                        boolean ok = upload(port, fileName, content);
+                        result.of("ENVOYER").record(System.nanoTime() - begin, ok);
+
+                        begin = System.nanoTime();
+                        ok = download(port, fileName, content.length);
+                        result.of("RECEVOIR").record(System.nanoTime() - begin, ok);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        result.seconds = (System.nanoTime() - begin) / 1e9;
+        return result;
+    }
+
+    private static boolean upload(int port, String fileName, byte[] content) {
+        try (Socket socket = new Socket("127.0.0.1", port);
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+            dos.writeUTF("ENVOYER");
+            dos.writeUTF(fileName);
+            dos.writeLong(content.length);
+            dos.write(content);
+            dos.flush();
+            return "OK".equals(dis.readUTF());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean download(int port, String fileName, long expectedSize) {
+        try (Socket socket = new Socket("127.0.0.1", port);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            dos.writeUTF("RECEVOIR");
+            dos.writeUTF(fileName);
+            if (!"OK".equals(dis.readUTF()) || dis.readLong() != expectedSize) {
+                return false;
+            }
+            dis.skipNBytes(expectedSize);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Latences par commande : un ENVOYER et un RECEVOIR n'ont pas le même coût, leurs centiles
+    // mélangés ne décriraient ni l'un ni l'autre.
+    private static class Result {
+        static final List<String> COMMANDS = List.of("ENVOYER", "RECEVOIR");
+        private final Map<String, Latencies> byCommand = new HashMap<>();
+        double seconds;
+
+        Result() {
+            for (String command : COMMANDS) {
+                byCommand.put(command, new Latencies());
+            }
+        }
+
+        Latencies of(String command) {
+            return byCommand.get(command);
+        }
+    }
+
+    private static class Latencies {
+        private final List<Long> latencies = new ArrayList<>();
+        int operations;
+        int failures;
+
+        synchronized void record(long nanos, boolean ok) {
+            if (ok) {
+                latencies.add(nanos);
+                operations++;
+            } else {
+                failures++;
+            }
+        }
+
+        synchronized double percentile(double p) {
+            if (latencies.isEmpty()) {
+                return 0;
+            }
+            Collections.sort(latencies);
+            int index = (int) Math.ceil(p * latencies.size()) - 1;
+            return latencies.get(Math.max(0, index)) / 1e6;
+        }
+    }
+}
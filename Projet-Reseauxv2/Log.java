@@ -0,0 +1,91 @@
+import java.io.PrintStream;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Journal asynchrone du serveur : les threads de transfert déposent leurs messages dans une file
+// sans verrou et un thread d'écriture les envoie par lots sur la sortie standard (ou d'erreur),
+// avec un seul appel à println par lot au lieu d'un par message.
+// Au-delà de LOG_CAPACITY messages en attente, les nouveaux messages sont comptés puis abandonnés
+// plutôt que de ralentir les transferts.
+public class Log {
+    private static final int LOG_CAPACITY = 65_536;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static final ConcurrentLinkedQueue<Entry> QUEUE = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger PENDING = new AtomicInteger();
+    private static final Metrics.Counter DROPPED = Metrics.counter("journal_messages_perdus_total",
+            "Messages abandonnés, file du journal pleine");
+
+    static {
+        Metrics.gauge("journal_file_attente", "Messages du journal en attente d'écriture", PENDING::get);
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    public static void info(String message) {
+        enqueue(false, message);
+    }
+
+    public static void error(String message) {
+        enqueue(true, message);
+    }
+
+    private static void enqueue(boolean error, String message) {
+        if (PENDING.incrementAndGet() > LOG_CAPACITY) {
+            PENDING.decrementAndGet();
+            DROPPED.increment();
+            return;
+        }
+        QUEUE.add(new Entry(System.currentTimeMillis(), error, message));
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (!flush()) {
+                LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+            }
+        }
+    }
+
+    // Écrit tout ce qui est en attente ; renvoie false si la file était vide.
+    private static synchronized boolean flush() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        Entry entry;
+        while ((entry = QUEUE.poll()) != null) {
+            PENDING.decrementAndGet();
+            StringBuilder target = entry.error ? err : out;
+            TIME.formatTo(LocalTime.ofInstant(Instant.ofEpochMilli(entry.time), ZoneId.systemDefault()), target);
+            target.append(' ').append(entry.message).append(System.lineSeparator());
+        }
+        write(System.out, out);
+        write(System.err, err);
+        return out.length() + err.length() > 0;
+    }
+
+    private static void write(PrintStream stream, StringBuilder batch) {
+        if (batch.length() > 0) {
+            stream.print(batch);
+            stream.flush();
+        }
+    }
+
+    private static class Entry {
+        final long time;
+        final boolean error;
+        final String message;
+
+        Entry(long time, boolean error, String message) {
+            this.time = time;
+            this.error = error;
+            this.message = message;
+        }
+    }
+}
@@ -2,241 +2,353 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MainServer {
     private static final int PORT = ServerConfigLoader.getMainServerPort();
     private static final String SERVER_DIRECTORY = ServerConfigLoader.getServerDirectory();
-    private static final int CHUNK_SIZE = ServerConfigLoader.getChunkSize();
-    private static final List<ServerConfigLoader.SubServerInfo> SUB_SERVERS = ServerConfigLoader.getSubServers();
+    // Ports des sous-serveurs déjà démarrés dans ce processus.
+    private static final Set<Integer> STARTED_SUB_SERVERS = ConcurrentHashMap.newKeySet();
+    private static final int LIST_PAGE_SIZE = 1000;
+    private static final String UNKNOWN_COMMAND = "INCONNUE";
+    private static final Set<String> COMMANDS = Set.of("ENVOYER", "RECEVOIR", "RECEVOIR_PLAGE", "ENVOYER_DEBUT",
+            "ENVOYER_ETAT", "ENVOYER_PARTIE", "ENVOYER_FIN", "ENVOYER_LOT", "RECEVOIR_LOT", "LISTER", "LISTER_PAGE",
+            "SUPPRIMER", "SUPPRIMER_LOT", "STATISTIQUES");
+
+    private static final AtomicInteger ACTIVE_CLIENTS = new AtomicInteger();
+    private static final Metrics.Counter REJECTED_CLIENTS = Metrics.counter("clients_refuses_total",
+            "Clients refusés, file d'admission pleine");
+    // Par commande : durées (dont le nombre d'appels) et échecs.
+    private static final ConcurrentHashMap<String, Metrics.Histogram> COMMAND_LATENCY = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Metrics.Counter> COMMAND_FAILURES = new ConcurrentHashMap<>();
 
     public static void main(String[] args) {
         File serverDir = new File(SERVER_DIRECTORY);
         if (!serverDir.exists() && !serverDir.mkdirs()) {
-            System.err.println("Erreur : Impossible de créer le répertoire du serveur.");
+            Log.error("Erreur : Impossible de créer le répertoire du serveur.");
             return;
         }
 
+        MetadataStore.initialize();
+        FileStorage.adoptLegacyFiles();
         startSubServers();
+        Rebalancer.startInBackground();
+        ServerConfigLoader.watch(MainServer::onMembershipChange);
 
-        ExecutorService threadPool = Executors.newCachedThreadPool();
+        ExecutorService threadPool = ClientExecutors.create();
+        registerMetrics(threadPool);
+        Metrics.startExporter();
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Serveur principal en écoute sur le port " + PORT + "...");
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            LinkTuning.configure(serverSocket);
+            serverSocket.bind(new InetSocketAddress(PORT));
+            Log.info("Serveur principal en écoute sur le port " + PORT + "...");
+            acceptClients(serverSocket, threadPool);
+        } catch (IOException e) {
+            Log.error("Erreur lors de l'écoute du port : " + e.getMessage());
+        } finally {
+            threadPool.shutdown();
+        }
+    }
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connecté : " + clientSocket.getInetAddress());
+    static void acceptClients(ServerSocket serverSocket, ExecutorService threadPool) throws IOException {
+        while (true) {
+            Socket clientSocket = serverSocket.accept();
+            Log.info("Client connecté : " + clientSocket.getInetAddress());
 
+            try {
                 threadPool.execute(() -> handleClient(clientSocket));
+            } catch (RejectedExecutionException e) {
+                // File d'admission pleine : on refuse le client plutôt que d'empiler les threads.
+                REJECTED_CLIENTS.increment();
+                rejectClient(clientSocket);
             }
-        } catch (IOException e) {
-            System.err.println("Erreur lors de l'écoute du port : " + e.getMessage());
-        } finally {
-            threadPool.shutdown();
         }
     }
 
-    private static void handleClient(Socket clientSocket) {
+    private static void rejectClient(Socket clientSocket) {
         try (Socket socket = clientSocket;
-             DataInputStream dis = new DataInputStream(socket.getInputStream());
              DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-    
-            String command = dis.readUTF();
-            switch (command.toUpperCase()) {
-                case "ENVOYER":
-                    String fileName = dis.readUTF();
-                    long fileSize = dis.readLong();
-                    distributeFile(dis, fileName, fileSize);
-                    dos.writeUTF("OK");
-                    System.out.println("Fichier reçu et distribué : " + fileName);
-                    break;
-                case "RECEVOIR":
-                    fileName = dis.readUTF();
-                    File assembledFile = assembleFile(fileName);
-                    if (assembledFile != null) {
-                        sendFileInChunks(assembledFile, dos);
-                        if (!assembledFile.delete()) {
-                            System.err.println("Erreur lors de la suppression du fichier : " + fileName);
-                        }
-                    } else {
-                        dos.writeUTF("Fichier introuvable");
-                    }
-                    break;
-                case "LISTER":
-                    listFiles(dos);
-                    break;
-                case "SUPPRIMER":
-                    deleteFile(dis, dos);
-                    break;
-                default:
-                    dos.writeUTF("COMMANDE INCONNUE");
-            }
+            dos.writeUTF("SERVEUR OCCUPÉ");
         } catch (IOException e) {
-            System.err.println("Erreur avec un client : " + e.getMessage());
+            Log.error("Erreur lors du refus d'un client : " + e.getMessage());
         }
     }
-    
 
-    private static void startSubServers() {
-        for (ServerConfigLoader.SubServerInfo subServerInfo : SUB_SERVERS) {
-            new Thread(() -> {
+    // La connexion d'un client reste ouverte : il peut enchaîner plusieurs commandes sans
+    // payer à chaque fois l'établissement d'une connexion TCP. Le débit de ses transferts est
+    // noté pour le lien du client.
+    private static void handleClient(Socket clientSocket) {
+        ACTIVE_CLIENTS.incrementAndGet();
+        String link = LinkTuning.link(clientSocket);
+        int bufferSize = LinkTuning.streamBufferSize();
+        try (Socket socket = clientSocket;
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferSize));
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), bufferSize))) {
+            LinkTuning.configure(socket);
+
+            String command;
+            while ((command = readCommand(dis)) != null) {
+                command = command.toUpperCase();
+                long start = System.nanoTime();
+                int sentBefore = dos.size();
+                boolean failed = true;
                 try {
-                    startSubServer(subServerInfo.port);
-                } catch (IOException e) {
-                    System.err.println("Erreur lors du démarrage du sous-serveur sur le port " + subServerInfo.port);
-                    e.printStackTrace();
+                    long received = handleCommand(command, dis, dos);
+                    // size() sature à Integer.MAX_VALUE : au-delà, seuls les octets reçus sont comptés.
+                    long sent = dos.size() == Integer.MAX_VALUE ? 0 : dos.size() - sentBefore;
+                    LinkTuning.recordTransfer(link, received + sent, System.nanoTime() - start);
+                    failed = false;
+                } finally {
+                    recordCommand(COMMANDS.contains(command) ? command : UNKNOWN_COMMAND,
+                            System.nanoTime() - start, failed);
                 }
-            }).start();
+            }
+        } catch (IOException e) {
+            Log.error("Erreur avec un client : " + e.getMessage());
+        } finally {
+            ACTIVE_CLIENTS.decrementAndGet();
         }
     }
 
-    private static void startSubServer(int port) throws IOException {
-        File subServerDir = new File("sub_server_directory_" + port);
-        if (!subServerDir.exists() && !subServerDir.mkdirs()) {
-            System.err.println("Erreur : Impossible de créer le répertoire du sous-serveur sur le port " + port);
-            return;
-        }
-
-        try (ServerSocket subServerSocket = new ServerSocket(port)) {
-            System.out.println("Sous-serveur démarré sur le port " + port + "...");
-
-            while (true) {
-                try (Socket clientSocket = subServerSocket.accept()) {
-                    DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-                    DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
-
-                    String command = dis.readUTF();
-                    if ("STORE".equalsIgnoreCase(command)) {
-                        String fileName = dis.readUTF();
-                        long fileSize = dis.readLong();
-                        receiveFile(dis, new File(subServerDir, fileName), fileSize);
-                        System.out.println("Fragment reçu et stocké : " + fileName);
-                    } else if ("RETRIEVE".equalsIgnoreCase(command)) {
-                        String fileName = dis.readUTF();
-                        File file = new File(subServerDir, fileName);
-                        if (file.exists()) {
-                            sendFile(dos, file);
-                            System.out.println("Fragment envoyé : " + fileName);
-                        } else {
-                            dos.writeUTF("Fichier introuvable");
-                        }
-                    }
+    // Renvoie le nombre d'octets de contenu reçus du client.
+    private static long handleCommand(String command, DataInputStream dis, DataOutputStream dos) throws IOException {
+        long received = 0;
+        switch (command) {
+            case "ENVOYER":
+                String fileName = dis.readUTF();
+                long fileSize = dis.readLong();
+                distributeFile(dis, fileName, fileSize);
+                received = fileSize;
+                dos.writeUTF("OK");
+                Log.info("Fichier reçu et distribué : " + fileName);
+                break;
+            case "RECEVOIR":
+                fileName = dis.readUTF();
+                if (!FileStorage.stream(fileName, dos)) {
+                    dos.writeUTF("Fichier introuvable");
                 }
-            }
+                break;
+            case "RECEVOIR_PLAGE":
+                fileName = dis.readUTF();
+                long offset = dis.readLong();
+                long length = dis.readLong();
+                if (!FileStorage.streamRange(fileName, offset, length, dos)) {
+                    dos.writeUTF("Fichier introuvable");
+                }
+                break;
+            case "ENVOYER_DEBUT":
+                beginUpload(dis, dos);
+                break;
+            case "ENVOYER_ETAT":
+                uploadStatus(dis, dos);
+                break;
+            case "ENVOYER_PARTIE":
+                String uploadId = dis.readUTF();
+                int part = dis.readInt();
+                length = dis.readLong();
+                long checksum = dis.readLong();
+                dos.writeUTF(MultipartUploads.storePart(uploadId, part, length, checksum, dis));
+                received = length;
+                break;
+            case "ENVOYER_FIN":
+                uploadId = dis.readUTF();
+                checksum = dis.readLong();
+                String result = MultipartUploads.complete(uploadId, checksum);
+                dos.writeUTF(result);
+                if ("OK".equals(result)) {
+                    Log.info("Fichier reçu en plusieurs parties : " + uploadId);
+                }
+                break;
+            case "ENVOYER_LOT":
+                received = BatchUploader.receive(dis, dos);
+                break;
+            case "RECEVOIR_LOT":
+                FileStorage.streamAll(readNames(dis), dos);
+                break;
+            case "LISTER":
+                listFiles(dos);
+                break;
+            case "LISTER_PAGE":
+                listPage(dis, dos);
+                break;
+            case "SUPPRIMER":
+                deleteFile(dis, dos);
+                break;
+            case "SUPPRIMER_LOT":
+                deleteFiles(dis, dos);
+                break;
+            case "STATISTIQUES":
+                dos.writeUTF(HotFileCache.statistics());
+                break;
+            default:
+                dos.writeUTF("COMMANDE INCONNUE");
         }
+        dos.flush();
+        return received;
     }
 
-    private static void receiveFile(DataInputStream dis, File file, long fileSize) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            byte[] buffer = new byte[CHUNK_SIZE];
-            long totalRead = 0;
-            int bytesRead;
-            while (totalRead < fileSize) {
-                bytesRead = dis.read(buffer, 0, (int) Math.min(CHUNK_SIZE, fileSize - totalRead));
-                fos.write(buffer, 0, bytesRead);
-                totalRead += bytesRead;
-            }
+    private static void recordCommand(String command, long nanos, boolean failed) {
+        COMMAND_LATENCY.computeIfAbsent(command, c -> Metrics.histogram("commande_duree_secondes",
+                "Durée des commandes des clients, transfert compris", "commande", c)).record(nanos);
+        if (failed) {
+            COMMAND_FAILURES.computeIfAbsent(command, c -> Metrics.counter("commande_echecs_total",
+                    "Commandes interrompues par une erreur", "commande", c)).increment();
         }
     }
 
-    private static void sendFile(DataOutputStream dos, File file) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            dos.writeUTF("OK");
-            dos.writeLong(file.length());
-            byte[] buffer = new byte[CHUNK_SIZE];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytesRead);
-            }
+    private static void registerMetrics(ExecutorService threadPool) {
+        Metrics.gauge("clients_actifs", "Connexions de clients ouvertes", ACTIVE_CLIENTS::get);
+        Metrics.gauge("configuration_version", "Version de la vue des sous-serveurs",
+                () -> ServerConfigLoader.getMembership().version);
+        if (threadPool instanceof ThreadPoolExecutor) {
+            BlockingQueue<Runnable> queue = ((ThreadPoolExecutor) threadPool).getQueue();
+            Metrics.gauge("clients_file_attente", "Clients admis en attente d'un thread", queue::size);
         }
+        Metrics.gauge("cache_succes", "Lectures servies par le cache", HotFileCache::hits);
+        Metrics.gauge("cache_echecs", "Lectures absentes du cache", HotFileCache::misses);
+        Metrics.gauge("cache_evictions", "Fichiers évincés du cache", HotFileCache::evictions);
     }
 
-    private static void distributeFile(DataInputStream dis, String fileName, long fileSize) throws IOException {
-        long fragmentSize = fileSize / SUB_SERVERS.size();
-        byte[] buffer = new byte[CHUNK_SIZE];
-
-        for (int i = 0; i < SUB_SERVERS.size(); i++) {
-            long bytesToSend = (i == SUB_SERVERS.size() - 1) ? (fileSize - i * fragmentSize) : fragmentSize;
+    // Renvoie null quand le client ferme proprement la connexion entre deux commandes.
+    private static String readCommand(DataInputStream dis) throws IOException {
+        try {
+            return dis.readUTF();
+        } catch (EOFException e) {
+            return null;
+        }
+    }
 
-            try (Socket subServerSocket = new Socket(SUB_SERVERS.get(i).host, SUB_SERVERS.get(i).port);
-                 DataOutputStream subDos = new DataOutputStream(subServerSocket.getOutputStream())) {
+    // Noms d'une commande groupée, terminés par une chaîne vide.
+    private static List<String> readNames(DataInputStream dis) throws IOException {
+        List<String> names = new ArrayList<>();
+        String name;
+        while (!(name = dis.readUTF()).isEmpty()) {
+            names.add(name);
+        }
+        return names;
+    }
 
-                subDos.writeUTF("STORE");
-                subDos.writeUTF(fileName + ".part" + i);
-                subDos.writeLong(bytesToSend);
+    // Un sous-serveur ajouté à la configuration est démarré comme au lancement ; un sous-serveur
+    // retiré continue de servir ses fragments, enregistrés dans les manifestes, jusqu'à ce que le
+    // rééquilibrage les ait recopiés ailleurs.
+    private static void onMembershipChange() {
+        startSubServers();
+        Rebalancer.startInBackground();
+    }
 
-                long bytesSent = 0;
-                while (bytesSent < bytesToSend) {
-                    int bytesRead = dis.read(buffer, 0, (int) Math.min(CHUNK_SIZE, bytesToSend - bytesSent));
-                    subDos.write(buffer, 0, bytesRead);
-                    bytesSent += bytesRead;
-                }
+    static void startSubServers() {
+        for (ServerConfigLoader.SubServerInfo subServerInfo : ServerConfigLoader.getSubServers()) {
+            if (!STARTED_SUB_SERVERS.add(subServerInfo.port)) {
+                continue;
             }
+            new Thread(() -> {
+                try {
+                    new SubServer(subServerInfo.port).start();
+                } catch (IOException e) {
+                    Log.error("Erreur lors du démarrage du sous-serveur sur le port " + subServerInfo.port
+                            + " : " + e.getMessage());
+                }
+            }).start();
         }
     }
 
-    private static File assembleFile(String fileName) throws IOException {
-        File assembledFile = new File(SERVER_DIRECTORY, fileName);
-
-        try (FileOutputStream fos = new FileOutputStream(assembledFile)) {
-            byte[] buffer = new byte[CHUNK_SIZE];
-
-            for (int i = 0; i < SUB_SERVERS.size(); i++) {
-                try (Socket subServerSocket = new Socket(SUB_SERVERS.get(i).host, SUB_SERVERS.get(i).port);
-                     DataOutputStream subDos = new DataOutputStream(subServerSocket.getOutputStream());
-                     DataInputStream subDis = new DataInputStream(subServerSocket.getInputStream())) {
-
-                    subDos.writeUTF("RETRIEVE");
-                    subDos.writeUTF(fileName + ".part" + i);
+    private static void distributeFile(DataInputStream dis, String fileName, long fileSize) throws IOException {
+        FileStorage.store(dis, fileName, fileSize);
+    }
 
-                    long fragmentSize = subDis.readLong();
-                    long bytesReceived = 0;
-                    while (bytesReceived < fragmentSize) {
-                        int bytesRead = subDis.read(buffer, 0, (int) Math.min(CHUNK_SIZE, fragmentSize - bytesReceived));
-                        fos.write(buffer, 0, bytesRead);
-                        bytesReceived += bytesRead;
-                    }
-                }
+    // Liste complète, lue dans l'index par pages pour ne pas le bloquer pendant l'envoi.
+    private static void listFiles(DataOutputStream dos) throws IOException {
+        List<FileManifest> page = MetadataStore.page("", null, LIST_PAGE_SIZE);
+        if (page.isEmpty()) {
+            dos.writeUTF("Aucun fichier trouvé.");
+            return;
+        }
+        dos.writeUTF("OK");
+        while (!page.isEmpty()) {
+            for (FileManifest file : page) {
+                dos.writeUTF(file.name);
             }
+            page = MetadataStore.page("", page.get(page.size() - 1).name, LIST_PAGE_SIZE);
         }
+        // Une chaîne vide marque la fin de la liste, la connexion restant ouverte.
+        dos.writeUTF("");
+    }
 
-        return assembledFile;
+    // LISTER_PAGE préfixe curseur limite : une page de fichiers (nom, taille, date d'envoi) suivie du
+    // curseur de la page suivante, vide s'il n'y en a plus.
+    private static void listPage(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String prefix = dis.readUTF();
+        String after = dis.readUTF();
+        int limit = Math.max(1, Math.min(dis.readInt(), LIST_PAGE_SIZE));
+        List<FileManifest> page = MetadataStore.page(prefix, after, limit + 1);
+        boolean more = page.size() > limit;
+        if (more) {
+            page = page.subList(0, limit);
+        }
+        dos.writeUTF("OK");
+        dos.writeInt(page.size());
+        for (FileManifest file : page) {
+            dos.writeUTF(file.name);
+            dos.writeLong(file.size);
+            dos.writeLong(file.createdAt);
+        }
+        dos.writeUTF(more ? page.get(page.size() - 1).name : "");
     }
 
-    private static void sendFileInChunks(File file, DataOutputStream dos) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file)) {
+    // ENVOYER_DEBUT nom taille tailleDePartie : « OK » et l'identifiant de l'envoi.
+    private static void beginUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+        String fileName = dis.readUTF();
+        long fileSize = dis.readLong();
+        long partSize = dis.readLong();
+        try {
+            String uploadId = MultipartUploads.begin(fileName, fileSize, partSize);
             dos.writeUTF("OK");
-            dos.writeLong(file.length());
-            byte[] buffer = new byte[CHUNK_SIZE];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dos.write(buffer, 0, bytesRead);
-            }
+            dos.writeUTF(uploadId);
+        } catch (IllegalArgumentException e) {
+            dos.writeUTF(e.getMessage());
         }
     }
 
-    private static void listFiles(DataOutputStream dos) throws IOException {
-        File serverDir = new File(SERVER_DIRECTORY);
-        File[] files = serverDir.listFiles();
-        if (files != null && files.length > 0) {
-            dos.writeUTF("OK");
-            for (File file : files) {
-                dos.writeUTF(file.getName());
-            }
-        } else {
-            dos.writeUTF("Aucun fichier trouvé.");
+    // ENVOYER_ETAT identifiant : « OK », le nombre de parties reçues puis (numéro, CRC32C) pour
+    // chacune ; permet au client de reprendre un envoi interrompu.
+    private static void uploadStatus(DataInputStream dis, DataOutputStream dos) throws IOException {
+        Map<Integer, Long> received = MultipartUploads.status(dis.readUTF());
+        if (received == null) {
+            dos.writeUTF("Envoi inconnu");
+            return;
+        }
+        dos.writeUTF("OK");
+        dos.writeInt(received.size());
+        for (Map.Entry<Integer, Long> part : received.entrySet()) {
+            dos.writeInt(part.getKey());
+            dos.writeLong(part.getValue());
         }
     }
 
     private static void deleteFile(DataInputStream dis, DataOutputStream dos) throws IOException {
         String fileName = dis.readUTF();
-        File file = new File(SERVER_DIRECTORY, fileName);
-        if (file.exists() && file.delete()) {
+        if (FileStorage.delete(fileName)) {
             dos.writeUTF("Fichier supprimé avec succès.");
-            System.out.println("Fichier supprimé : " + fileName);
+            Log.info("Fichier supprimé : " + fileName);
         } else {
             dos.writeUTF("Erreur lors de la suppression du fichier.");
         }
     }
-    
+
+    // SUPPRIMER_LOT nom... "" : pour chaque nom, le nom et « OK » ou l'erreur, puis une chaîne vide.
+    // Les objets libérés ne sont supprimés des sous-serveurs qu'une fois la réponse partie.
+    private static void deleteFiles(DataInputStream dis, DataOutputStream dos) throws IOException {
+        List<String> fileNames = readNames(dis);
+        Set<String> removed = new HashSet<>();
+        List<FileManifest.Fragment> orphans = FileStorage.deleteAll(fileNames, removed);
+        for (String fileName : fileNames) {
+            dos.writeUTF(fileName);
+            dos.writeUTF(removed.contains(fileName) ? "OK" : "Fichier introuvable");
+        }
+        dos.writeUTF("");
+        dos.flush();
+        FileStorage.deleteObjects(orphans);
+        Log.info("Fichiers supprimés : " + removed.size() + "/" + fileNames.size());
+    }
 }
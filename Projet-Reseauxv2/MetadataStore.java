@@ -0,0 +1,428 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Index des fichiers stockés et compteur de références de chaque objet des sous-serveurs. Un objet
+// n'est supprimé des sous-serveurs que lorsqu'aucun manifeste ni aucun envoi en cours (« épingle »)
+// ne le référence plus.
+// Persistance : chaque modification est ajoutée à un journal (metadata.log) avant d'être appliquée
+// à l'index en mémoire. Un instantané complet (metadata.snapshot) est écrit à l'arrêt du serveur et
+// quand le journal devient trop long ; le journal repart alors de zéro. Au démarrage on relit
+// l'instantané puis le journal, dont une fin d'enregistrement tronquée par un arrêt brutal est ignorée.
+public class MetadataStore {
+    private static final File DIRECTORY = new File(ServerConfigLoader.getServerDirectory());
+    private static final Path LOG = new File(DIRECTORY, "metadata.log").toPath();
+    private static final Path SNAPSHOT = new File(DIRECTORY, "metadata.snapshot").toPath();
+
+    private static final int SNAPSHOT_MAGIC = 0x4D455441;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int RECORD_HEADER = 5;
+    private static final long COMPACTION_THRESHOLD = ServerConfigLoader.getMetadataCompactionBytes();
+    private static final boolean SYNC = ServerConfigLoader.isMetadataSyncEnabled();
+
+    // Trié par nom, pour lister par préfixe et par page sans tout parcourir.
+    private static final TreeMap<String, FileManifest> FILES = new TreeMap<>();
+    private static final Map<String, Integer> REFERENCES = new HashMap<>();
+    private static final Map<String, Integer> PINS = new HashMap<>();
+    private static final Map<String, List<String>> LOCATIONS = new HashMap<>();
+    // Codec des objets compressés ; les autres n'y figurent pas.
+    private static final Map<String, Byte> CODECS = new HashMap<>();
+
+    private static FileChannel log;
+
+    static {
+        load();
+        Runtime.getRuntime().addShutdownHook(new Thread(MetadataStore::snapshotOnShutdown, "metadata-snapshot"));
+    }
+
+    // Force le chargement au démarrage du serveur plutôt qu'à la première commande.
+    public static void initialize() {
+        // le chargement a lieu dans l'initialisation statique de la classe
+    }
+
+    private static void load() {
+        if (!DIRECTORY.exists() && !DIRECTORY.mkdirs()) {
+            Log.error("Erreur : Impossible de créer le répertoire du serveur.");
+        }
+        long start = System.nanoTime();
+        try {
+            if (Files.exists(SNAPSHOT)) {
+                readSnapshot();
+            }
+            long valid = Files.exists(LOG) ? replayLog() : 0;
+            log = FileChannel.open(LOG, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (log.size() > valid) {
+                Log.error("Journal des métadonnées tronqué à " + valid + " octets (fin incomplète ignorée)");
+                log.truncate(valid);
+            }
+            log.position(valid);
+        } catch (IOException e) {
+            Log.error("Erreur lors du chargement des métadonnées : " + e.getMessage());
+        }
+        for (FileManifest manifest : FILES.values()) {
+            reference(manifest, 1);
+        }
+        Log.info("Métadonnées chargées : " + FILES.size() + " fichiers en "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static void readSnapshot() throws IOException {
+        CRC32C crc = new CRC32C();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(SNAPSHOT), 1 << 16), crc))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("instantané des métadonnées invalide");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                FileManifest manifest = FileManifest.readFrom(in);
+                FILES.put(manifest.name, manifest);
+            }
+            long expected = crc.getValue();
+            if (in.readInt() != (int) expected) {
+                throw new IOException("somme de contrôle de l'instantané des métadonnées incorrecte");
+            }
+        }
+    }
+
+    // Rejoue le journal et renvoie la longueur de sa partie valide.
+    private static long replayLog() throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(LOG), 1 << 16))) {
+            while (true) {
+                byte type;
+                byte[] payload;
+                try {
+                    type = in.readByte();
+                    payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    if (in.readInt() != recordChecksum(type, payload)) {
+                        break;
+                    }
+                } catch (EOFException | NegativeArraySizeException | OutOfMemoryError e) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                if (type == RECORD_PUT) {
+                    FileManifest manifest = FileManifest.readFrom(record);
+                    FILES.put(manifest.name, manifest);
+                } else if (type == RECORD_REMOVE) {
+                    FILES.remove(record.readUTF());
+                } else {
+                    break;
+                }
+                valid += RECORD_HEADER + payload.length + 4;
+            }
+        }
+        return valid;
+    }
+
+    public static synchronized FileManifest get(String name) {
+        return FILES.get(name);
+    }
+
+    public static synchronized List<FileManifest> list() {
+        return new ArrayList<>(FILES.values());
+    }
+
+    // Au plus limit fichiers dont le nom commence par prefix, dans l'ordre des noms, en commençant
+    // après after (null ou vide pour la première page).
+    public static synchronized List<FileManifest> page(String prefix, String after, int limit) {
+        SortedMap<String, FileManifest> range = prefix.isEmpty() ? FILES : FILES.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (after != null && !after.isEmpty()) {
+            range = range.tailMap(after + Character.MIN_VALUE);
+        }
+        List<FileManifest> page = new ArrayList<>(Math.min(limit, 1024));
+        for (FileManifest manifest : range.values()) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(manifest);
+        }
+        return page;
+    }
+
+    // Sous-serveurs détenant l'objet s'il est déjà référencé par un manifeste, sinon null.
+    // Dans tous les cas l'objet est épinglé jusqu'à unpin(), pour qu'une suppression concurrente
+    // ne le retire pas avant que le nouveau manifeste soit enregistré.
+    public static synchronized List<String> pin(String object) {
+        PINS.merge(object, 1, Integer::sum);
+        return REFERENCES.getOrDefault(object, 0) > 0 ? LOCATIONS.get(object) : null;
+    }
+
+    // Codec avec lequel un objet référencé a été écrit.
+    public static synchronized byte codec(String object) {
+        return CODECS.getOrDefault(object, FragmentCodec.NONE);
+    }
+
+    // Emplacement actuel de chaque objet référencé.
+    public static synchronized Map<String, List<String>> locations() {
+        return new HashMap<>(LOCATIONS);
+    }
+
+    // Renvoie les fragments devenus orphelins, à supprimer des sous-serveurs.
+    public static synchronized List<FileManifest.Fragment> unpin(Collection<FileManifest.Fragment> fragments) {
+        Map<String, FileManifest.Fragment> orphans = new LinkedHashMap<>();
+        for (FileManifest.Fragment fragment : fragments) {
+            Integer pins = PINS.get(fragment.object);
+            if (pins == null) {
+                continue;
+            }
+            if (pins <= 1) {
+                PINS.remove(fragment.object);
+            } else {
+                PINS.put(fragment.object, pins - 1);
+            }
+            collectIfOrphan(fragment, orphans);
+        }
+        return new ArrayList<>(orphans.values());
+    }
+
+    // Enregistre le manifeste (en remplaçant l'éventuelle version précédente) et renvoie les
+    // fragments de l'ancienne version qui ne sont plus référencés.
+    public static synchronized List<FileManifest.Fragment> put(FileManifest manifest) throws IOException {
+        append(RECORD_PUT, manifest);
+        reference(manifest, 1);
+        FileManifest previous = FILES.put(manifest.name, manifest);
+        return previous == null ? Collections.emptyList() : release(previous);
+    }
+
+    // Plusieurs manifestes (envoi groupé) : un seul passage sur disque du journal pour tout le lot.
+    public static synchronized List<FileManifest.Fragment> putAll(List<FileManifest> manifests) throws IOException {
+        for (FileManifest manifest : manifests) {
+            write(RECORD_PUT, encode(manifest));
+        }
+        sync();
+        Map<String, FileManifest.Fragment> orphans = new LinkedHashMap<>();
+        for (FileManifest manifest : manifests) {
+            reference(manifest, 1);
+            FileManifest previous = FILES.put(manifest.name, manifest);
+            if (previous != null) {
+                for (FileManifest.Fragment fragment : release(previous)) {
+                    orphans.put(fragment.object, fragment);
+                }
+            }
+        }
+        compactIfNeeded();
+        return new ArrayList<>(orphans.values());
+    }
+
+    // Supprime les fichiers connus parmi names (ajoutés à removed) avec un seul passage sur disque du
+    // journal ; renvoie les fragments devenus orphelins.
+    public static synchronized List<FileManifest.Fragment> removeAll(List<String> names, Set<String> removed)
+            throws IOException {
+        List<FileManifest> previous = new ArrayList<>();
+        for (String name : names) {
+            FileManifest manifest = FILES.get(name);
+            if (manifest == null || removed.contains(name)) {
+                continue;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(name);
+            write(RECORD_REMOVE, bytes.toByteArray());
+            previous.add(manifest);
+            removed.add(name);
+        }
+        sync();
+        Map<String, FileManifest.Fragment> orphans = new LinkedHashMap<>();
+        for (FileManifest manifest : previous) {
+            FILES.remove(manifest.name);
+            for (FileManifest.Fragment fragment : release(manifest)) {
+                orphans.put(fragment.object, fragment);
+            }
+        }
+        compactIfNeeded();
+        return new ArrayList<>(orphans.values());
+    }
+
+    public static synchronized List<FileManifest.Fragment> remove(String name) throws IOException {
+        FileManifest previous = FILES.remove(name);
+        if (previous == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(name);
+            append(RECORD_REMOVE, bytes.toByteArray());
+        } catch (IOException e) {
+            FILES.put(name, previous);
+            throw e;
+        }
+        return release(previous);
+    }
+
+    // Déplace des objets (rééquilibrage) : tous les manifestes qui les référencent sont réécrits avec
+    // leurs nouveaux emplacements. Un objet épinglé par un envoi en cours garde aussi ses anciens
+    // emplacements, que cet envoi a pu recopier dans son manifeste. Renvoie, par objet, les
+    // sous-serveurs qui ne le détiennent plus et dont la copie peut être supprimée.
+    public static synchronized Map<String, List<String>> relocate(Map<String, List<String>> targets) throws IOException {
+        Map<String, List<String>> applied = new HashMap<>();
+        Map<String, List<String>> released = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : targets.entrySet()) {
+            List<String> current = LOCATIONS.get(entry.getKey());
+            if (current == null) {
+                continue;
+            }
+            List<String> nodes = new ArrayList<>(entry.getValue());
+            if (PINS.getOrDefault(entry.getKey(), 0) > 1) {
+                for (String node : current) {
+                    if (!nodes.contains(node)) {
+                        nodes.add(node);
+                    }
+                }
+            }
+            List<String> removed = new ArrayList<>(current);
+            removed.removeAll(nodes);
+            applied.put(entry.getKey(), nodes);
+            released.put(entry.getKey(), removed);
+        }
+
+        for (FileManifest manifest : new ArrayList<>(FILES.values())) {
+            List<FileManifest.Fragment> fragments = new ArrayList<>(manifest.fragments.size());
+            boolean changed = false;
+            for (FileManifest.Fragment fragment : manifest.fragments) {
+                List<String> nodes = applied.get(fragment.object);
+                if (nodes != null && !nodes.equals(fragment.nodes)) {
+                    fragment = fragment.withNodes(nodes);
+                    changed = true;
+                }
+                fragments.add(fragment);
+            }
+            if (changed) {
+                // Un objet groupé est référencé par de nombreux manifestes : un seul passage sur disque.
+                FileManifest relocated = manifest.withFragments(fragments);
+                write(RECORD_PUT, encode(relocated));
+                FILES.put(manifest.name, relocated);
+            }
+        }
+        sync();
+        for (Map.Entry<String, List<String>> entry : applied.entrySet()) {
+            LOCATIONS.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        }
+        compactIfNeeded();
+        return released;
+    }
+
+    private static void append(byte type, FileManifest manifest) throws IOException {
+        append(type, encode(manifest));
+    }
+
+    private static byte[] encode(FileManifest manifest) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        manifest.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static void append(byte type, byte[] payload) throws IOException {
+        write(type, payload);
+        sync();
+        compactIfNeeded();
+    }
+
+    // Enregistrement : type, longueur, contenu, CRC32C du type et du contenu.
+    private static void write(byte type, byte[] payload) throws IOException {
+        if (log == null) {
+            throw new IOException("Journal des métadonnées indisponible");
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.length + 4);
+        record.put(type).putInt(payload.length).put(payload).putInt(recordChecksum(type, payload)).flip();
+        while (record.hasRemaining()) {
+            log.write(record);
+        }
+    }
+
+    // Sans journal, write() a déjà échoué : il n'y a rien à forcer.
+    private static void sync() throws IOException {
+        if (SYNC && log != null) {
+            log.force(false);
+        }
+    }
+
+    // Après application à l'index : l'instantané doit contenir les enregistrements qu'il remplace.
+    private static void compactIfNeeded() throws IOException {
+        if (log != null && log.position() > COMPACTION_THRESHOLD) {
+            writeSnapshot();
+        }
+    }
+
+    private static int recordChecksum(byte type, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    // Écrit l'instantané à côté puis le met en place d'un seul coup ; le journal, dont tout le
+    // contenu est désormais dans l'instantané, est ensuite vidé. Rejouer un journal déjà inclus
+    // (arrêt entre les deux étapes) redonne le même état.
+    private static void writeSnapshot() throws IOException {
+        Path temporary = SNAPSHOT.resolveSibling(SNAPSHOT.getFileName() + ".tmp");
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), crc))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FILES.size());
+            for (FileManifest manifest : FILES.values()) {
+                manifest.writeTo(out);
+            }
+            out.flush();
+            new DataOutputStream(file).writeInt((int) crc.getValue());
+            file.getFD().sync();
+        }
+        Files.move(temporary, SNAPSHOT, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (log != null) {
+            log.truncate(0);
+            log.position(0);
+        }
+    }
+
+    private static synchronized void snapshotOnShutdown() {
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            Log.error("Instantané des métadonnées non écrit : " + e.getMessage());
+        }
+    }
+
+    private static List<FileManifest.Fragment> release(FileManifest manifest) {
+        reference(manifest, -1);
+        Map<String, FileManifest.Fragment> orphans = new LinkedHashMap<>();
+        for (FileManifest.Fragment fragment : manifest.fragments) {
+            collectIfOrphan(fragment, orphans);
+        }
+        return new ArrayList<>(orphans.values());
+    }
+
+    private static void reference(FileManifest manifest, int delta) {
+        for (FileManifest.Fragment fragment : manifest.fragments) {
+            int count = REFERENCES.getOrDefault(fragment.object, 0) + delta;
+            if (count <= 0) {
+                REFERENCES.remove(fragment.object);
+                LOCATIONS.remove(fragment.object);
+                CODECS.remove(fragment.object);
+            } else {
+                REFERENCES.put(fragment.object, count);
+                if (delta > 0) {
+                    LOCATIONS.put(fragment.object, fragment.nodes);
+                    if (fragment.codec != FragmentCodec.NONE) {
+                        CODECS.put(fragment.object, fragment.codec);
+                    } else {
+                        CODECS.remove(fragment.object);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void collectIfOrphan(FileManifest.Fragment fragment, Map<String, FileManifest.Fragment> orphans) {
+        if (!REFERENCES.containsKey(fragment.object) && !PINS.containsKey(fragment.object)) {
+            orphans.putIfAbsent(fragment.object, fragment);
+        }
+    }
+}
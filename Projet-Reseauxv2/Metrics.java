@@ -0,0 +1,256 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Mesures du serveur au format texte de Prometheus, servies en local sur metrics_port (GET /metrics)
+// et, si metrics_dump_s est positif, écrites dans server_directory/metrics.prom à cet intervalle.
+// Sur le chemin chaud, un compteur est un LongAdder et un histogramme un tableau de compteurs
+// atomiques : aucun verrou. Les compteurs d'octets ont en plus un débit par seconde, échantillonné
+// chaque seconde.
+public class Metrics {
+    private static final ConcurrentHashMap<String, Family> FAMILIES = new ConcurrentHashMap<>();
+    private static final List<Counter> RATES = new CopyOnWriteArrayList<>();
+    private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        SAMPLER.scheduleAtFixedRate(Metrics::sampleRates, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // labels : paires nom, valeur.
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").metrics.computeIfAbsent(labels(labels), k -> new Counter());
+    }
+
+    // Compteur d'octets, exporté aussi en octets par seconde dans name_par_seconde.
+    public static Counter throughput(String name, String help, String... labels) {
+        Family family = family(name, help, "counter");
+        return (Counter) family.metrics.computeIfAbsent(labels(labels), k -> {
+            Counter counter = new Counter();
+            RATES.add(counter);
+            Metrics.gauge(name.replace("_total", "_par_seconde"), help + " (par seconde)",
+                    () -> counter.rate, labels);
+            return counter;
+        });
+    }
+
+    // Histogramme de durées en nanosecondes, exporté en secondes.
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "summary").metrics.computeIfAbsent(labels(labels), k -> new Histogram());
+    }
+
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "gauge").metrics.put(labels(labels), new Gauge(value));
+    }
+
+    // Échec d'écriture, de lecture ou de suppression d'une réplique sur un sous-serveur.
+    public static void fragmentFailure(String operation, String node) {
+        counter("fragments_echecs_total", "Opérations en échec sur une réplique de fragment",
+                "operation", operation, "noeud", node).increment();
+    }
+
+    public static void startExporter() {
+        int port = ServerConfigLoader.getMetricsPort();
+        if (port > 0) {
+            try {
+                HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+                server.createContext("/metrics", exchange -> {
+                    byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                server.setExecutor(SAMPLER);
+                server.start();
+                Log.info("Mesures disponibles sur http://127.0.0.1:" + port + "/metrics");
+            } catch (IOException e) {
+                Log.error("Point d'accès des mesures indisponible sur le port " + port + " : " + e.getMessage());
+            }
+        }
+        int dumpSeconds = ServerConfigLoader.getMetricsDumpSeconds();
+        if (dumpSeconds > 0) {
+            SAMPLER.scheduleWithFixedDelay(Metrics::dump, dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public static String render() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : new TreeMap<>(FAMILIES).values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> metric : new TreeMap<>(family.metrics).entrySet()) {
+                String labels = metric.getKey();
+                Object value = metric.getValue();
+                if (value instanceof Histogram) {
+                    ((Histogram) value).render(out, family.name, labels);
+                } else {
+                    long number = value instanceof Counter ? ((Counter) value).sum() : ((Gauge) value).value.getAsLong();
+                    sample(out, family.name, labels, Long.toString(number));
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void dump() {
+        Path target = Paths.get(ServerConfigLoader.getServerDirectory(), "metrics.prom");
+        Path temporary = Paths.get(ServerConfigLoader.getServerDirectory(), "metrics.prom.tmp");
+        try {
+            Files.write(temporary, render().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.error("Mesures non écrites : " + e.getMessage());
+        }
+    }
+
+    private static void sampleRates() {
+        for (Counter counter : RATES) {
+            long total = counter.sum();
+            counter.rate = total - counter.lastSample;
+            counter.lastSample = total;
+        }
+    }
+
+    private static Family family(String name, String help, String type) {
+        return FAMILIES.computeIfAbsent(name, k -> new Family(name, help, type));
+    }
+
+    private static String labels(String... pairs) {
+        if (pairs.length == 0) {
+            return "";
+        }
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i + 1 < pairs.length; i += 2) {
+            labels.append(labels.length() == 0 ? "" : ",").append(pairs[i]).append("=\"")
+                    .append(pairs[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return labels.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    public static class Counter {
+        private final LongAdder adder = new LongAdder();
+        volatile long rate;
+        long lastSample;
+
+        public void increment() {
+            adder.increment();
+        }
+
+        public void add(long value) {
+            adder.add(value);
+        }
+
+        public long sum() {
+            return adder.sum();
+        }
+    }
+
+    // Histogramme log-linéaire à la manière de HdrHistogram : chaque puissance de deux est coupée en
+    // SUB_BUCKETS intervalles, soit une précision relative d'environ 6 % sur toute l'étendue des longs.
+    public static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long nanos) {
+            buckets.incrementAndGet(index(Math.max(0, nanos)));
+            count.increment();
+            sum.add(nanos);
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        // Plus grande valeur rangée dans l'intervalle index.
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            return ((long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift) - 1;
+        }
+
+        // Valeur en nanosecondes sous laquelle se trouve la fraction quantile des mesures.
+        public long quantile(double quantile) {
+            long total = 0;
+            long[] snapshot = new long[buckets.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        void render(StringBuilder out, String name, String labels) {
+            String separator = labels.isEmpty() ? "" : ",";
+            for (double quantile : QUANTILES) {
+                sample(out, name, labels + separator + "quantile=\"" + quantile + "\"", seconds(quantile(quantile)));
+            }
+            sample(out, name + "_sum", labels, seconds(sum.sum()));
+            sample(out, name + "_count", labels, Long.toString(count.sum()));
+        }
+
+        private static String seconds(long nanos) {
+            return Double.toString(nanos / 1e9);
+        }
+    }
+
+    private static class Gauge {
+        final LongSupplier value;
+
+        Gauge(LongSupplier value) {
+            this.value = value;
+        }
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
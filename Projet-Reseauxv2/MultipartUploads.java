@@ -0,0 +1,265 @@
+import java.io.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Envois en plusieurs parties : le client ouvre un envoi, transmet les parties dans n'importe quel
+// ordre et sur autant de connexions qu'il veut, puis le termine. Chaque partie est écrite sur les
+// sous-serveurs dès sa réception et reste épinglée jusqu'à la fin de l'envoi ; le manifeste final
+// est la concaténation des fragments des parties. Un envoi sans activité pendant
+// multipart_expiry_min est abandonné et ses parties sont libérées.
+// Les envois en cours ne sont gardés qu'en mémoire : après un redémarrage du serveur, le client
+// recommence son envoi.
+public class MultipartUploads {
+    private static final int MAX_PARTS = 100_000;
+    private static final long EXPIRY = ServerConfigLoader.getMultipartExpiryMillis();
+    private static final ConcurrentHashMap<String, Upload> UPLOADS = new ConcurrentHashMap<>();
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ScheduledExecutorService EXPIRATION = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "multipart-expiration");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        Metrics.gauge("envois_multiparties_en_cours", "Envois en plusieurs parties ouverts", UPLOADS::size);
+        EXPIRATION.scheduleWithFixedDelay(MultipartUploads::expire, 1, 1, TimeUnit.MINUTES);
+    }
+
+    // Renvoie l'identifiant du nouvel envoi.
+    public static String begin(String fileName, long size, long partSize) {
+        if (size < 0 || partSize <= 0 || (size + partSize - 1) / partSize > MAX_PARTS) {
+            throw new IllegalArgumentException("Taille ou taille de partie invalide");
+        }
+        byte[] random = new byte[12];
+        RANDOM.nextBytes(random);
+        StringBuilder id = new StringBuilder();
+        for (byte b : random) {
+            id.append(String.format("%02x", b & 0xFF));
+        }
+        UPLOADS.put(id.toString(), new Upload(id.toString(), fileName, size, partSize));
+        return id.toString();
+    }
+
+    // Parties déjà reçues et leur CRC32C, ou null si l'envoi est inconnu (expiré, serveur redémarré).
+    public static Map<Integer, Long> status(String id) {
+        Upload upload = UPLOADS.get(id);
+        if (upload == null) {
+            return null;
+        }
+        Map<Integer, Long> received = new TreeMap<>();
+        synchronized (upload) {
+            upload.touch();
+            for (Map.Entry<Integer, Part> part : upload.parts.entrySet()) {
+                received.put(part.getKey(), part.getValue().manifest.checksum);
+            }
+        }
+        return received;
+    }
+
+    // Reçoit length octets pour la partie index. Les octets sont toujours consommés, même si la
+    // partie est refusée, pour que la connexion reste utilisable. Renvoie la réponse au client.
+    public static String storePart(String id, int index, long length, long checksum, DataInputStream dis)
+            throws IOException {
+        Upload upload = UPLOADS.get(id);
+        if (upload == null) {
+            dis.skipNBytes(length);
+            return "Envoi inconnu";
+        }
+        if (index < 0 || index >= upload.partCount() || length != upload.partLength(index)) {
+            dis.skipNBytes(length);
+            return "Partie invalide";
+        }
+        upload.touch();
+        String mode = ServerConfigLoader.getStorageMode();
+        // Les fragments rs d'une partie ne se concatènent pas avec ceux des autres : les parties
+        // d'un envoi en mode rs sont stockées en mode split.
+        if (!FileManifest.CDC.equals(mode)) {
+            mode = FileManifest.SPLIT;
+        }
+        List<FileManifest.Fragment> pinned = new ArrayList<>();
+        FileManifest part;
+        try {
+            part = FileStorage.write(dis, upload.fileName + "." + id + "-" + index, length, mode, pinned);
+        } catch (IOException e) {
+            release(pinned);
+            throw e;
+        }
+        if (part.checksum != checksum) {
+            release(pinned);
+            return "Partie corrompue";
+        }
+        Part previous = null;
+        boolean accepted;
+        synchronized (upload) {
+            accepted = !upload.finished;
+            if (accepted) {
+                previous = upload.parts.put(index, new Part(part, pinned));
+            }
+        }
+        if (!accepted) {
+            release(pinned);
+            return "Envoi inconnu";
+        }
+        if (previous != null) {
+            release(previous.pinned);
+        }
+        return "OK";
+    }
+
+    // Termine l'envoi : toutes les parties doivent être là et leur CRC32C combiné doit être celui
+    // du fichier annoncé par le client.
+    public static String complete(String id, long checksum) throws IOException {
+        Upload upload = UPLOADS.get(id);
+        if (upload == null) {
+            return "Envoi inconnu";
+        }
+        List<Part> parts;
+        synchronized (upload) {
+            if (upload.parts.size() < upload.partCount()) {
+                upload.touch();
+                return "Parties manquantes : " + (upload.partCount() - upload.parts.size());
+            }
+            upload.finished = true;
+            parts = new ArrayList<>(upload.parts.values());
+        }
+        UPLOADS.remove(id);
+
+        List<FileManifest.Fragment> fragments = new ArrayList<>();
+        List<FileManifest.Fragment> pinned = new ArrayList<>();
+        long combined = 0;
+        String mode = FileManifest.SPLIT;
+        for (Part part : parts) {
+            fragments.addAll(part.manifest.fragments);
+            pinned.addAll(part.pinned);
+            combined = combineCrc32c(combined, part.manifest.checksum, part.manifest.size);
+            mode = part.manifest.mode;
+        }
+        try {
+            if (combined != checksum) {
+                return "Somme de contrôle incorrecte";
+            }
+            FileManifest manifest = new FileManifest(upload.fileName, upload.size, mode, System.currentTimeMillis(),
+                    combined, fragments, 0, 0, 0);
+            FileStorage.deleteObjects(MetadataStore.put(manifest));
+            HotFileCache.invalidate(upload.fileName);
+            return "OK";
+        } finally {
+            release(pinned);
+        }
+    }
+
+    private static void expire() {
+        long now = System.currentTimeMillis();
+        for (Upload upload : UPLOADS.values()) {
+            List<FileManifest.Fragment> pinned = new ArrayList<>();
+            synchronized (upload) {
+                if (upload.finished || now - upload.lastActivity < EXPIRY) {
+                    continue;
+                }
+                upload.finished = true;
+                for (Part part : upload.parts.values()) {
+                    pinned.addAll(part.pinned);
+                }
+            }
+            UPLOADS.remove(upload.id);
+            Log.info("Envoi abandonné : " + upload.fileName + " (" + upload.id + ")");
+            release(pinned);
+        }
+    }
+
+    private static void release(List<FileManifest.Fragment> pinned) {
+        FileStorage.deleteObjects(MetadataStore.unpin(pinned));
+    }
+
+    // CRC32C de la concaténation de deux blocs, à partir de leurs CRC et de la longueur du second
+    // (même méthode que crc32_combine de zlib, avec le polynôme de CRC32C).
+    static long combineCrc32c(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // Opérateur « un bit de zéros » en représentation réfléchie.
+        odd[0] = 0x82F63B78L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2Square(even, odd);
+        gf2Square(odd, even);
+        do {
+            gf2Square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2Times(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            gf2Square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2Times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2Times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2Square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2Times(matrix, matrix[n]);
+        }
+    }
+
+    private static class Upload {
+        final String id;
+        final String fileName;
+        final long size;
+        final long partSize;
+        // Triées par numéro : c'est l'ordre du fichier.
+        final TreeMap<Integer, Part> parts = new TreeMap<>();
+        volatile long lastActivity = System.currentTimeMillis();
+        boolean finished;
+
+        Upload(String id, String fileName, long size, long partSize) {
+            this.id = id;
+            this.fileName = fileName;
+            this.size = size;
+            this.partSize = partSize;
+        }
+
+        int partCount() {
+            return (int) ((size + partSize - 1) / partSize);
+        }
+
+        long partLength(int index) {
+            return Math.min(partSize, size - index * partSize);
+        }
+
+        void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    private static class Part {
+        final FileManifest manifest;
+        final List<FileManifest.Fragment> pinned;
+
+        Part(FileManifest manifest, List<FileManifest.Fragment> pinned) {
+            this.manifest = manifest;
+            this.pinned = pinned;
+        }
+    }
+}
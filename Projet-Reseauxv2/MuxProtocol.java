@@ -0,0 +1,132 @@
+import java.io.*;
+
+// Protocole multiplexé entre le serveur principal et les sous-serveurs. Après la commande "MUX",
+// la connexion ne transporte plus que des trames :
+//   int identifiant de requête | byte type | int longueur | longueur octets de charge utile
+// Plusieurs opérations sur des fragments peuvent ainsi être en cours sur une même connexion.
+// Pour RETRIEVE, le sous-serveur n'envoie une trame DATA que s'il dispose d'un crédit : le serveur
+// principal en accorde RETRIEVE_WINDOW au départ puis en rend un par trame consommée, si bien
+// qu'un consommateur lent ne bloque jamais la lecture des autres requêtes de la connexion.
+public class MuxProtocol {
+    public static final String HANDSHAKE = "MUX";
+
+    // Requêtes (serveur principal -> sous-serveur)
+    public static final byte STORE_OPEN = 1;
+    public static final byte STORE_DATA = 2;
+    public static final byte STORE_END = 3;
+    public static final byte RETRIEVE = 4;
+    public static final byte DELETE = 5;
+    public static final byte PING = 6;
+    public static final byte CREDIT = 7;
+    public static final byte ABORT = 8;
+
+    // Réponses (sous-serveur -> serveur principal)
+    public static final byte OK = 16;
+    public static final byte ERROR = 17;
+    public static final byte DATA = 18;
+    public static final byte END = 19;
+    public static final byte NOT_FOUND = 20;
+
+    public static final int HEADER_SIZE = 9;
+    public static final int MAX_PAYLOAD = 4 * 1024 * 1024;
+    public static final int DATA_FRAME_SIZE = 256 * 1024;
+    public static final int RETRIEVE_WINDOW = 8;
+
+    public static final byte[] EMPTY = new byte[0];
+
+    public static class Frame {
+        public final int requestId;
+        public final byte type;
+        public final byte[] payload;
+
+        public Frame(int requestId, byte type, byte[] payload) {
+            this.requestId = requestId;
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public DataInputStream payloadStream() {
+            return new DataInputStream(new ByteArrayInputStream(payload));
+        }
+    }
+
+    public static class Header {
+        public int requestId;
+        public byte type;
+        public int length;
+    }
+
+    // L'appelant tient le verrou de la sortie : une trame ne doit jamais être entrelacée avec une autre.
+    public static void writeHeader(DataOutputStream out, int requestId, byte type, int length) throws IOException {
+        out.writeInt(requestId);
+        out.writeByte(type);
+        out.writeInt(length);
+    }
+
+    public static void writeFrame(DataOutputStream out, int requestId, byte type, byte[] payload, int offset, int length)
+            throws IOException {
+        writeHeader(out, requestId, type, length);
+        out.write(payload, offset, length);
+    }
+
+    // Lit l'en-tête d'un seul bloc (un appel système au lieu de neuf sur un flux non tamponné).
+    // Renvoie false en fin de flux propre, entre deux trames.
+    public static boolean readHeader(DataInputStream in, byte[] scratch, Header header) throws IOException {
+        int first = in.read(scratch, 0, HEADER_SIZE);
+        if (first < 0) {
+            return false;
+        }
+        if (first < HEADER_SIZE) {
+            in.readFully(scratch, first, HEADER_SIZE - first);
+        }
+        header.requestId = ((scratch[0] & 0xFF) << 24) | ((scratch[1] & 0xFF) << 16)
+                | ((scratch[2] & 0xFF) << 8) | (scratch[3] & 0xFF);
+        header.type = scratch[4];
+        header.length = ((scratch[5] & 0xFF) << 24) | ((scratch[6] & 0xFF) << 16)
+                | ((scratch[7] & 0xFF) << 8) | (scratch[8] & 0xFF);
+        if (header.length < 0 || header.length > MAX_PAYLOAD) {
+            throw new IOException("Trame invalide : longueur " + header.length);
+        }
+        return true;
+    }
+
+    public static byte[] readPayload(DataInputStream in, int length) throws IOException {
+        if (length == 0) {
+            return EMPTY;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    // Données d'un RETRIEVE : une trame pleine est lue dans un tableau de BufferPool, que le
+    // destinataire peut y rendre une fois les octets recopiés.
+    public static byte[] readData(DataInputStream in, int length) throws IOException {
+        if (length != DATA_FRAME_SIZE) {
+            return readPayload(in, length);
+        }
+        byte[] payload = BufferPool.take(length);
+        in.readFully(payload);
+        return payload;
+    }
+
+    public static byte[] encode(String text, long... values) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (text != null) {
+                out.writeUTF(text);
+            }
+            for (long value : values) {
+                out.writeLong(value);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static byte[] encodeInt(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+}
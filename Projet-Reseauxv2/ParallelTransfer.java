@@ -0,0 +1,436 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Transferts des gros fichiers côté client : le fichier est découpé en parties de part_size_mb,
+// transférées en parallèle sur parallel_connections connexions distinctes. L'avancement est noté
+// dans un fichier de reprise (répertoire « transfers ») : après une coupure, ou un redémarrage du
+// client, seules les parties manquantes sont transférées. Le fichier final est vérifié de bout en
+// bout par son CRC32C.
+public class ParallelTransfer {
+    private static final String SERVER_HOST = ServerConfigLoader.getMainServerHost();
+    private static final int SERVER_PORT = ServerConfigLoader.getMainServerPort();
+    private static final String SERVER_LINK = SERVER_HOST + ":" + SERVER_PORT;
+    // Lectures du fichier local pour les sommes de contrôle.
+    private static final int FILE_BUFFER_SIZE = 1024 * 1024;
+    private static final int CONNECTIONS = Math.max(1, ServerConfigLoader.getParallelConnections());
+    private static final long PART_SIZE = ServerConfigLoader.getPartSizeBytes();
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int SOCKET_TIMEOUT_MILLIS = 60_000;
+    private static final File CHECKPOINTS = new File("transfers");
+
+    public static boolean isLarge(long size) {
+        return size >= ServerConfigLoader.getParallelThresholdBytes();
+    }
+
+    public static void upload(File file, Consumer<String> log) throws IOException {
+        File checkpointFile = checkpointFile("envoi", file.getAbsolutePath());
+        Properties checkpoint = readCheckpoint(checkpointFile);
+        boolean resumable = checkpoint != null
+                && Long.parseLong(checkpoint.getProperty("size")) == file.length()
+                && Long.parseLong(checkpoint.getProperty("lastModified")) == file.lastModified()
+                && Long.parseLong(checkpoint.getProperty("partSize")) == PART_SIZE;
+        if (!resumable) {
+            checkpoint = new Properties();
+            checkpoint.setProperty("size", Long.toString(file.length()));
+            checkpoint.setProperty("lastModified", Long.toString(file.lastModified()));
+            checkpoint.setProperty("partSize", Long.toString(PART_SIZE));
+            computeChecksums(file, checkpoint);
+        }
+        int partCount = (int) ((file.length() + PART_SIZE - 1) / PART_SIZE);
+
+        Set<Integer> received = new HashSet<>();
+        try (Socket socket = connect()) {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (resumable) {
+                dos.writeUTF("ENVOYER_ETAT");
+                dos.writeUTF(checkpoint.getProperty("uploadId"));
+                dos.flush();
+                if ("OK".equals(dis.readUTF())) {
+                    int count = dis.readInt();
+                    for (int i = 0; i < count; i++) {
+                        int part = dis.readInt();
+                        long checksum = dis.readLong();
+                        if (Long.toString(checksum).equals(checkpoint.getProperty("part." + part))) {
+                            received.add(part);
+                        }
+                    }
+                    log.accept("Reprise de l'envoi de " + file.getName() + " : " + received.size() + "/"
+                            + partCount + " parties déjà reçues");
+                } else {
+                    // Envoi expiré ou serveur redémarré : on recommence.
+                    resumable = false;
+                }
+            }
+            if (!resumable) {
+                dos.writeUTF("ENVOYER_DEBUT");
+                dos.writeUTF(file.getName());
+                dos.writeLong(file.length());
+                dos.writeLong(PART_SIZE);
+                dos.flush();
+                String response = dis.readUTF();
+                if (!"OK".equals(response)) {
+                    throw new IOException(response);
+                }
+                checkpoint.setProperty("uploadId", dis.readUTF());
+                writeCheckpoint(checkpointFile, checkpoint);
+            }
+        }
+
+        Properties progress = checkpoint;
+        String uploadId = checkpoint.getProperty("uploadId");
+        List<Integer> pending = new ArrayList<>();
+        for (int part = 0; part < partCount; part++) {
+            if (!received.contains(part)) {
+                pending.add(part);
+            }
+        }
+        AtomicLong sent = new AtomicLong();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            runParts(pending, file.getName(), log, (part, dis, dos) -> {
+                long offset = part * PART_SIZE;
+                long length = Math.min(PART_SIZE, file.length() - offset);
+                dos.writeUTF("ENVOYER_PARTIE");
+                dos.writeUTF(uploadId);
+                dos.writeInt(part);
+                dos.writeLong(length);
+                dos.writeLong(Long.parseLong(progress.getProperty("part." + part)));
+                long start = System.nanoTime();
+                ByteBuffer buffer = ByteBuffer.wrap(BufferPool.take(LinkTuning.bufferSize(SERVER_LINK)));
+                try {
+                    for (long position = 0; position < length; ) {
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+                        int read = channel.read(buffer, offset + position);
+                        if (read < 0) {
+                            throw new EOFException("Fichier raccourci pendant l'envoi : " + file.getName());
+                        }
+                        dos.write(buffer.array(), 0, read);
+                        position += read;
+                    }
+                } finally {
+                    BufferPool.give(buffer.array());
+                }
+                dos.flush();
+                String response = dis.readUTF();
+                if (!"OK".equals(response)) {
+                    throw new IOException("Partie " + part + " refusée : " + response);
+                }
+                LinkTuning.recordTransfer(SERVER_LINK, length, System.nanoTime() - start);
+                sent.addAndGet(length);
+            });
+        }
+
+        try (Socket socket = connect()) {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            dos.writeUTF("ENVOYER_FIN");
+            dos.writeUTF(uploadId);
+            dos.writeLong(Long.parseLong(checkpoint.getProperty("checksum")));
+            dos.flush();
+            String response = dis.readUTF();
+            if (response.startsWith("Parties manquantes")) {
+                // L'envoi reste ouvert : une nouvelle tentative reprendra les parties manquantes.
+                throw new IOException(response);
+            }
+            Files.deleteIfExists(checkpointFile.toPath());
+            if (!"OK".equals(response)) {
+                throw new IOException(response);
+            }
+        }
+        log.accept("Fichier envoyé : " + file.getName() + " (" + file.length() + " octets, " + sent.get()
+                + " transférés, " + CONNECTIONS + " connexions)");
+    }
+
+    // size et checksum viennent de la réponse du serveur à une première requête de plage vide.
+    public static void download(String fileName, long size, long checksum, File target, Consumer<String> log)
+            throws IOException {
+        File partial = new File(target.getPath() + ".partiel");
+        File checkpointFile = checkpointFile("reception", target.getAbsolutePath());
+        Properties checkpoint = readCheckpoint(checkpointFile);
+        Set<Integer> done = ConcurrentHashMap.newKeySet();
+        boolean resumable = checkpoint != null && partial.length() == size
+                && Long.parseLong(checkpoint.getProperty("size")) == size
+                && Long.parseLong(checkpoint.getProperty("checksum")) == checksum
+                && Long.parseLong(checkpoint.getProperty("partSize")) == PART_SIZE;
+        if (resumable) {
+            for (String part : checkpoint.getProperty("done", "").split(",")) {
+                if (!part.isEmpty()) {
+                    done.add(Integer.parseInt(part));
+                }
+            }
+            log.accept("Reprise du téléchargement de " + fileName + " : " + done.size() + " parties déjà reçues");
+        } else {
+            checkpoint = new Properties();
+            checkpoint.setProperty("size", Long.toString(size));
+            checkpoint.setProperty("checksum", Long.toString(checksum));
+            checkpoint.setProperty("partSize", Long.toString(PART_SIZE));
+        }
+        Properties progress = checkpoint;
+
+        int partCount = (int) ((size + PART_SIZE - 1) / PART_SIZE);
+        List<Integer> pending = new ArrayList<>();
+        for (int part = 0; part < partCount; part++) {
+            if (!done.contains(part)) {
+                pending.add(part);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (!resumable) {
+                channel.truncate(0);
+                if (size > 0) {
+                    // Fichier à sa taille finale dès le départ : les parties y sont écrites à leur place.
+                    channel.write(ByteBuffer.allocate(1), size - 1);
+                }
+                writeCheckpoint(checkpointFile, progress);
+            }
+            runParts(pending, fileName, log, (part, dis, dos) -> {
+                long offset = part * PART_SIZE;
+                long length = Math.min(PART_SIZE, size - offset);
+                dos.writeUTF("RECEVOIR_PLAGE");
+                dos.writeUTF(fileName);
+                dos.writeLong(offset);
+                dos.writeLong(length);
+                dos.flush();
+                String response = dis.readUTF();
+                if (!"OK".equals(response)) {
+                    throw new IOException(response);
+                }
+                long fileSize = dis.readLong();
+                long rangeLength = dis.readLong();
+                long fileChecksum = dis.readLong();
+                if (fileSize != size || fileChecksum != checksum || rangeLength != length) {
+                    throw new ChangedFileException("Le fichier " + fileName + " a été modifié sur le serveur");
+                }
+                long start = System.nanoTime();
+                ByteBuffer buffer = ByteBuffer.wrap(BufferPool.take(LinkTuning.bufferSize(SERVER_LINK)));
+                try {
+                    for (long position = 0; position < length; ) {
+                        int chunk = (int) Math.min(buffer.capacity(), length - position);
+                        dis.readFully(buffer.array(), 0, chunk);
+                        buffer.clear().limit(chunk);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer, offset + position + buffer.position());
+                        }
+                        position += chunk;
+                    }
+                } finally {
+                    BufferPool.give(buffer.array());
+                }
+                LinkTuning.recordTransfer(SERVER_LINK, length, System.nanoTime() - start);
+                // Les données doivent être sur le disque avant d'être notées comme reçues.
+                channel.force(false);
+                synchronized (progress) {
+                    done.add(part);
+                    StringBuilder list = new StringBuilder();
+                    for (int received : new TreeSet<>(done)) {
+                        list.append(list.length() == 0 ? "" : ",").append(received);
+                    }
+                    progress.setProperty("done", list.toString());
+                    writeCheckpoint(checkpointFile, progress);
+                }
+            });
+        } catch (ChangedFileException e) {
+            Files.deleteIfExists(checkpointFile.toPath());
+            Files.deleteIfExists(partial.toPath());
+            throw e;
+        }
+
+        long actual = checksumOf(partial, 0, size);
+        if (actual != checksum) {
+            Files.deleteIfExists(checkpointFile.toPath());
+            Files.deleteIfExists(partial.toPath());
+            throw new IOException("Fichier corrompu : CRC32C " + Long.toHexString(actual) + " au lieu de "
+                    + Long.toHexString(checksum));
+        }
+        Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(checkpointFile.toPath());
+        log.accept("Fichier téléchargé : " + target.getName() + " (" + size + " octets, CRC32C vérifié)");
+    }
+
+    private interface PartTransfer {
+        void run(int part, DataInputStream dis, DataOutputStream dos) throws IOException;
+    }
+
+    // Les parties sont réparties entre CONNECTIONS connexions. Une partie en échec est remise dans la
+    // file et retentée sur une nouvelle connexion, au plus MAX_ATTEMPTS fois, avec une attente
+    // croissante entre les tentatives.
+    private static void runParts(List<Integer> parts, String fileName, Consumer<String> log, PartTransfer transfer)
+            throws IOException {
+        BlockingQueue<Integer> queue = new LinkedBlockingQueue<>(parts);
+        Map<Integer, Integer> attempts = new ConcurrentHashMap<>();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(CONNECTIONS, Math.max(1, parts.size())));
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < Math.min(CONNECTIONS, parts.size()); i++) {
+            tasks.add(workers.submit(() -> {
+                Socket socket = null;
+                DataInputStream dis = null;
+                DataOutputStream dos = null;
+                try {
+                    Integer part;
+                    while (failure.get() == null && (part = queue.poll()) != null) {
+                        try {
+                            if (socket == null) {
+                                socket = connect();
+                                int bufferSize = LinkTuning.streamBufferSize();
+                                dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferSize));
+                                dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), bufferSize));
+                            }
+                            transfer.run(part, dis, dos);
+                        } catch (ChangedFileException e) {
+                            failure.compareAndSet(null, e);
+                        } catch (IOException e) {
+                            closeQuietly(socket);
+                            socket = null;
+                            int attempt = attempts.merge(part, 1, Integer::sum);
+                            if (attempt >= MAX_ATTEMPTS) {
+                                failure.compareAndSet(null, new IOException("Partie " + part + " de " + fileName
+                                        + " en échec après " + attempt + " tentatives : " + e, e));
+                                return null;
+                            }
+                            log.accept("Partie " + part + " de " + fileName + " interrompue (" + e
+                                    + "), nouvelle tentative");
+                            Thread.sleep(500L << attempt);
+                            queue.add(part);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    closeQuietly(socket);
+                }
+                return null;
+            }));
+        }
+        workers.shutdown();
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfert interrompu : " + fileName);
+        } catch (ExecutionException e) {
+            throw new IOException("Transfert interrompu : " + fileName, e.getCause());
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    // Un seul passage sur le fichier : CRC32C de chaque partie et du fichier entier.
+    private static void computeChecksums(File file, Properties checkpoint) throws IOException {
+        CRC32C whole = new CRC32C();
+        byte[] buffer = BufferPool.take(FILE_BUFFER_SIZE);
+        try (InputStream in = new FileInputStream(file)) {
+            for (int part = 0; (long) part * PART_SIZE < file.length(); part++) {
+                CRC32C crc = new CRC32C();
+                long remaining = Math.min(PART_SIZE, file.length() - part * PART_SIZE);
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("Fichier raccourci : " + file.getName());
+                    }
+                    crc.update(buffer, 0, read);
+                    whole.update(buffer, 0, read);
+                    remaining -= read;
+                }
+                checkpoint.setProperty("part." + part, Long.toString(crc.getValue()));
+            }
+        } finally {
+            BufferPool.give(buffer);
+        }
+        checkpoint.setProperty("checksum", Long.toString(whole.getValue()));
+    }
+
+    private static long checksumOf(File file, long offset, long length) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.wrap(BufferPool.take(FILE_BUFFER_SIZE));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (long position = offset; position < offset + length; ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), offset + length - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Fichier incomplet : " + file.getName());
+                }
+                buffer.flip();
+                crc.update(buffer);
+                position += read;
+            }
+        } finally {
+            BufferPool.give(buffer.array());
+        }
+        return crc.getValue();
+    }
+
+    private static Socket connect() throws IOException {
+        Socket socket = new Socket();
+        LinkTuning.configure(socket);
+        long connectStart = System.nanoTime();
+        socket.connect(new InetSocketAddress(SERVER_HOST, SERVER_PORT));
+        LinkTuning.recordRoundTrip(SERVER_LINK, System.nanoTime() - connectStart);
+        socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+        return socket;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // déjà fermée
+            }
+        }
+    }
+
+    private static File checkpointFile(String kind, String path) {
+        String name = new File(path).getName().replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(CHECKPOINTS, kind + "-" + name + "-" + Integer.toHexString(path.hashCode()) + ".properties");
+    }
+
+    private static Properties readCheckpoint(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties checkpoint = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            checkpoint.load(in);
+            return checkpoint;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Écriture dans un fichier temporaire puis renommage : une coupure ne laisse jamais de fichier
+    // de reprise à moitié écrit.
+    private static void writeCheckpoint(File file, Properties checkpoint) throws IOException {
+        Files.createDirectories(CHECKPOINTS.toPath());
+        File temporary = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temporary)) {
+            checkpoint.store(out, "Reprise de transfert");
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Le fichier a changé sur le serveur pendant le téléchargement : les parties déjà reçues ne
+    // valent plus rien, inutile de réessayer.
+    private static class ChangedFileException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ChangedFileException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Anneau de hachage cohérent : chaque sous-serveur y occupe plusieurs positions (nœuds virtuels) et
+// un objet est confié aux premiers sous-serveurs distincts rencontrés après son empreinte. Ajouter
+// ou retirer un sous-serveur ne déplace ainsi que les objets des arcs voisins de ses positions.
+// Le nombre de positions d'un sous-serveur suit son poids ; un poids nul le retire de l'anneau.
+// Pour une écriture, les sous-serveurs surchargés passent après les autres.
+public class PlacementRing {
+    private static volatile PlacementRing current;
+
+    private final TreeMap<Long, ServerConfigLoader.SubServerInfo> ring = new TreeMap<>();
+    private final int nodeCount;
+    private final int replicationFactor;
+    private final long version;
+
+    public PlacementRing(List<ServerConfigLoader.SubServerInfo> nodes, int virtualNodes, int replicationFactor) {
+        this(nodes, virtualNodes, replicationFactor, 0);
+    }
+
+    private PlacementRing(List<ServerConfigLoader.SubServerInfo> nodes, int virtualNodes, int replicationFactor,
+                          long version) {
+        Set<String> addresses = new HashSet<>();
+        for (ServerConfigLoader.SubServerInfo node : nodes) {
+            if (node.weight <= 0 || !addresses.add(node.address())) {
+                continue;
+            }
+            for (int i = 0; i < virtualNodes * node.weight; i++) {
+                ring.put(hash(node.address() + "#" + i), node);
+            }
+        }
+        this.nodeCount = addresses.size();
+        this.replicationFactor = Math.max(1, Math.min(replicationFactor, nodeCount));
+        this.version = version;
+    }
+
+    public static PlacementRing fromConfiguration() {
+        ServerConfigLoader.Membership membership = ServerConfigLoader.getMembership();
+        return new PlacementRing(membership.subServers, ServerConfigLoader.getRingVirtualNodes(),
+                ServerConfigLoader.getReplicationFactor(), membership.version);
+    }
+
+    // Anneau de la vue courante des sous-serveurs, reconstruit quand elle change de version. Une
+    // opération garde l'anneau obtenu au départ jusqu'à la fin.
+    public static PlacementRing current() {
+        PlacementRing ring = current;
+        if (ring == null || ring.version != ServerConfigLoader.getMembership().version) {
+            ring = fromConfiguration();
+            current = ring;
+        }
+        return ring;
+    }
+
+    public int replicationFactor() {
+        return replicationFactor;
+    }
+
+    // Nombre de sous-serveurs présents sur l'anneau (poids non nul).
+    public int size() {
+        return nodeCount;
+    }
+
+    // Emplacement de référence de l'objet, indépendant de l'état des sous-serveurs : c'est lui que
+    // le rééquilibrage cherche à atteindre.
+    public List<ServerConfigLoader.SubServerInfo> nodesFor(String object) {
+        List<ServerConfigLoader.SubServerInfo> successors = successors(object);
+        return new ArrayList<>(successors.subList(0, Math.min(replicationFactor, successors.size())));
+    }
+
+    // Emplacement pour une écriture : les sous-serveurs injoignables ou surchargés sont sautés au
+    // profit des suivants sur l'anneau ; le rééquilibrage remettra l'objet à sa place.
+    public List<ServerConfigLoader.SubServerInfo> placementFor(String object) {
+        List<ServerConfigLoader.SubServerInfo> candidates = writable(successors(object));
+        List<ServerConfigLoader.SubServerInfo> placement =
+                new ArrayList<>(candidates.subList(0, Math.min(replicationFactor, candidates.size())));
+        return placement.isEmpty() ? nodesFor(object) : placement;
+    }
+
+    // Emplacement de référence des count fragments codés d'un fichier : les sous-serveurs qui suivent
+    // la clé sur l'anneau, un par fragment, en recommençant au premier s'il y a plus de fragments
+    // que de sous-serveurs.
+    public List<ServerConfigLoader.SubServerInfo> spreadFor(String key, int count) {
+        return cycle(successors(key), count);
+    }
+
+    // Variante pour une écriture, qui saute les sous-serveurs injoignables ; les surchargés ne
+    // reçoivent un fragment que s'il en reste après un tour des autres.
+    public List<ServerConfigLoader.SubServerInfo> spreadPlacementFor(String key, int count) {
+        List<ServerConfigLoader.SubServerInfo> candidates = writable(successors(key));
+        return candidates.isEmpty() ? spreadFor(key, count) : cycle(candidates, count);
+    }
+
+    // Successeurs joignables, dans l'ordre de l'anneau, les surchargés en dernier.
+    private static List<ServerConfigLoader.SubServerInfo> writable(List<ServerConfigLoader.SubServerInfo> successors) {
+        List<ServerConfigLoader.SubServerInfo> candidates = new ArrayList<>(successors.size());
+        List<ServerConfigLoader.SubServerInfo> overloaded = new ArrayList<>();
+        for (ServerConfigLoader.SubServerInfo node : successors) {
+            if (!SubServerPool.isHealthy(node)) {
+                continue;
+            }
+            (SubServerPool.isOverloaded(node) ? overloaded : candidates).add(node);
+        }
+        candidates.addAll(overloaded);
+        return candidates;
+    }
+
+    private static List<ServerConfigLoader.SubServerInfo> cycle(List<ServerConfigLoader.SubServerInfo> nodes, int count) {
+        List<ServerConfigLoader.SubServerInfo> spread = new ArrayList<>(count);
+        for (int i = 0; i < count && !nodes.isEmpty(); i++) {
+            spread.add(nodes.get(i % nodes.size()));
+        }
+        return spread;
+    }
+
+    private List<ServerConfigLoader.SubServerInfo> successors(String object) {
+        List<ServerConfigLoader.SubServerInfo> successors = new ArrayList<>(nodeCount);
+        if (ring.isEmpty()) {
+            return successors;
+        }
+        Set<String> seen = new HashSet<>();
+        Iterator<ServerConfigLoader.SubServerInfo> tail = ring.tailMap(hash(object)).values().iterator();
+        Iterator<ServerConfigLoader.SubServerInfo> head = ring.values().iterator();
+        while (successors.size() < nodeCount) {
+            ServerConfigLoader.SubServerInfo node = tail.hasNext() ? tail.next() : head.next();
+            if (seen.add(node.address())) {
+                successors.add(node);
+            }
+        }
+        return successors;
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (digest[i] & 0xFF);
+            }
+            return value;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 indisponible", e);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Rééquilibrage : ramène chaque objet sur les sous-serveurs que lui attribue l'anneau courant. Grâce
+// au hachage cohérent, après l'ajout ou le retrait d'un sous-serveur seuls les objets des arcs
+// concernés changent de place ; les répliques manquantes (écriture échouée, nœud perdu) sont recréées
+// au passage. Les copies sont faites avant la mise à jour des manifestes, et les anciennes copies
+// supprimées seulement après.
+// Il est relancé à chaque nouvelle version de la vue des sous-serveurs (configuration rechargée).
+public class Rebalancer {
+    private static final int BATCH_SIZE = 256;
+    private static final long STARTUP_DELAY_MILLIS = 5000;
+    private static final AtomicBoolean PENDING = new AtomicBoolean();
+    private static final ScheduledExecutorService RUNNER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rebalancer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Lancé au démarrage du serveur principal, et après un changement des sous-serveurs, une fois
+    // ceux-ci en écoute. Les demandes faites pendant l'attente n'en font qu'une.
+    public static void startInBackground() {
+        if (PENDING.compareAndSet(false, true)) {
+            RUNNER.schedule(() -> {
+                PENDING.set(false);
+                rebalance(PlacementRing.current());
+            }, STARTUP_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static synchronized void rebalance(PlacementRing ring) {
+        long copies = 0;
+        long deletions = 0;
+        long failures = 0;
+        Map<String, List<String>> placement = desiredPlacement(ring);
+        if (placement == null) {
+            Log.error("Rééquilibrage ignoré : aucun sous-serveur ne peut recevoir d'objets");
+            return;
+        }
+        List<Map.Entry<String, List<String>>> misplaced = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : MetadataStore.locations().entrySet()) {
+            List<String> desired = placement.get(entry.getKey());
+            if (desired != null && !new HashSet<>(desired).equals(new HashSet<>(entry.getValue()))) {
+                misplaced.add(entry);
+            }
+        }
+
+        for (int start = 0; start < misplaced.size(); start += BATCH_SIZE) {
+            List<Map.Entry<String, List<String>>> batch = misplaced.subList(start, Math.min(misplaced.size(), start + BATCH_SIZE));
+            // Objets épinglés, avec tous les nœuds où ils peuvent se trouver s'ils deviennent orphelins.
+            Map<String, Set<String>> pinned = new HashMap<>();
+            Map<String, List<String>> targets = new HashMap<>();
+            try {
+                for (Map.Entry<String, List<String>> entry : batch) {
+                    String object = entry.getKey();
+                    List<String> current = MetadataStore.pin(object);
+                    Set<String> touched = new LinkedHashSet<>(entry.getValue());
+                    pinned.put(object, touched);
+                    if (current == null) {
+                        continue;
+                    }
+                    touched.addAll(current);
+                    List<String> desired = placement.get(object);
+                    List<String> reached = new ArrayList<>();
+                    for (String node : desired) {
+                        if (current.contains(node)) {
+                            reached.add(node);
+                        } else if (copy(object, current, node)) {
+                            reached.add(node);
+                            touched.add(node);
+                            copies++;
+                        } else {
+                            failures++;
+                        }
+                    }
+                    // Tant que l'emplacement cible n'est pas complet, les anciennes copies sont gardées.
+                    if (reached.size() < desired.size()) {
+                        for (String node : current) {
+                            if (!reached.contains(node)) {
+                                reached.add(node);
+                            }
+                        }
+                    }
+                    targets.put(object, reached);
+                }
+
+                for (Map.Entry<String, List<String>> released : MetadataStore.relocate(targets).entrySet()) {
+                    for (String node : released.getValue()) {
+                        try {
+                            SubServerPool.acquire(ServerConfigLoader.SubServerInfo.parse(node)).delete(released.getKey());
+                            deletions++;
+                        } catch (IOException e) {
+                            Metrics.fragmentFailure("suppression", node);
+                            Log.error("Impossible de supprimer " + released.getKey() + " sur " + node
+                                    + " : " + e.getMessage());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("Rééquilibrage interrompu : " + e.getMessage());
+                failures++;
+                break;
+            } finally {
+                List<FileManifest.Fragment> fragments = new ArrayList<>();
+                for (Map.Entry<String, Set<String>> entry : pinned.entrySet()) {
+                    fragments.add(new FileManifest.Fragment(entry.getKey(), 0, 0, new ArrayList<>(entry.getValue())));
+                }
+                FileStorage.deleteObjects(MetadataStore.unpin(fragments));
+            }
+        }
+        if (!misplaced.isEmpty()) {
+            Log.info("Rééquilibrage : " + misplaced.size() + " objets mal placés, " + copies + " copies, "
+                    + deletions + " suppressions, " + failures + " échecs");
+        }
+    }
+
+    // Les fragments codés d'un fichier rs sont répartis ensemble, un sous-serveur par fragment ;
+    // les autres objets suivent l'anneau avec le facteur de réplication. Renvoie null si l'anneau est
+    // vide (configuration vide ou tous les sous-serveurs en vidage) : tout objet y serait « mal
+    // placé », on attend la configuration suivante plutôt que de tout supprimer.
+    private static Map<String, List<String>> desiredPlacement(PlacementRing ring) {
+        if (ring.size() == 0) {
+            return null;
+        }
+        Map<String, List<String>> placement = new HashMap<>();
+        for (FileManifest manifest : MetadataStore.list()) {
+            List<ServerConfigLoader.SubServerInfo> spread = FileManifest.ERASURE.equals(manifest.mode)
+                    ? ring.spreadFor(manifest.name, manifest.fragments.size()) : null;
+            if (spread != null && spread.size() < manifest.fragments.size()) {
+                return null;
+            }
+            for (int i = 0; i < manifest.fragments.size(); i++) {
+                String object = manifest.fragments.get(i).object;
+                if (spread != null) {
+                    placement.put(object, List.of(spread.get(i).address()));
+                } else {
+                    placement.computeIfAbsent(object, key -> addresses(ring.nodesFor(key)));
+                }
+            }
+        }
+        return placement;
+    }
+
+    // Recopie l'objet entier depuis la plus rapide de ses répliques actuelles.
+    private static boolean copy(String object, List<String> sources, String target) {
+        List<ServerConfigLoader.SubServerInfo> nodes = new ArrayList<>();
+        for (String source : sources) {
+            nodes.add(ServerConfigLoader.SubServerInfo.parse(source));
+        }
+        for (ServerConfigLoader.SubServerInfo source : SubServerPool.rankReplicas(nodes)) {
+            SubServerConnection.Exchange retrieve = null;
+            SubServerConnection.Exchange store = null;
+            try {
+                retrieve = SubServerPool.acquire(source).retrieve(object, 0, -1);
+                if (retrieve.awaitHeader() < 0) {
+                    continue;
+                }
+                store = SubServerPool.acquire(ServerConfigLoader.SubServerInfo.parse(target)).store(object);
+                byte[] data;
+                while ((data = retrieve.nextData()) != null) {
+                    store.write(data, 0, data.length);
+                    BufferPool.give(data);
+                }
+                store.finish();
+                return true;
+            } catch (IOException e) {
+                Metrics.fragmentFailure("copie", target);
+                Log.error("Copie de " + object + " de " + source.address() + " vers " + target
+                        + " impossible : " + e.getMessage());
+                if (retrieve != null) {
+                    retrieve.abort();
+                }
+                if (store != null) {
+                    store.abort();
+                }
+            }
+        }
+        return false;
+    }
+
+    private static List<String> addresses(List<ServerConfigLoader.SubServerInfo> nodes) {
+        List<String> addresses = new ArrayList<>(nodes.size());
+        for (ServerConfigLoader.SubServerInfo node : nodes) {
+            addresses.add(node.address());
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Code de Reed–Solomon systématique sur GF(2^8) : k fragments de données et m fragments de parité,
+// n'importe quels k d'entre eux suffisent à reconstruire les données. La matrice de parité est une
+// matrice de Cauchy, dont toutes les sous-matrices carrées sont inversibles.
+// Les boucles de codage n'allouent rien : elles lisent une table de multiplication précalculée et
+// écrivent dans les tableaux fournis par l'appelant.
+public class ReedSolomon {
+    private static final int FIELD_SIZE = 256;
+    // Polynôme primitif x^8 + x^4 + x^3 + x^2 + 1.
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final byte[] EXP = new byte[2 * FIELD_SIZE];
+    private static final int[] LOG = new int[FIELD_SIZE];
+    // MUL[a][b] = a × b dans GF(2^8).
+    private static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    private static final Map<String, ReedSolomon> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        int value = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = (byte) value;
+            LOG[value] = i;
+            value <<= 1;
+            if (value >= FIELD_SIZE) {
+                value ^= POLYNOMIAL;
+            }
+        }
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+        for (int a = 1; a < FIELD_SIZE; a++) {
+            for (int b = 1; b < FIELD_SIZE; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    // Lignes de parité de la matrice génératrice (les k premières lignes sont l'identité).
+    private final byte[][] parityRows;
+    // Matrices de décodage déjà calculées, par ensemble de fragments utilisés (jusqu'à 256 fragments).
+    private final Map<BitSet, byte[][]> decodeMatrices = new ConcurrentHashMap<>();
+
+    private ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE) {
+            throw new IllegalArgumentException("Paramètres de codage invalides : " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.parityRows = new byte[parityShards][dataShards];
+        for (int r = 0; r < parityShards; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                // Cauchy : 1 / (x_r + y_c) avec x_r = k + r et y_c = c, tous distincts.
+                parityRows[r][c] = inverse((dataShards + r) ^ c);
+            }
+        }
+    }
+
+    public static ReedSolomon get(int dataShards, int parityShards) {
+        return CODECS.computeIfAbsent(dataShards + "+" + parityShards, key -> new ReedSolomon(dataShards, parityShards));
+    }
+
+    public int dataShards() {
+        return dataShards;
+    }
+
+    public int totalShards() {
+        return dataShards + parityShards;
+    }
+
+    // Calcule shards[k..k+m-1] à partir de shards[0..k-1], sur la plage [offset, offset + length).
+    public void encodeParity(byte[][] shards, int offset, int length) {
+        codeShards(parityRows, shards, shards, dataShards, parityShards, offset, length);
+    }
+
+    // Reconstruit en place les fragments de données absents à partir d'au moins k fragments présents.
+    public void decodeMissing(byte[][] shards, boolean[] present, int offset, int length) {
+        int[] used = new int[dataShards];
+        int count = 0;
+        BitSet key = new BitSet(shards.length);
+        for (int i = 0; i < shards.length && count < dataShards; i++) {
+            if (present[i]) {
+                used[count++] = i;
+                key.set(i);
+            }
+        }
+        if (count < dataShards) {
+            throw new IllegalArgumentException("Seulement " + count + " fragments sur les " + dataShards + " nécessaires");
+        }
+
+        int missing = 0;
+        for (int d = 0; d < dataShards; d++) {
+            if (!present[d]) {
+                missing++;
+            }
+        }
+        if (missing == 0) {
+            return;
+        }
+
+        byte[][] decode = decodeMatrices.computeIfAbsent(key, k -> invert(subMatrix(used)));
+        byte[][] inputs = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            inputs[i] = shards[used[i]];
+        }
+        byte[][] rows = new byte[missing][];
+        byte[][] outputs = new byte[missing][];
+        int next = 0;
+        for (int d = 0; d < dataShards; d++) {
+            if (!present[d]) {
+                rows[next] = decode[d];
+                outputs[next++] = shards[d];
+            }
+        }
+        codeShards(rows, inputs, outputs, 0, missing, offset, length);
+    }
+
+    // outputs[first + r] = somme sur c de rows[r][c] × inputs[c], octet par octet. La première
+    // entrée initialise la sortie, les suivantes y sont ajoutées (xor).
+    private void codeShards(byte[][] rows, byte[][] inputs, byte[][] outputs, int first, int outputCount,
+                            int offset, int length) {
+        int end = offset + length;
+        for (int c = 0; c < dataShards; c++) {
+            byte[] input = inputs[c];
+            for (int r = 0; r < outputCount; r++) {
+                byte[] table = MUL[rows[r][c] & 0xFF];
+                byte[] output = outputs[first + r];
+                if (c == 0) {
+                    for (int i = offset; i < end; i++) {
+                        output[i] = table[input[i] & 0xFF];
+                    }
+                } else {
+                    for (int i = offset; i < end; i++) {
+                        output[i] ^= table[input[i] & 0xFF];
+                    }
+                }
+            }
+        }
+    }
+
+    // Lignes de la matrice génératrice correspondant aux fragments utilisés.
+    private byte[][] subMatrix(int[] used) {
+        byte[][] matrix = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            if (used[i] < dataShards) {
+                matrix[i] = new byte[dataShards];
+                matrix[i][used[i]] = 1;
+            } else {
+                matrix[i] = parityRows[used[i] - dataShards].clone();
+            }
+        }
+        return matrix;
+    }
+
+    // Inversion de Gauss-Jordan dans GF(2^8).
+    private byte[][] invert(byte[][] matrix) {
+        int size = matrix.length;
+        byte[][] work = new byte[size][];
+        byte[][] result = new byte[size][size];
+        for (int i = 0; i < size; i++) {
+            work[i] = matrix[i].clone();
+            result[i][i] = 1;
+        }
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+            while (pivot < size && work[pivot][column] == 0) {
+                pivot++;
+            }
+            if (pivot == size) {
+                throw new IllegalStateException("Matrice de décodage singulière");
+            }
+            byte[] swap = work[pivot];
+            work[pivot] = work[column];
+            work[column] = swap;
+            swap = result[pivot];
+            result[pivot] = result[column];
+            result[column] = swap;
+
+            byte[] scale = MUL[inverse(work[column][column] & 0xFF) & 0xFF];
+            for (int c = 0; c < size; c++) {
+                work[column][c] = scale[work[column][c] & 0xFF];
+                result[column][c] = scale[result[column][c] & 0xFF];
+            }
+            for (int row = 0; row < size; row++) {
+                int factor = work[row][column] & 0xFF;
+                if (row == column || factor == 0) {
+                    continue;
+                }
+                byte[] times = MUL[factor];
+                for (int c = 0; c < size; c++) {
+                    work[row][c] ^= times[work[column][c] & 0xFF];
+                    result[row][c] ^= times[result[column][c] & 0xFF];
+                }
+            }
+        }
+        return result;
+    }
+
+    private static byte inverse(int value) {
+        return EXP[FIELD_SIZE - 1 - LOG[value]];
+    }
+}
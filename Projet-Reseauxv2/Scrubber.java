@@ -0,0 +1,275 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+
+// Vérification de fond des objets d'un sous-serveur contre leurs sommes de contrôle. Le parcours
+// n'avance que quand le nœud est inactif, et à scrub_mb_per_s au plus, pour ne pas prendre de débit
+// aux transferts ; un nouveau passage commence toutes les scrub_interval_min. Un objet corrompu est
+// mis en quarantaine et les lectures passent sur ses autres répliques ; un objet stocké avant les
+// sommes de contrôle en reçoit au passage. Les objets rangés dans les segments sont vérifiés sur place
+// dans la projection ; un enregistrement corrompu est recopié en quarantaine puis supprimé du segment.
+// Les objets signalés par une lecture en échec sont revérifiés en priorité, même si le nœud est occupé.
+public class Scrubber implements Runnable {
+    private static final String QUARANTINE = "quarantaine";
+    private static final long IDLE_POLL_MILLIS = 200;
+    private static final int SLICE_SIZE = 256 * 1024;
+
+    private final int port;
+    private final File directory;
+    private final SegmentStore segments;
+    private final BooleanSupplier idle;
+    private final long bytesPerSecond = ServerConfigLoader.getScrubBytesPerSecond();
+    private final long intervalMillis = ServerConfigLoader.getScrubIntervalMillis();
+    private final BlockingQueue<String> suspects = new LinkedBlockingQueue<>();
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(SLICE_SIZE + 2 * BlockChecksums.BLOCK_SIZE);
+    private final Metrics.Counter bytesChecked;
+    private final Metrics.Counter quarantined;
+
+    public Scrubber(int port, File directory, SegmentStore segments, BooleanSupplier idle) {
+        this.port = port;
+        this.directory = directory;
+        this.segments = segments;
+        this.idle = idle;
+        this.bytesChecked = Metrics.throughput("verification_octets_total",
+                "Octets relus par la vérification de fond", "port", Integer.toString(port));
+        this.quarantined = Metrics.counter("verification_quarantaines_total",
+                "Objets corrompus mis en quarantaine", "port", Integer.toString(port));
+    }
+
+    public void start() {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        Thread thread = new Thread(this, "scrubber-" + port);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public void suspect(String fileName) {
+        if (queued.add(fileName)) {
+            suspects.add(fileName);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                long nextPass = System.currentTimeMillis() + intervalMillis;
+                int checked = 0;
+                int corrupted = 0;
+                for (String name : objects()) {
+                    checkSuspects();
+                    waitUntilIdle();
+                    checked++;
+                    if (!check(name)) {
+                        corrupted++;
+                    }
+                }
+                Log.info("Vérification du sous-serveur " + port + " terminée : " + checked
+                        + " objets, " + corrupted + " corrompus");
+                long wait;
+                while ((wait = nextPass - System.currentTimeMillis()) > 0) {
+                    String suspect = suspects.poll(wait, TimeUnit.MILLISECONDS);
+                    if (suspect != null) {
+                        queued.remove(suspect);
+                        check(suspect);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<String> objects() {
+        String[] names = directory.list();
+        List<String> objects = new ArrayList<>();
+        for (String name : names == null ? new String[0] : names) {
+            if (!name.endsWith(BlockChecksums.SUFFIX) && !name.contains(".tmp-") && new File(directory, name).isFile()) {
+                objects.add(name);
+            }
+        }
+        objects.addAll(segments.names());
+        return objects;
+    }
+
+    private void checkSuspects() throws InterruptedException {
+        String suspect;
+        while ((suspect = suspects.poll()) != null) {
+            queued.remove(suspect);
+            check(suspect);
+        }
+    }
+
+    private void waitUntilIdle() throws InterruptedException {
+        while (!idle.getAsBoolean()) {
+            Thread.sleep(IDLE_POLL_MILLIS);
+        }
+    }
+
+    // Renvoie false si l'objet a été mis en quarantaine.
+    private boolean check(String name) throws InterruptedException {
+        SegmentStore.Entry packed = segments.get(name);
+        if (packed != null) {
+            return check(name, packed);
+        }
+        File object = new File(directory, name);
+        Object[] before;
+        try {
+            before = identity(object);
+        } catch (IOException e) {
+            return true;
+        }
+        try (FileChannel file = FileChannel.open(object.toPath(), StandardOpenOption.READ)) {
+            BlockChecksums checksums = BlockChecksums.load(object);
+            if (checksums == null) {
+                addChecksums(object, file);
+                return true;
+            }
+            long position = 0;
+            do {
+                long start = System.nanoTime();
+                int length = (int) Math.min(SLICE_SIZE, checksums.size - position);
+                checksums.read(file, position, position + length, buffer, name);
+                position += length;
+                bytesChecked.add(length);
+                throttle(length, start);
+            } while (position < checksums.size);
+            return true;
+        } catch (NoSuchFileException e) {
+            return true;
+        } catch (BlockChecksums.CorruptionException e) {
+            try {
+                // Objet remplacé pendant la vérification : il sera revu au passage suivant.
+                if (!Arrays.equals(before, identity(object))) {
+                    return true;
+                }
+            } catch (IOException ignored) {
+                return true;
+            }
+            quarantine(object, e.getMessage());
+            return false;
+        } catch (IOException e) {
+            Log.error("Vérification impossible de " + name + " sur le sous-serveur " + port + " : "
+                    + e.getMessage());
+            return true;
+        }
+    }
+
+    private boolean check(String name, SegmentStore.Entry packed) throws InterruptedException {
+        long position = 0;
+        try {
+            do {
+                long start = System.nanoTime();
+                int length = (int) Math.min(SLICE_SIZE, packed.size - position);
+                packed.read(position, length, name);
+                position += length;
+                bytesChecked.add(length);
+                throttle(length, start);
+            } while (position < packed.size);
+            return true;
+        } catch (BlockChecksums.CorruptionException e) {
+            // Objet remplacé pendant la vérification : la nouvelle version sera revue au passage suivant.
+            if (segments.get(name) != packed) {
+                return true;
+            }
+            quarantine(name, packed, e.getMessage());
+            return false;
+        }
+    }
+
+    // L'objet et ses sommes : un STORE remplace les deux fichiers par renommage, donc change leurs inodes.
+    private static Object[] identity(File object) throws IOException {
+        Path sidecar = BlockChecksums.sidecar(object).toPath();
+        return new Object[] {
+                Files.readAttributes(object.toPath(), BasicFileAttributes.class).fileKey(),
+                Files.exists(sidecar) ? Files.readAttributes(sidecar, BasicFileAttributes.class).fileKey() : null
+        };
+    }
+
+    private void addChecksums(File object, FileChannel file) throws IOException, InterruptedException {
+        BlockChecksums.Builder builder = new BlockChecksums.Builder();
+        long position = 0;
+        long size = file.size();
+        while (position < size) {
+            long start = System.nanoTime();
+            buffer.clear();
+            buffer.limit((int) Math.min(SLICE_SIZE, size - position));
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Fragment tronqué pendant la vérification");
+                }
+            }
+            buffer.flip();
+            builder.update(buffer);
+            position += buffer.limit();
+            bytesChecked.add(buffer.limit());
+            throttle(buffer.limit(), start);
+        }
+        File temporary = new File(directory, object.getName() + BlockChecksums.SUFFIX + ".tmp-scrub");
+        try {
+            builder.finish().write(temporary);
+            // Sans remplacement : des sommes écrites entre-temps par un STORE sont plus récentes.
+            Files.createLink(BlockChecksums.sidecar(object).toPath(), temporary.toPath());
+            Log.info("Sommes de contrôle créées pour " + object.getName() + " sur le sous-serveur " + port);
+        } catch (FileAlreadyExistsException e) {
+            // déjà en place
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    private void quarantine(File object, String reason) {
+        File target = new File(directory, QUARANTINE);
+        try {
+            Files.createDirectories(target.toPath());
+            Files.move(object.toPath(), new File(target, object.getName()).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            Files.move(BlockChecksums.sidecar(object).toPath(),
+                    BlockChecksums.sidecar(new File(target, object.getName())).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            quarantined.increment();
+            Log.error("Sous-serveur " + port + " : " + reason + ", objet mis en quarantaine");
+        } catch (IOException e) {
+            Log.error("Quarantaine impossible de " + object.getName() + " sur le sous-serveur " + port
+                    + " : " + e.getMessage());
+        }
+    }
+
+    private void quarantine(String name, SegmentStore.Entry packed, String reason) {
+        File target = new File(new File(directory, QUARANTINE), name);
+        try {
+            Files.createDirectories(target.getParentFile().toPath());
+            try (FileChannel file = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer data = packed.data();
+                while (data.hasRemaining()) {
+                    file.write(data);
+                }
+            }
+            packed.checksums().write(BlockChecksums.sidecar(target));
+            if (segments.remove(name, packed)) {
+                quarantined.increment();
+                Log.error("Sous-serveur " + port + " : " + reason + ", objet mis en quarantaine");
+            }
+        } catch (IOException e) {
+            Log.error("Quarantaine impossible de " + name + " sur le sous-serveur " + port + " : " + e.getMessage());
+        }
+    }
+
+    // Attend assez pour que length octets lus depuis start respectent le débit fixé.
+    private void throttle(long length, long start) throws InterruptedException {
+        long remaining = length * 1_000_000_000L / bytesPerSecond - (System.nanoTime() - start);
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+}
@@ -0,0 +1,419 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32C;
+
+// Rangement des petits objets d'un sous-serveur (au plus segment_object_max_kb) dans de grands
+// fichiers « segments/segment-NNNNNN.seg » de segment_mb, préalloués et projetés en mémoire : un
+// objet n'est plus un fichier (et son .crc), mais un enregistrement ajouté à la suite du segment
+// courant. L'index nom -> enregistrement est en mémoire ; il est reconstruit au démarrage en ne
+// lisant que les en-têtes des enregistrements. Un RETRIEVE est servi directement depuis la projection.
+//
+// Enregistrement, aligné sur 8 octets :
+//   int magique | byte état | byte 0 | short longueur du nom | int taille | long séquence | int CRC32C
+//   de l'en-tête (hors état) et du nom | nom (UTF-8) | données | un int CRC32C par bloc (BlockChecksums)
+// L'état passe de EN_COURS à VIVANT une fois les données écrites, puis à SUPPRIMÉ (sur place) quand
+// l'objet est remplacé ou supprimé. À nom égal, la séquence la plus grande l'emporte.
+// Un segment dont la part supprimée dépasse segment_compact_percent est compacté en tâche de fond
+// quand le nœud est inactif : ses enregistrements vivants sont recopiés, puis le fichier est supprimé.
+public class SegmentStore {
+    public static final String DIRECTORY = "segments";
+    private static final String SUFFIX = ".seg";
+    private static final int MAGIC = 0x53454731;
+    private static final byte PENDING = 0;
+    private static final byte LIVE = 1;
+    private static final byte DELETED = 2;
+    private static final int STATE = 4;
+    private static final int HEADER_SIZE = 24;
+    private static final int MAX_SEGMENT_MB = 1024;
+    private static final long IDLE_POLL_MILLIS = 200;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(1024 * 1024);
+
+    private final int port;
+    private final File directory;
+    private final BooleanSupplier idle;
+    private final int segmentBytes;
+    private final long maxObjectBytes;
+    private final int compactPercent = ServerConfigLoader.getSegmentCompactPercent();
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ExecutorService compactor;
+    private final Metrics.Counter compactions;
+    private volatile Segment active;
+    private volatile boolean opened;
+    private int nextId = 1;
+    private long nextSequence = 1;
+
+    public SegmentStore(int port, File directory, BooleanSupplier idle) {
+        this.port = port;
+        this.directory = new File(directory, DIRECTORY);
+        this.idle = idle;
+        this.segmentBytes = Math.max(1, Math.min(MAX_SEGMENT_MB, ServerConfigLoader.getSegmentMegabytes())) * 1024 * 1024;
+        // Un objet occupe au plus le quart d'un segment, pour que la place perdue en fin de segment reste faible.
+        this.maxObjectBytes = Math.min(ServerConfigLoader.getSegmentObjectMaxBytes(), segmentBytes / 4);
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segments-" + port);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        String label = Integer.toString(port);
+        Metrics.gauge("segments_fichiers", "Fichiers de segments du sous-serveur", segments::size, "port", label);
+        Metrics.gauge("segments_objets", "Objets rangés dans les segments", index::size, "port", label);
+        Metrics.gauge("segments_octets_vivants", "Octets des enregistrements vivants des segments",
+                () -> total(false), "port", label);
+        Metrics.gauge("segments_octets_morts", "Octets des enregistrements supprimés, récupérables par compactage",
+                () -> total(true), "port", label);
+        this.compactions = Metrics.counter("segments_compactages_total", "Segments compactés", "port", label);
+    }
+
+    // Reconstruit l'index à partir des segments existants ; les ajouts reprennent à la fin du dernier.
+    public synchronized void open() throws IOException {
+        if (maxObjectBytes <= 0) {
+            return;
+        }
+        Files.createDirectories(directory.toPath());
+        long started = System.nanoTime();
+        String[] names = directory.list((dir, name) -> name.startsWith("segment-") && name.endsWith(SUFFIX));
+        Arrays.sort(names == null ? new String[0] : names);
+        for (String name : names == null ? new String[0] : names) {
+            int id = Integer.parseInt(name.substring("segment-".length(), name.length() - SUFFIX.length()));
+            Segment segment = map(id, new File(directory, name));
+            segments.put(id, segment);
+            scan(segment);
+            nextId = Math.max(nextId, id + 1);
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        opened = true;
+        for (Segment segment : segments.values()) {
+            maybeCompact(segment);
+        }
+        if (!segments.isEmpty()) {
+            Log.info("Sous-serveur " + port + " : index des segments reconstruit, " + index.size() + " objets dans "
+                    + segments.size() + " segments en " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+                    + " ms");
+        }
+    }
+
+    public boolean accepts(long size) {
+        return maxObjectBytes > 0 && size <= maxObjectBytes;
+    }
+
+    public Entry get(String name) {
+        return index.get(name);
+    }
+
+    public List<String> names() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    // Ajoute l'objet (les octets restants de data) ; l'éventuelle version précédente est supprimée.
+    public void put(String name, ByteBuffer data, BlockChecksums checksums) throws IOException {
+        Entry entry = append(name, data, checksums, 0);
+        Entry[] replaced = new Entry[1];
+        index.compute(name, (key, current) -> {
+            if (current == null || current.sequence < entry.sequence) {
+                replaced[0] = current;
+                return entry;
+            }
+            // Un STORE concurrent plus récent est déjà en place.
+            replaced[0] = entry;
+            return current;
+        });
+        if (replaced[0] != null) {
+            kill(replaced[0]);
+        }
+    }
+
+    public boolean delete(String name) {
+        Entry entry = index.remove(name);
+        if (entry == null) {
+            return false;
+        }
+        kill(entry);
+        return true;
+    }
+
+    // Retire entry seulement si c'est toujours la version en place (objet mis en quarantaine).
+    public boolean remove(String name, Entry entry) {
+        if (!index.remove(name, entry)) {
+            return false;
+        }
+        kill(entry);
+        return true;
+    }
+
+    // L'en-tête est écrit sous le verrou avec l'état EN_COURS : les enregistrements restent contigus
+    // et relisibles même si l'écriture de données d'un ajout concurrent n'aboutit pas. Les données
+    // sont recopiées hors du verrou. sequence vaut 0 pour un nouvel objet ; le compactage garde celle
+    // de l'enregistrement recopié.
+    private Entry append(String name, ByteBuffer data, BlockChecksums checksums, long sequence) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int size = data.remaining();
+        int length = recordLength(nameBytes.length, size);
+        Segment segment;
+        int record;
+        synchronized (this) {
+            if (active == null || active.tail + length > active.map.capacity()) {
+                Segment sealed = active;
+                active = create(nextId++);
+                if (sealed != null) {
+                    maybeCompact(sealed);
+                }
+            }
+            segment = active;
+            record = segment.tail;
+            segment.tail += length;
+            if (sequence == 0) {
+                sequence = nextSequence++;
+            }
+            ByteBuffer header = segment.map.duplicate();
+            header.position(record);
+            header.putInt(MAGIC).put(PENDING).put((byte) 0).putShort((short) nameBytes.length).putInt(size)
+                    .putLong(sequence).putInt(0).put(nameBytes);
+            segment.map.putInt(record + 20, headerChecksum(segment.map, record, nameBytes.length));
+        }
+        ByteBuffer target = segment.map.duplicate();
+        target.position(record + HEADER_SIZE + nameBytes.length);
+        target.put(data.duplicate());
+        checksums.encode(target);
+        segment.map.put(record + STATE, LIVE);
+        segment.live.addAndGet(length);
+        return new Entry(segment, record, record + HEADER_SIZE + nameBytes.length, size, length, sequence);
+    }
+
+    private void kill(Entry entry) {
+        Segment segment = entry.segment;
+        segment.map.put(entry.record + STATE, DELETED);
+        segment.live.addAndGet(-entry.length);
+        segment.dead.addAndGet(entry.length);
+        maybeCompact(segment);
+    }
+
+    private void maybeCompact(Segment segment) {
+        long live = segment.live.get();
+        long dead = segment.dead.get();
+        if (!opened || segment == active || segment.compacting || compactPercent <= 0
+                || dead * 100 < (long) compactPercent * (live + dead)) {
+            return;
+        }
+        synchronized (segment) {
+            if (segment.compacting) {
+                return;
+            }
+            segment.compacting = true;
+        }
+        compactor.execute(() -> compact(segment));
+    }
+
+    // Recopie les enregistrements encore en place dans le segment courant, puis supprime le fichier.
+    // Une lecture en cours garde sa projection valide jusqu'à la fin.
+    private void compact(Segment segment) {
+        try {
+            while (!idle.getAsBoolean() && segment.live.get() > 0) {
+                Thread.sleep(IDLE_POLL_MILLIS);
+            }
+            int moved = 0;
+            ByteBuffer map = segment.map;
+            for (int position = 0; position + HEADER_SIZE <= segment.tail && map.getInt(position) == MAGIC; ) {
+                int nameLength = map.getChar(position + 6);
+                int size = map.getInt(position + 8);
+                if (map.getInt(position + 20) != headerChecksum(map, position, nameLength)) {
+                    break;
+                }
+                if (map.get(position + STATE) == LIVE) {
+                    Entry current = index.get(name(map, position, nameLength));
+                    if (current != null && current.segment == segment && current.record == position) {
+                        Entry copy = append(current.name(), current.data(), current.checksums(), current.sequence);
+                        if (index.replace(current.name(), current, copy)) {
+                            kill(current);
+                            moved++;
+                        } else {
+                            kill(copy);
+                        }
+                    }
+                }
+                position += recordLength(nameLength, size);
+            }
+            segments.remove(segment.id);
+            try {
+                Files.deleteIfExists(segment.file.toPath());
+            } catch (IOException e) {
+                // Fichier encore projeté (Windows) : tous ses enregistrements sont supprimés, il
+                // disparaîtra au prochain démarrage.
+                Log.error("Suppression différée du segment " + segment.file.getName() + " : " + e.getMessage());
+            }
+            compactions.increment();
+            Log.info("Sous-serveur " + port + " : segment " + segment.id + " compacté, " + moved + " objets recopiés");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            segment.compacting = false;
+            Log.error("Compactage du segment " + segment.id + " impossible sur le sous-serveur " + port + " : "
+                    + e.getMessage());
+        }
+    }
+
+    // Les blocs sont réservés par des zéros plutôt que par un fichier creux : un disque plein fait
+    // échouer la création du segment, et non plus tard une écriture dans la projection. Les zéros
+    // marquent aussi la fin des enregistrements pour la reconstruction.
+    private Segment create(int id) throws IOException {
+        File file = new File(directory, String.format("segment-%06d%s", id, SUFFIX));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            for (long position = 0; position < segmentBytes; ) {
+                ByteBuffer zeros = ZEROS.duplicate();
+                zeros.limit((int) Math.min(zeros.capacity(), segmentBytes - position));
+                position += channel.write(zeros, position);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        }
+        Segment segment = map(id, file);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static Segment map(int id, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(id, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        }
+    }
+
+    // Parcourt les en-têtes du segment (les données sont sautées) jusqu'au premier emplacement vide.
+    private void scan(Segment segment) {
+        ByteBuffer map = segment.map;
+        int position = 0;
+        while (position + HEADER_SIZE <= map.capacity() && map.getInt(position) == MAGIC) {
+            int nameLength = map.getChar(position + 6);
+            int size = map.getInt(position + 8);
+            long sequence = map.getLong(position + 12);
+            if (size < 0 || position + (long) HEADER_SIZE + nameLength + size > map.capacity()
+                    || map.getInt(position + 20) != headerChecksum(map, position, nameLength)) {
+                // Sans en-tête lisible, la suite ne peut plus être découpée : le segment est fermé aux
+                // ajouts et ses objets suivants sont relus sur les autres répliques.
+                Log.error("Segment " + segment.file + " : en-tête corrompu à l'octet " + position
+                        + ", la suite du segment est ignorée");
+                position = map.capacity();
+                break;
+            }
+            int length = recordLength(nameLength, size);
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            Entry entry = new Entry(segment, position, position + HEADER_SIZE + nameLength, size, length, sequence);
+            if (map.get(position + STATE) == LIVE) {
+                segment.live.addAndGet(length);
+                Entry current = index.get(entry.name());
+                if (current == null || current.sequence < sequence) {
+                    index.put(entry.name(), entry);
+                    if (current != null) {
+                        kill(current);
+                    }
+                } else {
+                    kill(entry);
+                }
+            } else {
+                // Ajout interrompu par un arrêt : l'objet n'a jamais été acquitté.
+                map.put(position + STATE, DELETED);
+                segment.dead.addAndGet(length);
+            }
+            position += length;
+        }
+        segment.tail = position;
+    }
+
+    private static int headerChecksum(ByteBuffer map, int record, int nameLength) {
+        CRC32C crc = new CRC32C();
+        crc.update(map.duplicate().limit(record + STATE).position(record));
+        crc.update(map.duplicate().limit(record + 20).position(record + STATE + 1));
+        crc.update(map.duplicate().limit(record + HEADER_SIZE + nameLength).position(record + HEADER_SIZE));
+        return (int) crc.getValue();
+    }
+
+    private static String name(ByteBuffer map, int record, int nameLength) {
+        byte[] name = new byte[nameLength];
+        map.get(record + HEADER_SIZE, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static int recordLength(int nameLength, int size) {
+        return (HEADER_SIZE + nameLength + size + BlockChecksums.encodedLength(size) + 7) & ~7;
+    }
+
+    private long total(boolean dead) {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += dead ? segment.dead.get() : segment.live.get();
+        }
+        return total;
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final MappedByteBuffer map;
+        // Fin des enregistrements, sous le verrou du SegmentStore.
+        int tail;
+        final AtomicLong live = new AtomicLong();
+        final AtomicLong dead = new AtomicLong();
+        volatile boolean compacting;
+
+        Segment(int id, File file, MappedByteBuffer map) {
+            this.id = id;
+            this.file = file;
+            this.map = map;
+        }
+    }
+
+    // Version en place d'un objet. Ses octets ne changent plus : une lecture commencée la garde même
+    // si l'objet est remplacé, supprimé ou déplacé par un compactage entre-temps.
+    public static class Entry {
+        private final Segment segment;
+        private final int record;
+        private final int offset;
+        public final long size;
+        private final int length;
+        private final long sequence;
+        private BlockChecksums checksums;
+
+        Entry(Segment segment, int record, int offset, long size, int length, long sequence) {
+            this.segment = segment;
+            this.record = record;
+            this.offset = offset;
+            this.size = size;
+            this.length = length;
+            this.sequence = sequence;
+        }
+
+        String name() {
+            return SegmentStore.name(segment.map, record, offset - record - HEADER_SIZE);
+        }
+
+        // L'objet entier, sans vérification.
+        public ByteBuffer data() {
+            return segment.map.slice(offset, (int) size);
+        }
+
+        public BlockChecksums checksums() {
+            if (checksums == null) {
+                checksums = BlockChecksums.decode(segment.map.slice(offset + (int) size,
+                        BlockChecksums.encodedLength(size)), size);
+            }
+            return checksums;
+        }
+
+        // Tranche [position, position + length) de la projection, après vérification des blocs qui la couvrent.
+        public ByteBuffer read(long position, int length, String name) throws BlockChecksums.CorruptionException {
+            ByteBuffer data = data();
+            checksums().verify(data, position, position + length, name);
+            return data.limit((int) position + length).position((int) position);
+        }
+    }
+}
@@ -1,84 +1,434 @@
-
-import java.io.*;
-import java.util.*;
-
-public class ServerConfigLoader {
-    private static final String CONFIG_FILE = "servers_config.txt";
-    private static String mainServerHost;
-    private static int mainServerPort;
-    private static List<SubServerInfo> subServers;
-    private static final String SERVER_DIRECTORY = "server_directory";
-    private static final int CHUNK_SIZE = 1024;
-
-    static {
-        subServers = new ArrayList<>();
-        loadConfiguration();
-    }
-
-    private static void loadConfiguration() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(CONFIG_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty() && !line.startsWith("#")) {
-                    String[] parts = line.trim().split(":");
-                    if (parts.length == 3) {
-                        String type = parts[0];
-                        String host = parts[1];
-                        int port = Integer.parseInt(parts[2]);
-
-                        if ("main_server".equals(type)) {
-                            mainServerHost = host;
-                            mainServerPort = port;
-                        } else if ("sub_server".equals(type)) {
-                            subServers.add(new SubServerInfo(host, port));
-                        }
-                    }
-                }
-            }
-        } catch (IOException | NumberFormatException e) {
-            System.err.println("Erreur lors de la lecture ou du parsing du fichier de configuration : " + e.getMessage());
-            setDefaultValues();
-        }
-    }
-
-    private static void setDefaultValues() {
-        System.err.println("Utilisation des valeurs par défaut pour la configuration du serveur.");
-        mainServerHost = "127.0.0.1";
-        mainServerPort = 12345;
-        subServers.clear();
-        subServers.add(new SubServerInfo("127.0.0.1", 12346));
-        subServers.add(new SubServerInfo("127.0.0.1", 12347));
-        subServers.add(new SubServerInfo("127.0.0.1", 12348));
-    }
-
-    public static String getMainServerHost() {
-        return mainServerHost;
-    }
-
-    public static int getMainServerPort() {
-        return mainServerPort;
-    }
-
-    public static List<SubServerInfo> getSubServers() {
-        return Collections.unmodifiableList(subServers);
-    }
-
-    public static String getServerDirectory() {
-        return SERVER_DIRECTORY;
-    }
-
-    public static int getChunkSize() {
-        return CHUNK_SIZE;
-    }
-
-    public static class SubServerInfo {
-        public String host;
-        public int port;
-    
-        public SubServerInfo(String host, int port) {
-            this.host = host;
-            this.port = port;
-        }
-    }
-    
-}
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Lecture de servers_config.txt. Le serveur principal surveille le fichier (watch) : à chaque
+// modification il est relu et la nouvelle configuration remplace l'ancienne d'un bloc. Les réglages
+// lus à chaque usage (mode de stockage, compression, placement...) et la liste des sous-serveurs
+// changent ainsi sans redémarrage ; les ports d'écoute et les tailles fixées au démarrage, non.
+public class ServerConfigLoader {
+    private static final String CONFIG_FILE = "servers_config.txt";
+    private static final String SERVER_DIRECTORY = "server_directory";
+    // Une sauvegarde produit souvent plusieurs événements : le fichier est relu une fois stable.
+    private static final long RELOAD_DELAY_MILLIS = 200;
+    private static volatile String mainServerHost;
+    private static volatile int mainServerPort;
+    private static volatile Map<String, String> settings;
+    private static volatile Membership membership;
+
+    static {
+        Parsed parsed = new Parsed();
+        try {
+            read(parsed);
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Erreur lors de la lecture ou du parsing du fichier de configuration : " + e.getMessage());
+            setDefaultValues(parsed);
+        }
+        mainServerHost = parsed.mainServerHost;
+        mainServerPort = parsed.mainServerPort;
+        apply(parsed, 1);
+    }
+
+    private static void read(Parsed parsed) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(CONFIG_FILE))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty() && !line.startsWith("#")) {
+                    String[] parts = line.trim().split(":");
+                    if (parts.length == 3 || parts.length == 4) {
+                        String type = parts[0];
+                        String host = parts[1];
+                        int port = Integer.parseInt(parts[2]);
+
+                        if ("main_server".equals(type)) {
+                            parsed.mainServerHost = host;
+                            parsed.mainServerPort = port;
+                        } else if ("sub_server".equals(type)) {
+                            int weight = parts.length == 4 ? Integer.parseInt(parts[3]) : 1;
+                            parsed.subServers.add(new SubServerInfo(host, port, Math.max(0, weight)));
+                        }
+                    } else if (parts.length == 2) {
+                        parsed.settings.put(parts[0].trim(), parts[1].trim());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void setDefaultValues(Parsed parsed) {
+        System.err.println("Utilisation des valeurs par défaut pour la configuration du serveur.");
+        parsed.mainServerHost = "127.0.0.1";
+        parsed.mainServerPort = 12345;
+        parsed.subServers.clear();
+        parsed.subServers.add(new SubServerInfo("127.0.0.1", 12346));
+        parsed.subServers.add(new SubServerInfo("127.0.0.1", 12347));
+        parsed.subServers.add(new SubServerInfo("127.0.0.1", 12348));
+    }
+
+    // Les réglages sont remplacés avant la vue des sous-serveurs : un anneau construit pour la
+    // nouvelle version lit déjà les nouveaux facteur de réplication et nombre de positions.
+    private static void apply(Parsed parsed, long version) {
+        settings = Collections.unmodifiableMap(parsed.settings);
+        membership = new Membership(version, parsed.subServers, placementKey(parsed.subServers));
+    }
+
+    // Relit le fichier ; s'il est illisible, la configuration en place est gardée. Renvoie true si
+    // la vue des sous-serveurs a changé (nouvelle version).
+    public static synchronized boolean reload() {
+        Parsed parsed = new Parsed();
+        try {
+            read(parsed);
+        } catch (IOException | NumberFormatException e) {
+            Log.error("Configuration non rechargée, " + CONFIG_FILE + " illisible : " + e.getMessage());
+            return false;
+        }
+        if (!Objects.equals(parsed.mainServerHost, mainServerHost) || parsed.mainServerPort != mainServerPort) {
+            Log.error("Adresse du serveur principal modifiée : prise en compte au prochain démarrage");
+        }
+        Membership previous = membership;
+        settings = Collections.unmodifiableMap(parsed.settings);
+        boolean changed = !previous.key.equals(placementKey(parsed.subServers));
+        if (changed) {
+            apply(parsed, previous.version + 1);
+            Log.info("Configuration rechargée, sous-serveurs version " + membership.version + " : " + membership.key);
+        } else {
+            Log.info("Configuration rechargée");
+        }
+        return changed;
+    }
+
+    // Tout ce dont dépend l'anneau de placement : sous-serveurs et poids, réplication, positions.
+    private static String placementKey(List<SubServerInfo> subServers) {
+        StringBuilder key = new StringBuilder();
+        for (SubServerInfo node : subServers) {
+            key.append(node.address()).append('*').append(node.weight).append(' ');
+        }
+        return key.append("réplication ").append(getReplicationFactor())
+                .append(", positions ").append(getRingVirtualNodes()).toString();
+    }
+
+    // Surveille le fichier de configuration et le relit à chaque modification ; onMembershipChange
+    // est appelé après chaque nouvelle version de la vue des sous-serveurs.
+    public static void watch(Runnable onMembershipChange) {
+        Path file = Paths.get(CONFIG_FILE).toAbsolutePath();
+        WatchService watcher;
+        try {
+            watcher = file.getFileSystem().newWatchService();
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            Log.error("Surveillance de " + CONFIG_FILE + " impossible : " + e.getMessage());
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    boolean touched = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        touched |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                                || file.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                    if (!touched) {
+                        continue;
+                    }
+                    Thread.sleep(RELOAD_DELAY_MILLIS);
+                    WatchKey pending;
+                    while ((pending = watcher.poll()) != null) {
+                        pending.pollEvents();
+                        pending.reset();
+                    }
+                    if (reload()) {
+                        onMembershipChange.run();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static String getMainServerHost() {
+        return mainServerHost;
+    }
+
+    public static int getMainServerPort() {
+        return mainServerPort;
+    }
+
+    public static Membership getMembership() {
+        return membership;
+    }
+
+    public static List<SubServerInfo> getSubServers() {
+        return membership.subServers;
+    }
+
+    public static String getServerDirectory() {
+        return SERVER_DIRECTORY;
+    }
+
+    // Tampons de copie : taille de départ d'un lien jamais mesuré, et plafond (voir LinkTuning).
+    public static int getChunkSize() {
+        return getIntSetting("chunk_kb", 64) * 1024;
+    }
+
+    public static int getMaxChunkSize() {
+        return getIntSetting("chunk_max_kb", 1024) * 1024;
+    }
+
+    // Tampons d'émission et de réception des sockets ; 0 laisse le système les ajuster.
+    public static int getSocketBufferSize() {
+        return getIntSetting("socket_buffer_kb", 0) * 1024;
+    }
+
+    public static boolean isTcpNoDelay() {
+        return Boolean.parseBoolean(settings.getOrDefault("tcp_nodelay", "true"));
+    }
+
+    public static long getBufferPoolBytes() {
+        return getIntSetting("buffer_pool_mb", 64) * 1024L * 1024L;
+    }
+
+    public static int getSubServerMaxConnections() {
+        return getIntSetting("sub_server_max_connections", 64);
+    }
+
+    public static long getSubServerMaxInFlightBytes() {
+        return getIntSetting("sub_server_max_inflight_mb", 256) * 1024L * 1024L;
+    }
+
+    public static String getClientExecutorMode() {
+        return settings.getOrDefault("client_executor", "cached");
+    }
+
+    public static int getClientExecutorThreads() {
+        return getIntSetting("client_executor_threads", 32);
+    }
+
+    public static int getClientExecutorQueue() {
+        return getIntSetting("client_executor_queue", 256);
+    }
+
+    public static int getPoolMaxConnectionsPerNode() {
+        return getIntSetting("pool_max_connections_per_node", 4);
+    }
+
+    public static int getPoolIdleTimeoutSeconds() {
+        return getIntSetting("pool_idle_timeout_s", 60);
+    }
+
+    public static int getPoolHealthIntervalSeconds() {
+        return getIntSetting("pool_health_interval_s", 10);
+    }
+
+    public static int getPoolPingTimeoutMillis() {
+        return getIntSetting("pool_ping_timeout_ms", 2000);
+    }
+
+    public static int getPoolConnectTimeoutMillis() {
+        return getIntSetting("pool_connect_timeout_ms", 2000);
+    }
+
+    // Attente maximale d'une trame du sous-serveur pour une opération en cours.
+    public static int getPoolResponseTimeoutSeconds() {
+        return getIntSetting("pool_response_timeout_s", 30);
+    }
+
+    public static String getStorageMode() {
+        return settings.getOrDefault("storage_mode", FileManifest.SPLIT);
+    }
+
+    public static int getCdcMinChunkSize() {
+        return getIntSetting("cdc_min_kb", 16) * 1024;
+    }
+
+    public static int getCdcAverageChunkSize() {
+        return getIntSetting("cdc_avg_kb", 64) * 1024;
+    }
+
+    public static int getCdcMaxChunkSize() {
+        return getIntSetting("cdc_max_kb", 256) * 1024;
+    }
+
+    public static int getReplicationFactor() {
+        return getIntSetting("replication_factor", 2);
+    }
+
+    // Au-delà de ce multiple de la charge moyenne (opérations en cours), un sous-serveur ne reçoit
+    // plus de nouveaux objets tant que d'autres sont disponibles ; 0 = désactivé.
+    public static int getPlacementLoadFactor() {
+        return getIntSetting("placement_load_factor", 2);
+    }
+
+    public static int getRingVirtualNodes() {
+        return getIntSetting("ring_vnodes", 128);
+    }
+
+    public static int getErasureDataShards() {
+        return getIntSetting("rs_data_shards", 4);
+    }
+
+    public static int getErasureParityShards() {
+        return getIntSetting("rs_parity_shards", 2);
+    }
+
+    public static int getErasureStripeUnit() {
+        return getIntSetting("rs_stripe_unit_kb", 64) * 1024;
+    }
+
+    public static long getCacheSizeBytes() {
+        return getIntSetting("cache_mb", 256) * 1024L * 1024L;
+    }
+
+    public static long getCacheMaxEntryBytes() {
+        return getIntSetting("cache_max_entry_mb", 64) * 1024L * 1024L;
+    }
+
+    public static String getCacheMemory() {
+        return settings.getOrDefault("cache_memory", "offheap");
+    }
+
+    public static long getMetadataCompactionBytes() {
+        return getIntSetting("metadata_compact_mb", 64) * 1024L * 1024L;
+    }
+
+    public static boolean isMetadataSyncEnabled() {
+        return Boolean.parseBoolean(settings.getOrDefault("metadata_sync", "true"));
+    }
+
+    public static String getCompression() {
+        return settings.getOrDefault("compression", "none");
+    }
+
+    public static int getCompressionLevel() {
+        return getIntSetting("compression_level", 1);
+    }
+
+    // Gain minimal, en pourcentage, sur l'échantillon d'un fragment pour qu'il soit compressé.
+    public static int getCompressionMinGainPercent() {
+        return getIntSetting("compression_min_gain_percent", 10);
+    }
+
+    public static long getScrubBytesPerSecond() {
+        return getIntSetting("scrub_mb_per_s", 16) * 1024L * 1024L;
+    }
+
+    public static long getScrubIntervalMillis() {
+        return getIntSetting("scrub_interval_min", 1440) * 60_000L;
+    }
+
+    // Segments des sous-serveurs : taille d'un fichier, taille maximale d'un objet rangé dedans
+    // (0 = un fichier par objet), part supprimée déclenchant le compactage.
+    public static int getSegmentMegabytes() {
+        return getIntSetting("segment_mb", 64);
+    }
+
+    public static long getSegmentObjectMaxBytes() {
+        return getIntSetting("segment_object_max_kb", 1024) * 1024L;
+    }
+
+    public static int getSegmentCompactPercent() {
+        return getIntSetting("segment_compact_percent", 50);
+    }
+
+    // Envois groupés : taille maximale d'un fichier regroupé avec d'autres dans un même objet, et
+    // taille de cet objet (au plus segment_object_max_kb pour qu'il soit rangé dans un segment).
+    public static long getBatchFileMaxBytes() {
+        return getIntSetting("batch_file_max_kb", 256) * 1024L;
+    }
+
+    public static int getBatchPackBytes() {
+        return getIntSetting("batch_pack_kb", 1024) * 1024;
+    }
+
+    public static int getMetricsPort() {
+        return getIntSetting("metrics_port", 0);
+    }
+
+    public static int getMetricsDumpSeconds() {
+        return getIntSetting("metrics_dump_s", 0);
+    }
+
+    public static long getMultipartExpiryMillis() {
+        return getIntSetting("multipart_expiry_min", 60) * 60_000L;
+    }
+
+    public static long getParallelThresholdBytes() {
+        return getIntSetting("parallel_threshold_mb", 64) * 1024L * 1024L;
+    }
+
+    public static int getParallelConnections() {
+        return getIntSetting("parallel_connections", 4);
+    }
+
+    public static long getPartSizeBytes() {
+        return getIntSetting("part_size_mb", 16) * 1024L * 1024L;
+    }
+
+    private static int getIntSetting(String key, int defaultValue) {
+        String value = settings.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.error("Valeur invalide pour " + key + " : " + value + ", utilisation de " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    // Vue versionnée des sous-serveurs, jamais modifiée : un rechargement en installe une nouvelle.
+    public static class Membership {
+        public final long version;
+        public final List<SubServerInfo> subServers;
+        private final String key;
+
+        Membership(long version, List<SubServerInfo> subServers, String key) {
+            this.version = version;
+            this.subServers = Collections.unmodifiableList(new ArrayList<>(subServers));
+            this.key = key;
+        }
+    }
+
+    private static class Parsed {
+        String mainServerHost;
+        int mainServerPort;
+        final List<SubServerInfo> subServers = new ArrayList<>();
+        final Map<String, String> settings = new HashMap<>();
+    }
+
+    public static class SubServerInfo {
+        public String host;
+        public int port;
+        // Part des nouveaux objets, proportionnelle à la capacité ; 0 = en cours de vidage, le
+        // sous-serveur reste lisible mais le rééquilibrage en retire ses objets.
+        public int weight;
+
+        public SubServerInfo(String host, int port) {
+            this(host, port, 1);
+        }
+
+        public SubServerInfo(String host, int port, int weight) {
+            this.host = host;
+            this.port = port;
+            this.weight = weight;
+        }
+
+        // Adresse « hôte:port » telle qu'enregistrée dans les manifestes.
+        public String address() {
+            return host + ":" + port;
+        }
+
+        public static SubServerInfo parse(String address) {
+            int separator = address.lastIndexOf(':');
+            return new SubServerInfo(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+        }
+    }
+    
+}
@@ -0,0 +1,195 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Lecture en mode rs : les bandes sont lues par lots. Pour chaque lot, la même plage est demandée à
+// tous les fragments disponibles ; dès que k d'entre eux l'ont livrée, les autres requêtes sont
+// abandonnées et les parts de données manquantes sont reconstruites. Un sous-serveur lent ou tombé
+// ne retarde donc pas la lecture tant que k fragments répondent. Le lot suivant est demandé avant
+// de décoder et d'envoyer le lot courant.
+public class StripeDownloader {
+    private static final int BATCH_BYTES_PER_SHARD = 1024 * 1024;
+
+    private static final ExecutorService READERS = ClientExecutors.newWorkerPool("stripe-reader");
+
+    // Même contrat que FragmentDownloader.stream.
+    public static void stream(FileManifest manifest, DataOutputStream dos, OutputStream copy) throws IOException {
+        stream(manifest, 0, manifest.size, () -> {
+            dos.writeUTF("OK");
+            dos.writeLong(manifest.size);
+        }, dos, copy);
+    }
+
+    // Plage [start, end) du fichier : seules les bandes qui la recouvrent sont lues et décodées.
+    public static void streamRange(FileManifest manifest, long start, long end, FragmentDownloader.Header header,
+                                   DataOutputStream dos) throws IOException {
+        stream(manifest, start, end, header, dos, null);
+    }
+
+    private static void stream(FileManifest manifest, long start, long end, FragmentDownloader.Header header,
+                               DataOutputStream dos, OutputStream copy) throws IOException {
+        ReedSolomon codec = ReedSolomon.get(manifest.dataShards, manifest.parityShards);
+        int unit = manifest.stripeUnit;
+        long stripeSize = (long) codec.dataShards() * unit;
+        long shardLength = manifest.fragments.get(0).length;
+        long batchLength = Math.max(1, BATCH_BYTES_PER_SHARD / unit) * (long) unit;
+        // Plage correspondante dans chaque fragment : des bandes entières.
+        long firstOffset = start < end ? start / stripeSize * unit : 0;
+        long lastOffset = start < end ? Math.min(shardLength, (end + stripeSize - 1) / stripeSize * unit) : 0;
+        int bufferLength = (int) Math.min(batchLength, lastOffset - firstOffset);
+
+        // Deux jeux de tampons : l'un est rempli par le lot suivant pendant que l'autre est envoyé.
+        byte[][][] buffers = new byte[2][codec.totalShards()][bufferLength];
+        BatchFetch current = bufferLength == 0 ? null
+                : new BatchFetch(manifest, firstOffset, bufferLength, buffers[0]);
+        BatchFetch next = null;
+        try {
+            if (current != null) {
+                current.await(codec.dataShards());
+            }
+            header.write();
+
+            // Position dans le fichier de la part de données en cours.
+            long position = firstOffset / unit * stripeSize;
+            int batch = 0;
+            for (long offset = firstOffset; offset < lastOffset; offset += batchLength) {
+                long nextOffset = offset + batchLength;
+                if (nextOffset < lastOffset) {
+                    next = new BatchFetch(manifest, nextOffset, (int) Math.min(batchLength, lastOffset - nextOffset),
+                            buffers[(batch + 1) % 2]);
+                }
+                if (offset > firstOffset) {
+                    current.await(codec.dataShards());
+                }
+                codec.decodeMissing(current.shards, current.present, 0, current.length);
+                for (int stripe = 0; stripe < current.length && position < end; stripe += unit) {
+                    for (int d = 0; d < codec.dataShards() && position < end; d++) {
+                        long from = Math.max(start, position);
+                        long to = Math.min(end, position + unit);
+                        if (from < to) {
+                            int at = stripe + (int) (from - position);
+                            dos.write(current.shards[d], at, (int) (to - from));
+                            if (copy != null) {
+                                copy.write(current.shards[d], at, (int) (to - from));
+                            }
+                        }
+                        position += unit;
+                    }
+                }
+                current = next;
+                next = null;
+                batch++;
+            }
+            dos.flush();
+        } catch (IOException e) {
+            if (current != null) {
+                current.cancel();
+            }
+            if (next != null) {
+                next.cancel();
+            }
+            throw e;
+        }
+    }
+
+    // Une plage [offset, offset + length) demandée à tous les fragments qui ont un emplacement.
+    private static class BatchFetch {
+        final byte[][] shards;
+        final boolean[] present;
+        final int length;
+        private final FileManifest manifest;
+        private final Future<?>[] tasks;
+        private final BlockingQueue<Integer> completions = new LinkedBlockingQueue<>();
+        private final IOException[] failures;
+        private int requested;
+
+        BatchFetch(FileManifest manifest, long offset, int length, byte[][] shards) {
+            this.manifest = manifest;
+            this.shards = shards;
+            this.length = length;
+            this.present = new boolean[shards.length];
+            this.tasks = new Future<?>[shards.length];
+            this.failures = new IOException[shards.length];
+            for (int i = 0; i < shards.length; i++) {
+                FileManifest.Fragment fragment = manifest.fragments.get(i);
+                if (fragment.nodes.isEmpty()) {
+                    continue;
+                }
+                int shard = i;
+                byte[] target = shards[i];
+                requested++;
+                tasks[i] = READERS.submit(() -> {
+                    try {
+                        readRange(fragment, offset, length, target);
+                        completions.add(shard);
+                    } catch (IOException e) {
+                        failures[shard] = e;
+                        completions.add(-1 - shard);
+                    }
+                });
+            }
+        }
+
+        // Attend les k premiers fragments complets et abandonne les autres requêtes.
+        void await(int needed) throws IOException {
+            int received = 0;
+            int failed = 0;
+            IOException lastFailure = null;
+            try {
+                while (received < needed) {
+                    if (requested - failed < needed) {
+                        throw new IOException("Fichier irrécupérable : " + manifest.name + " (" + (requested - failed)
+                                + " fragments disponibles sur les " + needed + " nécessaires)"
+                                + (lastFailure != null ? " : " + lastFailure.getMessage() : ""));
+                    }
+                    int completion = completions.take();
+                    if (completion >= 0) {
+                        present[completion] = true;
+                        received++;
+                    } else {
+                        failed++;
+                        lastFailure = failures[-1 - completion];
+                        Metrics.fragmentFailure("lecture", manifest.fragments.get(-1 - completion).nodes.get(0));
+                        Log.error("Fragment " + manifest.fragments.get(-1 - completion).object
+                                + " indisponible : " + lastFailure.getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Lecture interrompue : " + manifest.name);
+            } finally {
+                cancel();
+            }
+        }
+
+        // Les lectures abandonnées peuvent encore écrire dans leur tampon : il est remplacé pour les
+        // lots suivants.
+        void cancel() {
+            for (int i = 0; i < tasks.length; i++) {
+                if (tasks[i] != null && !present[i] && tasks[i].cancel(true)) {
+                    shards[i] = new byte[shards[i].length];
+                }
+            }
+        }
+
+        private static void readRange(FileManifest.Fragment fragment, long offset, int length, byte[] target)
+                throws IOException {
+            ServerConfigLoader.SubServerInfo source = SubServerPool.rankReplicas(fragment.nodeInfos()).get(0);
+            SubServerConnection.Exchange retrieve = SubServerPool.acquire(source).retrieve(fragment.object, offset, length);
+            long available = retrieve.awaitHeader();
+            if (available != length) {
+                retrieve.abort();
+                throw new IOException(available < 0
+                        ? "Fragment introuvable : " + fragment.object
+                        : "Fragment incomplet : " + fragment.object);
+            }
+            int position = 0;
+            byte[] data;
+            while ((data = retrieve.nextData()) != null) {
+                System.arraycopy(data, 0, target, position, data.length);
+                position += data.length;
+                BufferPool.give(data);
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Envoi en mode rs : le flux du client est lu bande par bande (k parts de stripeUnit octets), la
+// parité de chaque bande est calculée puis les k + m parts partent vers leurs fragments respectifs.
+// Le fragment i d'un envoi est l'objet « <préfixe de l'envoi>.rsI », concaténation de la part i de
+// chaque bande.
+// Les bandes circulent dans un petit nombre de tampons réutilisés : aucune allocation par bande.
+public class StripeUploader {
+    private static final int BUFFERED_STRIPES = 4;
+    private static final Stripe END_OF_STRIPES = new Stripe(0, 0);
+
+    private static final ExecutorService WRITERS = ClientExecutors.newWorkerPool("stripe-writer");
+
+    // Taille de part adaptée au fichier : un petit fichier n'est pas complété jusqu'à une bande entière.
+    public static int stripeUnit(long fileSize, int dataShards, int maxUnit) {
+        long perShard = (fileSize + dataShards - 1) / dataShards;
+        long rounded = Math.max(64, (perShard + 63) / 64 * 64);
+        return (int) Math.min(maxUnit, rounded);
+    }
+
+    // Les fragments sont répartis d'après le nom du fichier, comme le fait le rééquilibrage.
+    public static List<FileManifest.Fragment> layout(String fileName, String objectPrefix, long fileSize,
+                                                     ReedSolomon codec, int stripeUnit, PlacementRing ring) {
+        long stripeSize = (long) codec.dataShards() * stripeUnit;
+        long stripes = (fileSize + stripeSize - 1) / stripeSize;
+        List<ServerConfigLoader.SubServerInfo> nodes = ring.spreadPlacementFor(fileName, codec.totalShards());
+        warnIfCrowded(fileName, nodes, codec);
+        List<FileManifest.Fragment> layout = new ArrayList<>(codec.totalShards());
+        for (int i = 0; i < codec.totalShards(); i++) {
+            layout.add(new FileManifest.Fragment(objectPrefix + ".rs" + i, 0, stripes * stripeUnit,
+                    List.of(nodes.get(i).address())));
+        }
+        return layout;
+    }
+
+    // Avec moins de k + m sous-serveurs disponibles, un même sous-serveur reçoit plusieurs fragments :
+    // sa panne en fait perdre autant, et le fichier ne survit plus qu'à m / (fragments par nœud) pannes.
+    private static void warnIfCrowded(String fileName, List<ServerConfigLoader.SubServerInfo> nodes,
+                                      ReedSolomon codec) {
+        Map<String, Integer> shardsPerNode = new HashMap<>();
+        int crowded = 0;
+        for (ServerConfigLoader.SubServerInfo node : nodes) {
+            crowded = Math.max(crowded, shardsPerNode.merge(node.address(), 1, Integer::sum));
+        }
+        if (crowded > 1) {
+            int parityShards = codec.totalShards() - codec.dataShards();
+            Log.error("Attention : " + fileName + " en mode rs " + codec.dataShards() + "+" + parityShards
+                    + " sur " + shardsPerNode.size() + " sous-serveurs seulement (jusqu'à " + crowded
+                    + " fragments par sous-serveur) : il ne survit qu'à " + parityShards / crowded
+                    + " panne(s) de sous-serveur au lieu de " + parityShards);
+        }
+    }
+
+    // Renvoie le plan réellement obtenu : un fragment dont l'écriture a échoué n'a plus de nœud,
+    // ce qui reste lisible tant qu'au plus m fragments sont perdus.
+    public static List<FileManifest.Fragment> upload(DataInputStream dis, String fileName, long fileSize,
+                                                     List<FileManifest.Fragment> layout, ReedSolomon codec,
+                                                     int stripeUnit) throws IOException {
+        int shardCount = codec.totalShards();
+        int dataShards = codec.dataShards();
+        BlockingQueue<Stripe> free = new ArrayBlockingQueue<>(BUFFERED_STRIPES);
+        for (int i = 0; i < BUFFERED_STRIPES; i++) {
+            free.add(new Stripe(shardCount, stripeUnit));
+        }
+        List<BlockingQueue<Stripe>> queues = new ArrayList<>(shardCount);
+        List<Future<Boolean>> writers = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            BlockingQueue<Stripe> queue = new ArrayBlockingQueue<>(BUFFERED_STRIPES + 1);
+            queues.add(queue);
+            int shard = i;
+            FileManifest.Fragment fragment = layout.get(i);
+            writers.add(WRITERS.submit(() -> writeShard(fragment, shard, queue, free)));
+        }
+
+        try {
+            long remaining = fileSize;
+            while (remaining > 0) {
+                Stripe stripe = free.take();
+                for (int d = 0; d < dataShards; d++) {
+                    int length = (int) Math.min(stripeUnit, remaining);
+                    dis.readFully(stripe.shards[d], 0, length);
+                    // Fin de fichier : le reste de la bande est complété par des zéros.
+                    Arrays.fill(stripe.shards[d], length, stripeUnit, (byte) 0);
+                    remaining -= length;
+                }
+                codec.encodeParity(stripe.shards, 0, stripeUnit);
+                stripe.pending.set(shardCount);
+                for (BlockingQueue<Stripe> queue : queues) {
+                    queue.put(stripe);
+                }
+            }
+            for (BlockingQueue<Stripe> queue : queues) {
+                queue.put(END_OF_STRIPES);
+            }
+        } catch (IOException e) {
+            for (Future<Boolean> writer : writers) {
+                writer.cancel(true);
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            for (Future<Boolean> writer : writers) {
+                writer.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Envoi interrompu : " + fileName);
+        }
+
+        List<FileManifest.Fragment> stored = new ArrayList<>(shardCount);
+        int lost = 0;
+        for (int i = 0; i < shardCount; i++) {
+            FileManifest.Fragment fragment = layout.get(i);
+            boolean written;
+            try {
+                written = writers.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Envoi interrompu : " + fileName);
+            } catch (ExecutionException e) {
+                written = false;
+            }
+            if (!written) {
+                lost++;
+            }
+            stored.add(new FileManifest.Fragment(fragment.object, 0, fragment.length,
+                    written ? fragment.nodes : List.of()));
+        }
+        if (lost > shardCount - dataShards) {
+            throw new IOException("Échec de l'envoi de " + fileName + " : " + lost + " fragments sur "
+                    + shardCount + " n'ont pas pu être écrits");
+        }
+        return stored;
+    }
+
+    // En cas d'échec le rédacteur continue de consommer les bandes, pour rendre les tampons au
+    // producteur, et signale l'échec à la fin.
+    private static boolean writeShard(FileManifest.Fragment fragment, int shard, BlockingQueue<Stripe> queue,
+                                      BlockingQueue<Stripe> free) throws InterruptedException {
+        ServerConfigLoader.SubServerInfo target = fragment.nodeInfos().get(0);
+        SubServerConnection.Exchange store = null;
+        IOException failure = null;
+        try {
+            store = SubServerPool.acquire(target).store(fragment.object);
+        } catch (IOException e) {
+            failure = e;
+        }
+        try {
+            Stripe stripe;
+            while ((stripe = queue.take()) != END_OF_STRIPES) {
+                if (failure == null) {
+                    try {
+                        store.write(stripe.shards[shard], 0, stripe.shards[shard].length);
+                    } catch (IOException e) {
+                        failure = e;
+                        store.abort();
+                    }
+                }
+                if (stripe.pending.decrementAndGet() == 0) {
+                    free.put(stripe);
+                }
+            }
+        } catch (InterruptedException e) {
+            // envoi abandonné par le producteur
+            if (failure == null) {
+                store.abort();
+            }
+            throw e;
+        }
+        if (failure == null) {
+            try {
+                store.finish();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            Metrics.fragmentFailure("ecriture", target.address());
+            Log.error("Fragment " + fragment.object + " non écrit sur " + target.address() + " : "
+                    + failure.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private static class Stripe {
+        final byte[][] shards;
+        final AtomicInteger pending = new AtomicInteger();
+
+        Stripe(int shardCount, int stripeUnit) {
+            this.shards = new byte[shardCount][stripeUnit];
+        }
+    }
+}
@@ -0,0 +1,583 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Sous-serveur de stockage : un thread accepte les connexions et chacune est traitée par son propre
+// thread, de sorte qu'un client lent ne bloque plus les autres requêtes sur le même port.
+// Le nombre de connexions simultanées et le volume d'octets en transit sont bornés par nœud.
+// Chaque objet a ses sommes de contrôle par bloc (BlockChecksums) : calculées pendant la réception,
+// vérifiées à chaque lecture, et revérifiées en tâche de fond par le Scrubber quand le nœud est inactif.
+// Les petits objets sont rangés dans des segments projetés en mémoire (SegmentStore) plutôt qu'en
+// fichiers séparés ; un objet est cherché dans les segments d'abord, puis en fichier.
+public class SubServer {
+    private static final int KILOBYTE = 1024;
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int port;
+    private final File directory;
+    private final Semaphore connectionPermits;
+    private final Semaphore inFlightPermits;
+    private final int maxInFlightKilobytes;
+    private final ExecutorService handlers;
+    // Lectures multiplexées en attente d'une place dans connectionPermits : elles comptent dans la
+    // même limite que les connexions simples, sans bloquer la session qui les a reçues.
+    private final Queue<Runnable> waitingRetrieves = new ConcurrentLinkedQueue<>();
+    private final AtomicLong temporaryIds = new AtomicLong();
+    private final SegmentStore segments;
+    private final Scrubber scrubber;
+    private volatile long lastTransfer = System.nanoTime();
+    private final Metrics.Counter corruptions;
+
+    public SubServer(int port) {
+        this.port = port;
+        this.directory = new File("sub_server_directory_" + port);
+        this.connectionPermits = new Semaphore(ServerConfigLoader.getSubServerMaxConnections());
+        this.maxInFlightKilobytes = (int) Math.min(Integer.MAX_VALUE,
+                ServerConfigLoader.getSubServerMaxInFlightBytes() / KILOBYTE);
+        this.inFlightPermits = new Semaphore(maxInFlightKilobytes, true);
+        // Threads plateforme volontairement : le protocole est lu en flux bloquant (DataInputStream),
+        // ce qu'une boucle Selector obligerait à réécrire en automate, et les réponses multiplexées
+        // sont écrites sous synchronized (out), ce qui épinglerait des threads virtuels sur leur
+        // porteur pendant l'écriture socket — or le serveur principal tourne souvent dans la même JVM.
+        // Le pool reste borné en pratique : connectionPermits plafonne les connexions simples et les
+        // lectures multiplexées à sub_server_max_connections, seules les sessions s'y ajoutent.
+        this.handlers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "sub-server-" + port);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.segments = new SegmentStore(port, directory, this::isIdle);
+        this.scrubber = new Scrubber(port, directory, segments, this::isIdle);
+        int maxConnections = ServerConfigLoader.getSubServerMaxConnections();
+        String label = Integer.toString(port);
+        Metrics.gauge("sous_serveur_connexions_entrantes", "Connexions simples et lectures multiplexées en cours",
+                () -> maxConnections - connectionPermits.availablePermits(), "port", label);
+        Metrics.gauge("sous_serveur_octets_en_transit", "Octets réservés par les transferts en cours",
+                () -> (long) (maxInFlightKilobytes - inFlightPermits.availablePermits()) * KILOBYTE, "port", label);
+        this.corruptions = Metrics.counter("fragments_corrompus_total",
+                "Lectures refusées pour une somme de contrôle incorrecte", "port", label);
+    }
+
+    public void start() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.error("Erreur : Impossible de créer le répertoire du sous-serveur sur le port " + port);
+            return;
+        }
+        segments.open();
+
+        try (ServerSocketChannel subServerChannel = ServerSocketChannel.open()) {
+            LinkTuning.configure(subServerChannel.socket());
+            subServerChannel.bind(new InetSocketAddress(port));
+            Log.info("Sous-serveur démarré sur le port " + port + "...");
+            scrubber.start();
+
+            while (true) {
+                // Au-delà de la limite, les connexions restent dans la file d'attente du système.
+                connectionPermits.acquireUninterruptibly();
+                SocketChannel clientChannel;
+                try {
+                    clientChannel = subServerChannel.accept();
+                } catch (IOException e) {
+                    connectionPermits.release();
+                    throw e;
+                }
+                AtomicBoolean permitHeld = new AtomicBoolean(true);
+                Runnable releasePermit = () -> {
+                    if (permitHeld.compareAndSet(true, false)) {
+                        connectionPermits.release();
+                        startWaitingRetrieves();
+                    }
+                };
+                handlers.execute(() -> {
+                    try {
+                        handleConnection(clientChannel, releasePermit);
+                    } catch (IOException e) {
+                        Log.error("Erreur sur le sous-serveur " + port + " : " + e.getMessage());
+                    } finally {
+                        releasePermit.run();
+                    }
+                });
+            }
+        } finally {
+            handlers.shutdown();
+        }
+    }
+
+    private void executeRetrieve(Runnable retrieve) {
+        waitingRetrieves.add(retrieve);
+        startWaitingRetrieves();
+    }
+
+    // Appelée après chaque ajout et chaque libération : une lecture ajoutée pendant qu'une place se
+    // libère est démarrée par l'un ou l'autre.
+    private void startWaitingRetrieves() {
+        while (!waitingRetrieves.isEmpty() && connectionPermits.tryAcquire()) {
+            Runnable retrieve = waitingRetrieves.poll();
+            if (retrieve == null) {
+                connectionPermits.release();
+                continue;
+            }
+            handlers.execute(() -> {
+                try {
+                    retrieve.run();
+                } finally {
+                    connectionPermits.release();
+                    startWaitingRetrieves();
+                }
+            });
+        }
+    }
+
+    private void handleConnection(SocketChannel channel, Runnable releasePermit) throws IOException {
+        try (SocketChannel clientChannel = channel) {
+            Socket clientSocket = clientChannel.socket();
+            LinkTuning.configure(clientSocket);
+            DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
+            DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
+
+            String command = dis.readUTF();
+            if (MuxProtocol.HANDSHAKE.equals(command)) {
+                // Une connexion multiplexée reste ouverte dans le pool du serveur principal : elle
+                // rend sa place, et ce sont ses lectures en cours qui comptent dans la limite.
+                releasePermit.run();
+                new MuxSession(clientChannel, dis).run();
+            } else if ("STORE".equalsIgnoreCase(command)) {
+                String fileName = dis.readUTF();
+                long fileSize = dis.readLong();
+                int permits = acquireInFlight(fileSize);
+                // Écriture dans un fichier temporaire puis renommage : un RETRIEVE concurrent ne voit
+                // jamais un fragment à moitié écrit.
+                File temporary = temporaryFile(fileName);
+                BlockChecksums.Builder checksums = new BlockChecksums.Builder();
+                try {
+                    if (segments.accepts(fileSize)) {
+                        byte[] data = BufferPool.take((int) fileSize);
+                        try {
+                            dis.readFully(data, 0, (int) fileSize);
+                            checksums.update(ByteBuffer.wrap(data, 0, (int) fileSize));
+                            storePacked(fileName, ByteBuffer.wrap(data, 0, (int) fileSize), checksums.finish());
+                        } finally {
+                            BufferPool.give(data);
+                        }
+                    } else {
+                        TransferEngine.receive(clientChannel, dis, temporary, fileSize, checksums);
+                        commit(temporary, fileName, checksums.finish());
+                    }
+                } finally {
+                    inFlightPermits.release(permits);
+                    Files.deleteIfExists(temporary.toPath());
+                }
+                dos.writeUTF("OK");
+                Log.info("Fragment reçu et stocké : " + fileName);
+            } else if ("RETRIEVE".equalsIgnoreCase(command)) {
+                String fileName = dis.readUTF();
+                File file = new File(directory, fileName);
+                SegmentStore.Entry packed = segments.get(fileName);
+                if (packed != null) {
+                    int permits = acquireInFlight(packed.size);
+                    try {
+                        ByteBuffer data = packed.read(0, (int) packed.size, fileName);
+                        dos.writeUTF("OK");
+                        dos.writeLong(packed.size);
+                        TransferEngine.write(data, clientChannel, dos);
+                    } catch (BlockChecksums.CorruptionException e) {
+                        corruptions.increment();
+                        scrubber.suspect(fileName);
+                        throw e;
+                    } finally {
+                        inFlightPermits.release(permits);
+                    }
+                    Log.info("Fragment envoyé : " + fileName);
+                } else if (file.exists()) {
+                    int permits = acquireInFlight(file.length());
+                    try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        BlockChecksums checksums = BlockChecksums.load(file);
+                        dos.writeUTF("OK");
+                        dos.writeLong(in.size());
+                        TransferEngine.send(in, 0, in.size(), checksums, fileName, clientChannel, dos);
+                    } catch (BlockChecksums.CorruptionException e) {
+                        corruptions.increment();
+                        scrubber.suspect(fileName);
+                        throw e;
+                    } finally {
+                        inFlightPermits.release(permits);
+                    }
+                    Log.info("Fragment envoyé : " + fileName);
+                } else {
+                    dos.writeUTF("Fichier introuvable");
+                }
+            }
+        }
+    }
+
+    private File temporaryFile(String fileName) {
+        return new File(directory, fileName + ".tmp-" + temporaryIds.incrementAndGet());
+    }
+
+    // Les sommes sont mises en place avant l'objet : un objet n'est jamais visible sans elles.
+    private void commit(File temporary, String fileName, BlockChecksums checksums) throws IOException {
+        File object = new File(directory, fileName);
+        File sums = temporaryFile(fileName + BlockChecksums.SUFFIX);
+        try {
+            checksums.write(sums);
+            Files.move(sums.toPath(), BlockChecksums.sidecar(object).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(sums.toPath());
+        }
+        Files.move(temporary.toPath(), object.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        segments.delete(fileName);
+    }
+
+    // Objet rangé dans un segment : l'éventuelle version en fichier, plus ancienne, disparaît.
+    private void storePacked(String fileName, ByteBuffer data, BlockChecksums checksums) throws IOException {
+        segments.put(fileName, data, checksums);
+        File object = new File(directory, fileName);
+        if (Files.deleteIfExists(object.toPath())) {
+            Files.deleteIfExists(BlockChecksums.sidecar(object).toPath());
+        }
+    }
+
+    // Inactif : aucun octet en transit et aucun transfert commencé depuis une seconde.
+    private boolean isIdle() {
+        return inFlightPermits.availablePermits() == maxInFlightKilobytes
+                && System.nanoTime() - lastTransfer > IDLE_NANOS;
+    }
+
+    // Réserve le volume du transfert (en Ko, plafonné à la limite du nœud pour les très gros fragments).
+    private int acquireInFlight(long bytes) throws InterruptedIOException {
+        int permits = (int) Math.max(1, Math.min(maxInFlightKilobytes, (bytes + KILOBYTE - 1) / KILOBYTE));
+        lastTransfer = System.nanoTime();
+        try {
+            inFlightPermits.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfert interrompu sur le sous-serveur " + port);
+        }
+        return permits;
+    }
+
+    // Connexion multiplexée : le thread de la connexion lit les trames et écrit directement les
+    // STORE ; chaque RETRIEVE est servi par une tâche à part, au rythme des crédits accordés.
+    // Un STORE est gardé en mémoire tant qu'il tient dans un segment, et passe à un fichier
+    // temporaire au-delà.
+    private class MuxSession {
+        private final SocketChannel channel;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final Map<Integer, PendingStore> stores = new HashMap<>();
+        private final Map<Integer, PendingRetrieve> retrieves = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        MuxSession(SocketChannel channel, DataInputStream in) throws IOException {
+            this.channel = channel;
+            this.in = in;
+            this.out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream(), 64 * 1024));
+        }
+
+        void run() throws IOException {
+            byte[] scratch = new byte[MuxProtocol.HEADER_SIZE];
+            MuxProtocol.Header header = new MuxProtocol.Header();
+            try {
+                while (MuxProtocol.readHeader(in, scratch, header)) {
+                    if (header.type == MuxProtocol.STORE_DATA) {
+                        storeData(header.requestId, header.length);
+                    } else {
+                        dispatch(header.requestId, header.type, MuxProtocol.readPayload(in, header.length));
+                    }
+                }
+            } finally {
+                closed = true;
+                for (PendingRetrieve retrieve : retrieves.values()) {
+                    retrieve.credits.release(MuxProtocol.RETRIEVE_WINDOW);
+                }
+                for (PendingStore store : stores.values()) {
+                    store.discard();
+                }
+            }
+        }
+
+        private void dispatch(int requestId, byte type, byte[] payload) throws IOException {
+            DataInputStream request = new DataInputStream(new ByteArrayInputStream(payload));
+            switch (type) {
+                case MuxProtocol.STORE_OPEN:
+                    String fileName = request.readUTF();
+                    stores.put(requestId, new PendingStore(fileName));
+                    break;
+                case MuxProtocol.STORE_END:
+                    PendingStore store = stores.remove(requestId);
+                    if (store == null) {
+                        reply(requestId, MuxProtocol.ERROR, MuxProtocol.encode("STORE inconnu"));
+                        break;
+                    }
+                    try {
+                        store.commit();
+                        reply(requestId, MuxProtocol.OK, MuxProtocol.EMPTY);
+                        Log.info("Fragment reçu et stocké : " + store.fileName);
+                    } catch (IOException e) {
+                        store.discard();
+                        reply(requestId, MuxProtocol.ERROR, MuxProtocol.encode(e.getMessage()));
+                    }
+                    break;
+                case MuxProtocol.RETRIEVE:
+                    PendingRetrieve retrieve = new PendingRetrieve(requestId, request.readUTF(),
+                            request.readLong(), request.readLong(), (int) request.readLong());
+                    retrieves.put(requestId, retrieve);
+                    executeRetrieve(retrieve);
+                    break;
+                case MuxProtocol.CREDIT:
+                    PendingRetrieve target = retrieves.get(requestId);
+                    if (target != null) {
+                        target.credits.release(request.readInt());
+                    }
+                    break;
+                case MuxProtocol.ABORT:
+                    PendingStore aborted = stores.remove(requestId);
+                    if (aborted != null) {
+                        aborted.discard();
+                    }
+                    PendingRetrieve cancelled = retrieves.remove(requestId);
+                    if (cancelled != null) {
+                        cancelled.cancelled = true;
+                        cancelled.credits.release(MuxProtocol.RETRIEVE_WINDOW);
+                    }
+                    break;
+                case MuxProtocol.DELETE:
+                    String deletedName = request.readUTF();
+                    File deleted = new File(directory, deletedName);
+                    boolean removed = segments.delete(deletedName);
+                    Files.deleteIfExists(BlockChecksums.sidecar(deleted).toPath());
+                    removed |= Files.deleteIfExists(deleted.toPath());
+                    if (removed) {
+                        reply(requestId, MuxProtocol.OK, MuxProtocol.EMPTY);
+                        Log.info("Fragment supprimé : " + deletedName);
+                    } else {
+                        reply(requestId, MuxProtocol.NOT_FOUND, MuxProtocol.encode("Fichier introuvable"));
+                    }
+                    break;
+                case MuxProtocol.PING:
+                    reply(requestId, MuxProtocol.OK, MuxProtocol.EMPTY);
+                    break;
+                default:
+                    reply(requestId, MuxProtocol.ERROR, MuxProtocol.encode("Trame inconnue : " + type));
+            }
+        }
+
+        // Les données d'un STORE vont de la socket au fichier par un tampon direct, sans passer par
+        // le tas ; les sommes de contrôle y sont calculées au passage.
+        private void storeData(int requestId, int length) throws IOException {
+            PendingStore store = stores.get(requestId);
+            if (store == null) {
+                in.skipNBytes(length);
+                return;
+            }
+            int permits = acquireInFlight(length);
+            try {
+                if (store.file == null && segments.accepts(store.size + length)) {
+                    store.buffer(length);
+                } else {
+                    store.spill();
+                    TransferEngine.receive(channel, in, store.file, store.size, length, store.checksums);
+                }
+                store.size += length;
+            } finally {
+                inFlightPermits.release(permits);
+            }
+        }
+
+        private void reply(int requestId, byte type, byte[] payload) throws IOException {
+            synchronized (out) {
+                MuxProtocol.writeFrame(out, requestId, type, payload, 0, payload.length);
+                out.flush();
+            }
+        }
+
+        private class PendingStore {
+            final String fileName;
+            final BlockChecksums.Builder checksums = new BlockChecksums.Builder();
+            byte[] buffer;
+            File temporary;
+            FileChannel file;
+            long size;
+
+            PendingStore(String fileName) {
+                this.fileName = fileName;
+            }
+
+            void buffer(int length) throws IOException {
+                int needed = (int) size + length;
+                if (buffer == null || buffer.length < needed) {
+                    byte[] larger = BufferPool.take(needed);
+                    if (buffer != null) {
+                        System.arraycopy(buffer, 0, larger, 0, (int) size);
+                        BufferPool.give(buffer);
+                    }
+                    buffer = larger;
+                }
+                in.readFully(buffer, (int) size, length);
+                checksums.update(ByteBuffer.wrap(buffer, (int) size, length));
+            }
+
+            // L'objet dépasse la taille d'un segment : ce qui a été reçu part dans le fichier temporaire.
+            void spill() throws IOException {
+                if (file != null) {
+                    return;
+                }
+                temporary = temporaryFile(fileName);
+                file = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                if (buffer != null) {
+                    ByteBuffer received = ByteBuffer.wrap(buffer, 0, (int) size);
+                    while (received.hasRemaining()) {
+                        file.write(received, received.position());
+                    }
+                    BufferPool.give(buffer);
+                    buffer = null;
+                }
+            }
+
+            void commit() throws IOException {
+                if (file == null) {
+                    storePacked(fileName, ByteBuffer.wrap(buffer == null ? new byte[0] : buffer, 0, (int) size),
+                            checksums.finish());
+                    release();
+                } else {
+                    file.close();
+                    SubServer.this.commit(temporary, fileName, checksums.finish());
+                }
+            }
+
+            private void release() {
+                if (buffer != null) {
+                    BufferPool.give(buffer);
+                    buffer = null;
+                }
+            }
+
+            void discard() {
+                release();
+                if (file == null) {
+                    return;
+                }
+                try {
+                    file.close();
+                    Files.deleteIfExists(temporary.toPath());
+                } catch (IOException e) {
+                    Log.error("Erreur lors de l'abandon du fragment " + fileName + " : " + e.getMessage());
+                }
+            }
+        }
+
+        private class PendingRetrieve implements Runnable {
+            final int requestId;
+            final String fileName;
+            final long offset;
+            final long length;
+            final Semaphore credits;
+            volatile boolean cancelled;
+            private boolean midFrame;
+
+            PendingRetrieve(int requestId, String fileName, long offset, long length, int window) {
+                this.requestId = requestId;
+                this.fileName = fileName;
+                this.offset = offset;
+                this.length = length;
+                this.credits = new Semaphore(window);
+            }
+
+            @Override
+            public void run() {
+                if (cancelled || closed) {
+                    // Abandonnée ou session fermée pendant l'attente d'une place.
+                    retrieves.remove(requestId);
+                    return;
+                }
+                File object = new File(directory, fileName);
+                SegmentStore.Entry packed = segments.get(fileName);
+                try (FileChannel file = packed != null ? null : FileChannel.open(object.toPath(), StandardOpenOption.READ)) {
+                    BlockChecksums checksums = packed != null ? null : BlockChecksums.load(object);
+                    long size = packed != null ? packed.size : file.size();
+                    long start = Math.min(offset, size);
+                    long end = length < 0 ? size : Math.min(size, start + length);
+                    reply(requestId, MuxProtocol.OK, MuxProtocol.encode(null, end - start, size));
+
+                    long position = start;
+                    while (position < end && !cancelled && !closed) {
+                        credits.acquire();
+                        if (cancelled || closed) {
+                            break;
+                        }
+                        int frameLength = (int) Math.min(MuxProtocol.DATA_FRAME_SIZE, end - position);
+                        int permits = acquireInFlight(frameLength);
+                        try {
+                            // Vérifiée avant l'en-tête : un bloc corrompu donne une erreur propre et le
+                            // serveur principal passe à une autre réplique.
+                            // Un objet d'un segment part directement de la projection.
+                            ByteBuffer verified = packed != null ? packed.read(position, frameLength, fileName)
+                                    : checksums == null ? null
+                                    : TransferEngine.readVerified(file, checksums, fileName, position, frameLength);
+                            synchronized (out) {
+                                MuxProtocol.writeHeader(out, requestId, MuxProtocol.DATA, frameLength);
+                                out.flush();
+                                midFrame = true;
+                                if (verified != null) {
+                                    TransferEngine.write(verified, channel, out);
+                                } else {
+                                    TransferEngine.send(file, position, frameLength, channel, out);
+                                }
+                                midFrame = false;
+                            }
+                        } finally {
+                            inFlightPermits.release(permits);
+                        }
+                        position += frameLength;
+                    }
+                    if (!cancelled && !closed) {
+                        reply(requestId, MuxProtocol.END, MuxProtocol.EMPTY);
+                        Log.info("Fragment envoyé : " + fileName);
+                    }
+                } catch (NoSuchFileException e) {
+                    replyQuietly(MuxProtocol.NOT_FOUND, "Fichier introuvable");
+                } catch (BlockChecksums.CorruptionException e) {
+                    Log.error("Sous-serveur " + port + " : " + e.getMessage());
+                    corruptions.increment();
+                    scrubber.suspect(fileName);
+                    replyQuietly(MuxProtocol.ERROR, e.getMessage());
+                } catch (IOException e) {
+                    if (midFrame) {
+                        // Une trame à moitié écrite rend le flux illisible : on coupe la connexion.
+                        closeQuietly();
+                    } else {
+                        replyQuietly(MuxProtocol.ERROR, e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    retrieves.remove(requestId);
+                }
+            }
+
+            private void closeQuietly() {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // déjà fermée
+                }
+            }
+
+            private void replyQuietly(byte type, String message) {
+                try {
+                    reply(requestId, type, MuxProtocol.encode(String.valueOf(message)));
+                } catch (IOException e) {
+                    // la connexion est perdue, le serveur principal le constatera de son côté
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Connexion longue durée vers un sous-serveur, partagée entre plusieurs opérations grâce au
+// protocole multiplexé. Un thread lecteur répartit les trames reçues entre les échanges en cours.
+// Un sous-serveur qui ne répond plus sans couper la connexion ne bloque personne indéfiniment :
+// l'établissement est borné par pool_connect_timeout_ms, l'attente d'une trame par
+// pool_response_timeout_s, et SubServerPool vérifie aussi les connexions occupées mais muettes.
+public class SubServerConnection implements Closeable {
+    private static final int CONNECT_TIMEOUT_MILLIS = ServerConfigLoader.getPoolConnectTimeoutMillis();
+    private static final long RESPONSE_TIMEOUT_SECONDS = ServerConfigLoader.getPoolResponseTimeoutSeconds();
+
+    final ServerConfigLoader.SubServerInfo node;
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final Map<Integer, Exchange> exchanges = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile boolean closed;
+    private volatile long lastUsed = System.nanoTime();
+    private volatile long lastReceived = System.nanoTime();
+    private final Metrics.Counter bytesSent;
+    private final Metrics.Counter bytesReceived;
+    private final Metrics.Histogram latency;
+
+    public SubServerConnection(ServerConfigLoader.SubServerInfo node) throws IOException {
+        this.node = node;
+        this.bytesSent = Metrics.throughput("sous_serveur_octets_envoyes_total",
+                "Octets de fragments envoyés au sous-serveur", "noeud", node.address());
+        this.bytesReceived = Metrics.throughput("sous_serveur_octets_recus_total",
+                "Octets de fragments reçus du sous-serveur", "noeud", node.address());
+        this.latency = Metrics.histogram("sous_serveur_latence_secondes",
+                "Délai avant la première réponse du sous-serveur (RETRIEVE, PING)", "noeud", node.address());
+        // Options fixées avant connect() ; l'établissement de la connexion mesure un aller-retour.
+        this.socket = new Socket();
+        LinkTuning.configure(socket);
+        long connectStart = System.nanoTime();
+        socket.connect(new InetSocketAddress(node.host, node.port), CONNECT_TIMEOUT_MILLIS);
+        LinkTuning.recordRoundTrip(node.address(), System.nanoTime() - connectStart);
+        int bufferSize = LinkTuning.streamBufferSize();
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), bufferSize));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferSize));
+        synchronized (out) {
+            out.writeUTF(MuxProtocol.HANDSHAKE);
+            out.flush();
+        }
+        Thread reader = new Thread(this::readLoop, "mux-reader-" + node.port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int activeExchanges() {
+        return exchanges.size();
+    }
+
+    public long idleNanos() {
+        return exchanges.isEmpty() ? System.nanoTime() - lastUsed : 0;
+    }
+
+    // Temps écoulé depuis la dernière trame reçue du sous-serveur.
+    public long silenceNanos() {
+        return System.nanoTime() - lastReceived;
+    }
+
+    // Connexion remise par SubServerPool : elle ne compte plus comme inutilisée.
+    void claim() {
+        lastUsed = System.nanoTime();
+    }
+
+    public Exchange open() throws IOException {
+        if (closed) {
+            throw new IOException("Connexion fermée vers le sous-serveur " + node.port);
+        }
+        Exchange exchange = new Exchange(nextRequestId.incrementAndGet());
+        exchanges.put(exchange.id, exchange);
+        lastUsed = System.nanoTime();
+        return exchange;
+    }
+
+    // Ouvre un RETRIEVE ; la requête part immédiatement, la réponse est lue par awaitHeader().
+    public Exchange retrieve(String name, long offset, long length) throws IOException {
+        Exchange exchange = open();
+        exchange.sentAt = System.nanoTime();
+        exchange.send(MuxProtocol.RETRIEVE, MuxProtocol.encode(name, offset, length, MuxProtocol.RETRIEVE_WINDOW));
+        return exchange;
+    }
+
+    public Exchange store(String name) throws IOException {
+        Exchange exchange = open();
+        exchange.send(MuxProtocol.STORE_OPEN, MuxProtocol.encode(name));
+        return exchange;
+    }
+
+    public boolean delete(String name) throws IOException {
+        Exchange exchange = open();
+        try {
+            exchange.send(MuxProtocol.DELETE, MuxProtocol.encode(name));
+            MuxProtocol.Frame response = exchange.next();
+            if (response.type == MuxProtocol.NOT_FOUND) {
+                return false;
+            }
+            exchange.expect(response, MuxProtocol.OK);
+            return true;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public boolean ping(long timeoutMillis) {
+        // Un PING de contrôle ne doit pas repousser l'éviction d'une connexion inutilisée.
+        long idleSince = lastUsed;
+        try {
+            Exchange exchange = open();
+            try {
+                long sentAt = System.nanoTime();
+                exchange.sentAt = sentAt;
+                exchange.send(MuxProtocol.PING, MuxProtocol.EMPTY);
+                MuxProtocol.Frame response = exchange.frames.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+                if (response == null || response.type != MuxProtocol.OK) {
+                    return false;
+                }
+                LinkTuning.recordRoundTrip(node.address(), System.nanoTime() - sentAt);
+                return true;
+            } finally {
+                exchange.close();
+                lastUsed = idleSince;
+            }
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void send(int requestId, byte type, byte[] payload, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Connexion fermée vers le sous-serveur " + node.port);
+        }
+        try {
+            synchronized (out) {
+                MuxProtocol.writeFrame(out, requestId, type, payload, offset, length);
+                out.flush();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void readLoop() {
+        byte[] scratch = new byte[MuxProtocol.HEADER_SIZE];
+        MuxProtocol.Header header = new MuxProtocol.Header();
+        try {
+            while (MuxProtocol.readHeader(in, scratch, header)) {
+                byte[] payload = header.type == MuxProtocol.DATA
+                        ? MuxProtocol.readData(in, header.length)
+                        : MuxProtocol.readPayload(in, header.length);
+                lastReceived = System.nanoTime();
+                Exchange exchange = exchanges.get(header.requestId);
+                if (exchange != null) {
+                    if (exchange.sentAt != 0) {
+                        long elapsed = System.nanoTime() - exchange.sentAt;
+                        latency.record(elapsed);
+                        SubServerPool.recordLatency(node, elapsed);
+                        exchange.sentAt = 0;
+                    }
+                    exchange.frames.add(new MuxProtocol.Frame(header.requestId, header.type, payload));
+                }
+            }
+        } catch (IOException e) {
+            // La connexion est perdue : les échanges en cours sont prévenus ci-dessous.
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // déjà fermée
+        }
+        byte[] message = MuxProtocol.encode("Connexion perdue avec le sous-serveur " + node.port);
+        for (Exchange exchange : exchanges.values()) {
+            exchange.frames.add(new MuxProtocol.Frame(exchange.id, MuxProtocol.ERROR, message));
+        }
+    }
+
+    // Une opération en cours sur la connexion, identifiée par son numéro de requête.
+    public class Exchange implements Closeable, FragmentCodec.RangeReader {
+        final int id;
+        final BlockingQueue<MuxProtocol.Frame> frames = new LinkedBlockingQueue<>();
+        private boolean finished;
+        private long objectSize = -1;
+        // Instant d'envoi d'une requête dont on mesure le temps de réponse (RETRIEVE, PING).
+        volatile long sentAt;
+
+        Exchange(int id) {
+            this.id = id;
+        }
+
+        public ServerConfigLoader.SubServerInfo node() {
+            return node;
+        }
+
+        void send(byte type, byte[] payload) throws IOException {
+            SubServerConnection.this.send(id, type, payload, 0, payload.length);
+        }
+
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                int frameLength = Math.min(length, MuxProtocol.DATA_FRAME_SIZE);
+                SubServerConnection.this.send(id, MuxProtocol.STORE_DATA, data, offset, frameLength);
+                bytesSent.add(frameLength);
+                offset += frameLength;
+                length -= frameLength;
+            }
+        }
+
+        // Termine un STORE et attend que le sous-serveur confirme l'écriture.
+        public void finish() throws IOException {
+            send(MuxProtocol.STORE_END, MuxProtocol.EMPTY);
+            try {
+                expect(next(), MuxProtocol.OK);
+            } finally {
+                close();
+            }
+        }
+
+        public void abort() {
+            try {
+                if (!closed) {
+                    send(MuxProtocol.ABORT, MuxProtocol.EMPTY);
+                }
+            } catch (IOException e) {
+                // la connexion est déjà perdue
+            }
+            close();
+        }
+
+        // Taille de la plage demandée, ou -1 si le fragment n'existe pas sur ce sous-serveur.
+        public long awaitHeader() throws IOException {
+            MuxProtocol.Frame response = next();
+            if (response.type == MuxProtocol.NOT_FOUND) {
+                close();
+                return -1;
+            }
+            expect(response, MuxProtocol.OK);
+            DataInputStream header = response.payloadStream();
+            long rangeLength = header.readLong();
+            objectSize = header.readLong();
+            return rangeLength;
+        }
+
+        // Taille totale de l'objet sur le sous-serveur, connue après awaitHeader().
+        public long objectSize() {
+            return objectSize;
+        }
+
+        // Bloc suivant d'un RETRIEVE, ou null à la fin. Chaque bloc consommé rend un crédit.
+        public byte[] nextData() throws IOException {
+            if (finished) {
+                return null;
+            }
+            MuxProtocol.Frame frame = next();
+            if (frame.type == MuxProtocol.END) {
+                close();
+                return null;
+            }
+            expect(frame, MuxProtocol.DATA);
+            bytesReceived.add(frame.payload.length);
+            send(MuxProtocol.CREDIT, MuxProtocol.encodeInt(1));
+            return frame.payload;
+        }
+
+        // Sans réponse dans le délai, l'échange est abandonné sans rien envoyer (l'écriture pourrait
+        // bloquer elle aussi) ; la vérification de SubServerPool ferme la connexion si elle est morte.
+        MuxProtocol.Frame next() throws IOException {
+            try {
+                MuxProtocol.Frame frame = frames.poll(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (frame == null) {
+                    close();
+                    throw new IOException("Pas de réponse du sous-serveur " + node.port + " depuis "
+                            + RESPONSE_TIMEOUT_SECONDS + " s");
+                }
+                return frame;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort();
+                throw new InterruptedIOException("Échange interrompu avec le sous-serveur " + node.port);
+            }
+        }
+
+        void expect(MuxProtocol.Frame frame, byte type) throws IOException {
+            if (frame.type == type) {
+                return;
+            }
+            close();
+            if (frame.type == MuxProtocol.ERROR || frame.type == MuxProtocol.NOT_FOUND) {
+                throw new IOException(frame.payloadStream().readUTF());
+            }
+            throw new IOException("Réponse inattendue du sous-serveur " + node.port + " : " + frame.type);
+        }
+
+        @Override
+        public void close() {
+            finished = true;
+            exchanges.remove(id);
+            lastUsed = System.nanoTime();
+        }
+    }
+}
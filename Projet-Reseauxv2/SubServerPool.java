@@ -0,0 +1,206 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Réserve de connexions multiplexées par sous-serveur. Les connexions sont partagées : acquire()
+// renvoie la moins chargée et n'en ouvre une nouvelle que si toutes sont occupées. Une tâche de fond
+// vérifie régulièrement (PING) les connexions inactives et celles dont le sous-serveur n'a rien
+// envoyé depuis un intervalle, et ferme celles restées inutilisées trop longtemps.
+public class SubServerPool {
+    private static final int MIN_OVERLOAD = 4;
+    private static final ConcurrentHashMap<String, NodePool> POOLS = new ConcurrentHashMap<>();
+    private static final long HEALTH_INTERVAL_NANOS =
+            TimeUnit.SECONDS.toNanos(ServerConfigLoader.getPoolHealthIntervalSeconds());
+    private static final int PING_TIMEOUT_MILLIS = ServerConfigLoader.getPoolPingTimeoutMillis();
+    // Le PING d'une connexion occupée part d'un thread à part : si l'envoi lui-même reste bloqué
+    // sur une socket pleine, la vérification abandonne au bout du délai et ferme la connexion.
+    private static final ExecutorService PINGERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "sub-server-ping");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ScheduledExecutorService MAINTENANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sub-server-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        long interval = ServerConfigLoader.getPoolHealthIntervalSeconds();
+        MAINTENANCE.scheduleWithFixedDelay(SubServerPool::maintain, interval, interval, TimeUnit.SECONDS);
+    }
+
+    public static SubServerConnection acquire(ServerConfigLoader.SubServerInfo node) throws IOException {
+        return POOLS.computeIfAbsent(node.address(), k -> new NodePool(node)).acquire();
+    }
+
+    public static boolean isHealthy(ServerConfigLoader.SubServerInfo node) {
+        NodePool pool = POOLS.get(node.address());
+        return pool == null || pool.healthy;
+    }
+
+    // Surchargé : plus d'opérations en cours que placement_load_factor fois la moyenne des
+    // sous-serveurs, et au moins MIN_OVERLOAD ; un nœud peu sollicité ne l'est jamais.
+    public static boolean isOverloaded(ServerConfigLoader.SubServerInfo node) {
+        int factor = ServerConfigLoader.getPlacementLoadFactor();
+        NodePool pool = POOLS.get(node.address());
+        if (factor <= 0 || pool == null) {
+            return false;
+        }
+        long load = pool.load();
+        if (load < MIN_OVERLOAD) {
+            return false;
+        }
+        long total = 0;
+        for (NodePool other : POOLS.values()) {
+            total += other.load();
+        }
+        return load * POOLS.size() > factor * total;
+    }
+
+    // Moyenne glissante du temps de réponse (RETRIEVE, PING) mesuré par les connexions.
+    static void recordLatency(ServerConfigLoader.SubServerInfo node, long nanos) {
+        NodePool pool = POOLS.get(node.address());
+        if (pool != null) {
+            long previous = pool.latencyNanos;
+            pool.latencyNanos = previous == 0 ? nanos : previous + (nanos - previous) / 8;
+        }
+    }
+
+    // Répliques dans l'ordre où les lire : les sous-serveurs joignables d'abord, du plus rapide au
+    // plus lent ; un nœud jamais mesuré passe avant les autres pour être évalué.
+    public static List<ServerConfigLoader.SubServerInfo> rankReplicas(List<ServerConfigLoader.SubServerInfo> nodes) {
+        List<ServerConfigLoader.SubServerInfo> ranked = new ArrayList<>(nodes);
+        ranked.sort(Comparator.comparing((ServerConfigLoader.SubServerInfo node) -> !isHealthy(node))
+                .thenComparingLong(SubServerPool::latencyNanos));
+        return ranked;
+    }
+
+    private static long latencyNanos(ServerConfigLoader.SubServerInfo node) {
+        NodePool pool = POOLS.get(node.address());
+        return pool == null ? 0 : pool.latencyNanos;
+    }
+
+    private static void maintain() {
+        for (NodePool pool : POOLS.values()) {
+            pool.maintain();
+        }
+    }
+
+    private static class NodePool {
+        private final ServerConfigLoader.SubServerInfo node;
+        private final List<SubServerConnection> connections = new CopyOnWriteArrayList<>();
+        private final int maxConnections = ServerConfigLoader.getPoolMaxConnectionsPerNode();
+        private final long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(ServerConfigLoader.getPoolIdleTimeoutSeconds());
+        private int connecting;
+        volatile boolean healthy = true;
+        volatile long latencyNanos;
+
+        NodePool(ServerConfigLoader.SubServerInfo node) {
+            this.node = node;
+            Metrics.gauge("sous_serveur_connexions", "Connexions multiplexées ouvertes vers le sous-serveur",
+                    connections::size, "noeud", node.address());
+            Metrics.gauge("sous_serveur_echanges_en_cours", "Opérations en cours vers le sous-serveur",
+                    this::load, "noeud", node.address());
+            Metrics.gauge("sous_serveur_disponible", "1 si le sous-serveur répond", () -> healthy ? 1 : 0,
+                    "noeud", node.address());
+        }
+
+        long load() {
+            long load = 0;
+            for (SubServerConnection connection : connections) {
+                load += connection.activeExchanges();
+            }
+            return load;
+        }
+
+        // La connexion s'ouvre hors du verrou : un sous-serveur lent à répondre ne retarde pas les
+        // opérations qui peuvent partager une connexion existante. connecting compte les ouvertures
+        // en cours dans la limite de maxConnections.
+        SubServerConnection acquire() throws IOException {
+            SubServerConnection best;
+            synchronized (this) {
+                connections.removeIf(SubServerConnection::isClosed);
+                best = null;
+                for (SubServerConnection connection : connections) {
+                    if (best == null || connection.activeExchanges() < best.activeExchanges()) {
+                        best = connection;
+                    }
+                }
+                if (best != null
+                        && (best.activeExchanges() == 0 || connections.size() + connecting >= maxConnections)) {
+                    best.claim();
+                    return best;
+                }
+                connecting++;
+            }
+            SubServerConnection connection;
+            try {
+                connection = new SubServerConnection(node);
+            } catch (IOException e) {
+                healthy = false;
+                synchronized (this) {
+                    connecting--;
+                    if (best != null) {
+                        best.claim();
+                        return best;
+                    }
+                }
+                throw e;
+            }
+            synchronized (this) {
+                connecting--;
+                connections.add(connection);
+            }
+            healthy = true;
+            return connection;
+        }
+
+        void maintain() {
+            if (!healthy && connections.isEmpty()) {
+                // Sous-serveur tombé : on retente une connexion pour le remettre en service à son retour.
+                try {
+                    acquire();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+            // Sous le verrou d'acquire() : une connexion qu'il vient de remettre n'est pas fermée.
+            synchronized (this) {
+                for (SubServerConnection connection : connections) {
+                    if (connection.isClosed()) {
+                        connections.remove(connection);
+                    } else if (connection.idleNanos() > idleTimeoutNanos) {
+                        connections.remove(connection);
+                        connection.close();
+                    }
+                }
+            }
+            // Les PING, eux, se font hors du verrou pour ne pas retarder les opérations.
+            for (SubServerConnection connection : connections) {
+                if (connection.activeExchanges() > 0 && connection.silenceNanos() < HEALTH_INTERVAL_NANOS) {
+                    continue;
+                }
+                if (ping(connection)) {
+                    healthy = true;
+                } else {
+                    connections.remove(connection);
+                    connection.close();
+                    healthy = false;
+                }
+            }
+        }
+
+        private static boolean ping(SubServerConnection connection) {
+            Future<Boolean> ping = PINGERS.submit(() -> connection.ping(PING_TIMEOUT_MILLIS));
+            try {
+                return ping.get(2L * PING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+// Compare la copie par flux (tableau de CHUNK_SIZE octets) et TransferEngine sur une socket locale,
+// dans les deux sens (RETRIEVE : fichier -> socket, STORE : socket -> fichier, sommes de contrôle
+// comprises comme sur un sous-serveur).
+// Usage : java TransferBenchmark [tailles en Mo, séparées par des virgules]
+public class TransferBenchmark {
+    private static final int CHUNK_SIZE = ServerConfigLoader.getChunkSize();
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String sizes = args.length > 0 ? args[0] : "1,16,256";
+        Path directory = Files.createTempDirectory("transfer-bench");
+
+        System.out.printf("%8s %12s %14s %12s %14s%n", "Mo", "envoi flux", "envoi moteur", "récep. flux", "récep. moteur");
+        for (String size : sizes.split(",")) {
+            long bytes = Long.parseLong(size.trim()) * 1024 * 1024;
+            File source = directory.resolve("source-" + size).toFile();
+            File target = directory.resolve("target-" + size).toFile();
+            writeRandomFile(source, bytes);
+
+            double sendStream = measure(bytes, () -> sendRound(source, false));
+            double sendEngine = measure(bytes, () -> sendRound(source, true));
+            double receiveStream = measure(bytes, () -> receiveRound(target, bytes, false));
+            double receiveEngine = measure(bytes, () -> receiveRound(target, bytes, true));
+            System.out.printf("%8s %9.1f Mo/s %11.1f Mo/s %9.1f Mo/s %11.1f Mo/s%n",
+                    size.trim(), sendStream, sendEngine, receiveStream, receiveEngine);
+
+            Files.deleteIfExists(source.toPath());
+            Files.deleteIfExists(target.toPath());
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    private interface Round {
+        void run() throws Exception;
+    }
+
+    private static double measure(long bytes, Round round) throws Exception {
+        round.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            round.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (bytes / (1024.0 * 1024.0)) / (best / 1e9);
+    }
+
+    // Fichier -> socket ; un thread jette les octets à l'autre bout.
+    private static void sendRound(File source, boolean engine) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            Thread sink = new Thread(() -> discard(server));
+            sink.start();
+            try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                OutputStream out = channel.socket().getOutputStream();
+                if (engine) {
+                    TransferEngine.send(channel, out, source);
+                } else {
+                    try (FileInputStream fis = new FileInputStream(source)) {
+                        byte[] buffer = new byte[CHUNK_SIZE];
+                        int bytesRead;
+                        while ((bytesRead = fis.read(buffer)) != -1) {
+                            out.write(buffer, 0, bytesRead);
+                        }
+                    }
+                }
+            }
+            sink.join();
+        }
+    }
+
+    // Socket -> fichier ; un thread produit les octets à l'autre bout.
+    private static void receiveRound(File target, long bytes, boolean engine) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            Thread producer = new Thread(() -> produce(server, bytes));
+            producer.start();
+            try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                InputStream in = channel.socket().getInputStream();
+                if (engine) {
+                    TransferEngine.receive(channel, in, target, bytes, new BlockChecksums.Builder());
+                } else {
+                    try (FileOutputStream fos = new FileOutputStream(target)) {
+                        byte[] buffer = new byte[CHUNK_SIZE];
+                        long totalRead = 0;
+                        while (totalRead < bytes) {
+                            int bytesRead = in.read(buffer, 0, (int) Math.min(CHUNK_SIZE, bytes - totalRead));
+                            fos.write(buffer, 0, bytesRead);
+                            totalRead += bytesRead;
+                        }
+                    }
+                }
+            }
+            producer.join();
+        }
+    }
+
+    private static void discard(ServerSocketChannel server) {
+        try (SocketChannel channel = server.accept()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            // fin du tour
+        }
+    }
+
+    private static void produce(ServerSocketChannel server, long bytes) {
+        try (SocketChannel channel = server.accept()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            long remaining = bytes;
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                remaining -= channel.write(buffer);
+            }
+        } catch (IOException e) {
+            // fin du tour
+        }
+    }
+
+    private static void writeRandomFile(File file, long bytes) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new java.util.Random(42).nextBytes(block);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (long written = 0; written < bytes; written += block.length) {
+                fos.write(block, 0, (int) Math.min(block.length, bytes - written));
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+
+// Transferts fichier <-> socket des sous-serveurs, par un grand ByteBuffer direct plutôt que par un
+// petit tableau sur le tas. Les sommes de contrôle par bloc y sont calculées à la réception et
+// vérifiées à l'envoi, sans seconde lecture du fichier : chaque octet passe de toute façon par ce
+// tampon, transferFrom/transferTo n'épargneraient plus de copie (transferFrom depuis une socket
+// copie d'ailleurs par de petits tampons intermédiaires). Seul un objet encore sans sommes (écrit
+// avant leur introduction, en attente du vérificateur) part par transferTo.
+public class TransferEngine {
+    private static final int DIRECT_BUFFER_SIZE = 256 * 1024;
+    private static final long MAX_TRANSFER = 8L * 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE));
+    // Une lecture vérifiée déborde d'au plus un bloc de chaque côté de la plage demandée.
+    private static final ThreadLocal<ByteBuffer> VERIFY_BUFFER = ThreadLocal.withInitial(() ->
+            ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE + 2 * BlockChecksums.BLOCK_SIZE));
+
+    public static void receive(SocketChannel source, InputStream fallback, File file, long fileSize,
+                               BlockChecksums.Builder checksums) throws IOException {
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            receive(source, fallback, out, 0, fileSize, checksums);
+        }
+    }
+
+    // Écrit exactement length octets de la socket dans le fichier, à partir de position, en
+    // alimentant checksums.
+    public static void receive(SocketChannel source, InputStream fallback, FileChannel out, long position, long length,
+                               BlockChecksums.Builder checksums) throws IOException {
+        ReadableByteChannel in = source != null ? source : Channels.newChannel(fallback);
+        long end = position + length;
+        while (position < end) {
+            position += copyThroughBuffer(in, out, position, end - position, checksums);
+        }
+    }
+
+    public static void send(SocketChannel target, OutputStream fallback, File file) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            send(in, 0, in.size(), target, fallback);
+        }
+    }
+
+    // Envoie exactement length octets du fichier à partir de position.
+    public static void send(FileChannel in, long position, long length, SocketChannel target, OutputStream fallback)
+            throws IOException {
+        long end = position + length;
+        if (target != null) {
+            while (position < end) {
+                long transferred = in.transferTo(position, Math.min(MAX_TRANSFER, end - position), target);
+                if (transferred == 0 && position >= in.size()) {
+                    throw new EOFException("Fragment tronqué pendant l'envoi");
+                }
+                position += transferred;
+            }
+        } else {
+            WritableByteChannel out = Channels.newChannel(fallback);
+            ByteBuffer buffer = DIRECT_BUFFER.get();
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int bytesRead = in.read(buffer, position);
+                if (bytesRead < 0) {
+                    throw new EOFException("Fragment tronqué pendant l'envoi");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                position += bytesRead;
+            }
+            fallback.flush();
+        }
+    }
+
+    // Envoi vérifié : chaque tranche est relue par blocs entiers et contrôlée avant d'être écrite.
+    // Sans sommes (objet ancien), rien à vérifier : envoi direct par transferTo.
+    public static void send(FileChannel in, long position, long length, BlockChecksums checksums, String name,
+                            SocketChannel target, OutputStream fallback) throws IOException {
+        if (checksums == null) {
+            send(in, position, length, target, fallback);
+            return;
+        }
+        long end = position + length;
+        while (position < end) {
+            int sliceLength = (int) Math.min(DIRECT_BUFFER_SIZE, end - position);
+            write(readVerified(in, checksums, name, position, sliceLength), target, fallback);
+            position += sliceLength;
+        }
+    }
+
+    // Tampon du thread limité à [position, position + length), après vérification des blocs qui
+    // couvrent cette plage ; length ne dépasse pas DIRECT_BUFFER_SIZE.
+    public static ByteBuffer readVerified(FileChannel in, BlockChecksums checksums, String name, long position,
+                                          int length) throws IOException {
+        ByteBuffer buffer = VERIFY_BUFFER.get();
+        checksums.read(in, position, position + length, buffer, name);
+        return buffer;
+    }
+
+    public static void write(ByteBuffer data, SocketChannel target, OutputStream fallback) throws IOException {
+        WritableByteChannel out = target != null ? target : Channels.newChannel(fallback);
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+        if (target == null) {
+            fallback.flush();
+        }
+    }
+
+    private static long copyThroughBuffer(ReadableByteChannel in, FileChannel out, long position, long remaining,
+                                          BlockChecksums.Builder checksums) throws IOException {
+        ByteBuffer buffer = DIRECT_BUFFER.get();
+        buffer.clear();
+        if (remaining < buffer.capacity()) {
+            buffer.limit((int) remaining);
+        }
+        int bytesRead = in.read(buffer);
+        if (bytesRead < 0) {
+            throw new EOFException("Flux interrompu avant la fin du fragment");
+        }
+        buffer.flip();
+        checksums.update(buffer);
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+        return bytesRead;
+    }
+}
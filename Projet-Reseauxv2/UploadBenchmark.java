@@ -0,0 +1,152 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+// Mesure du débit agrégé de FragmentUploader avec 3, 6 et 12 sous-serveurs locaux.
+// Usage : java UploadBenchmark [taille en Mo] [débit max par sous-serveur en Mo/s, 0 = illimité]
+public class UploadBenchmark {
+    private static final int[] SUB_SERVER_COUNTS = {3, 6, 12};
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        long fileSize = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+        long throttle = (args.length > 1 ? Long.parseLong(args[1]) : 0) * 1024 * 1024;
+
+        System.out.println("Taille du fichier : " + (fileSize >> 20) + " Mo, débit par sous-serveur : "
+                + (throttle == 0 ? "illimité" : (throttle >> 20) + " Mo/s"));
+
+        for (int count : SUB_SERVER_COUNTS) {
+            List<ServerSocket> sinks = new ArrayList<>();
+            List<ServerConfigLoader.SubServerInfo> subServers = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                ServerSocket sink = startSink(throttle);
+                sinks.add(sink);
+                subServers.add(new ServerConfigLoader.SubServerInfo("127.0.0.1", sink.getLocalPort()));
+            }
+
+            // Un tour d'échauffement pour le JIT, puis les tours mesurés.
+            upload(fileSize, subServers);
+            double best = 0;
+            double total = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                double mbPerSecond = upload(fileSize, subServers);
+                best = Math.max(best, mbPerSecond);
+                total += mbPerSecond;
+            }
+            System.out.printf("%2d sous-serveurs : %8.1f Mo/s en moyenne, %8.1f Mo/s au mieux%n",
+                    count, total / ROUNDS, best);
+
+            for (ServerSocket sink : sinks) {
+                sink.close();
+            }
+        }
+    }
+
+    private static double upload(long fileSize, List<ServerConfigLoader.SubServerInfo> subServers) throws IOException {
+        DataInputStream source = new DataInputStream(new SyntheticInputStream(fileSize));
+        long start = System.nanoTime();
+        FragmentUploader.distribute(source, "bench.bin", fileSize, subServers);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return (fileSize / (1024.0 * 1024.0)) / seconds;
+    }
+
+    // Sous-serveur factice parlant le protocole multiplexé : jette les données des STORE, avec un
+    // débit éventuellement limité, puis acquitte comme un vrai sous-serveur.
+    private static ServerSocket startSink(long bytesPerSecond) throws IOException {
+        ServerSocket sink = new ServerSocket(0);
+        // Un seul débit pour toutes les connexions du sous-serveur, comme un lien réel.
+        Throttle throttle = bytesPerSecond > 0 ? new Throttle(bytesPerSecond) : null;
+        Thread acceptor = new Thread(() -> {
+            while (!sink.isClosed()) {
+                try {
+                    Socket socket = sink.accept();
+                    Thread handler = new Thread(() -> drain(socket, throttle));
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return sink;
+    }
+
+    private static void drain(Socket socket, Throttle throttle) {
+        try (Socket s = socket;
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream dos = new DataOutputStream(s.getOutputStream())) {
+            dis.readUTF();
+            byte[] scratch = new byte[MuxProtocol.HEADER_SIZE];
+            MuxProtocol.Header header = new MuxProtocol.Header();
+            while (MuxProtocol.readHeader(dis, scratch, header)) {
+                dis.skipNBytes(header.length);
+                if (header.type == MuxProtocol.STORE_END || header.type == MuxProtocol.PING) {
+                    synchronized (dos) {
+                        MuxProtocol.writeHeader(dos, header.requestId, MuxProtocol.OK, 0);
+                        dos.flush();
+                    }
+                } else if (header.type == MuxProtocol.STORE_DATA && throttle != null) {
+                    throttle.consume(header.length);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // fin de connexion côté banc d'essai
+        }
+    }
+
+    // Seau à jetons : un sous-serveur resté inactif ne peut prendre d'avance que BURST_MILLIS de
+    // transfert, au lieu de tout le temps écoulé depuis l'ouverture de la connexion.
+    private static class Throttle {
+        private static final long BURST_MILLIS = 10;
+        private final long bytesPerSecond;
+        private final long burst;
+        private long available;
+        private long last = System.nanoTime();
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.burst = bytesPerSecond * BURST_MILLIS / 1000;
+        }
+
+        synchronized void consume(long bytes) throws InterruptedException {
+            long now = System.nanoTime();
+            available = Math.min(burst, available + (now - last) * bytesPerSecond / 1_000_000_000L);
+            last = now;
+            available -= bytes;
+            if (available < 0) {
+                long sleepNanos = -available * 1_000_000_000L / bytesPerSecond;
+                Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+            }
+        }
+    }
+
+    // Flux de taille fixe dont le contenu n'a pas d'importance pour la mesure.
+    private static class SyntheticInputStream extends InputStream {
+        private long remaining;
+
+        SyntheticInputStream(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return (int) (remaining & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, remaining);
+            remaining -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// Coût des sommes de contrôle par bloc sur 1 Mo : CRC32C brut (référence), calcul par blocs de
+// 64 Ko pendant une réception, et relecture vérifiée d'un objet en cache disque, tranche par tranche
+// comme le fait un RETRIEVE.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+    private static final int SIZE = 1024 * 1024;
+    private static final int SLICE = 256 * 1024;
+
+    private ByteBuffer data;
+    private Path file;
+    private FileChannel channel;
+    private Object checksums;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        byte[] content = new byte[SIZE];
+        new Random(42).nextBytes(content);
+        data = ByteBuffer.allocateDirect(SIZE);
+        data.put(content).flip();
+        file = Files.createTempFile("checksum-bench", ".part0");
+        Files.write(file, content);
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        Object builder = Project.NEW_BUILDER.invoke();
+        Project.UPDATE.invoke(builder, data);
+        checksums = Project.FINISH.invoke(builder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long crc32c() {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public Object blockChecksums() throws Throwable {
+        Object builder = Project.NEW_BUILDER.invoke();
+        Project.UPDATE.invoke(builder, data);
+        return Project.FINISH.invoke(builder);
+    }
+
+    @Benchmark
+    public int verifiedRead() throws Throwable {
+        int total = 0;
+        for (long position = 0; position < SIZE; position += SLICE) {
+            ByteBuffer slice = (ByteBuffer) Project.READ_VERIFIED.invoke(channel, checksums, "objet", position, SLICE);
+            total += slice.remaining();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,142 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Boucles de copie fichier <-> socket des sous-serveurs, sur une connexion locale persistante :
+// la boucle historique par flux et tableau de 1 Ko (receiveFile / sendFile / sendFileInChunks),
+// TransferEngine seul (envoi par transferTo d'un objet sans sommes), puis TransferEngine avec les
+// sommes de contrôle par bloc (calculées à la réception, toujours ; vérifiées à l'envoi). Une
+// opération = un fragment de sizeMb Mo.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyLoopBenchmark {
+    private static final int HISTORIC_CHUNK_SIZE = 1024;
+
+    @Param({"1", "16"})
+    public int sizeMb;
+
+    private long size;
+    private Path directory;
+    private File source;
+    private File target;
+    private Object checksums;
+
+    private ServerSocketChannel server;
+    private SocketChannel sendChannel;
+    private OutputStream sendStream;
+    private SocketChannel receiveChannel;
+    private InputStream receiveStream;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        size = sizeMb * 1024L * 1024L;
+        directory = Files.createTempDirectory("copy-bench");
+        source = directory.resolve("source").toFile();
+        target = directory.resolve("target").toFile();
+        byte[] content = new byte[(int) size];
+        new Random(42).nextBytes(content);
+        Files.write(source.toPath(), content);
+        Object builder = Project.NEW_BUILDER.invoke();
+        Project.UPDATE.invoke(builder, ByteBuffer.wrap(content));
+        checksums = Project.FINISH.invoke(builder);
+
+        server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        // Un puits qui jette tout ce qu'on lui envoie, et une source qui produit sans fin.
+        sendChannel = SocketChannel.open(server.getLocalAddress());
+        startDaemon(server.accept(), false);
+        sendStream = sendChannel.socket().getOutputStream();
+        receiveChannel = SocketChannel.open(server.getLocalAddress());
+        startDaemon(server.accept(), true);
+        receiveStream = receiveChannel.socket().getInputStream();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sendChannel.close();
+        receiveChannel.close();
+        server.close();
+        Files.deleteIfExists(source.toPath());
+        Files.deleteIfExists(target.toPath());
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public void sendHistoricStream() throws IOException {
+        try (FileInputStream fis = new FileInputStream(source)) {
+            byte[] buffer = new byte[HISTORIC_CHUNK_SIZE];
+            int bytesRead;
+            while ((bytesRead = fis.read(buffer)) != -1) {
+                sendStream.write(buffer, 0, bytesRead);
+            }
+        }
+    }
+
+    @Benchmark
+    public void sendEngine() throws Throwable {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            Project.SEND.invoke(in, 0L, size, sendChannel, sendStream);
+        }
+    }
+
+    @Benchmark
+    public void sendEngineVerified() throws Throwable {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            Project.SEND_VERIFIED.invoke(in, 0L, size, checksums, "source", sendChannel, sendStream);
+        }
+    }
+
+    @Benchmark
+    public void receiveHistoricStream() throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(target)) {
+            byte[] buffer = new byte[HISTORIC_CHUNK_SIZE];
+            long totalRead = 0;
+            while (totalRead < size) {
+                int bytesRead = receiveStream.read(buffer, 0, (int) Math.min(HISTORIC_CHUNK_SIZE, size - totalRead));
+                fos.write(buffer, 0, bytesRead);
+                totalRead += bytesRead;
+            }
+        }
+    }
+
+    @Benchmark
+    public Object receiveEngineWithChecksums() throws Throwable {
+        Object builder = Project.NEW_BUILDER.invoke();
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Project.RECEIVE.invoke(receiveChannel, receiveStream, out, 0L, size, builder);
+        }
+        return Project.FINISH.invoke(builder);
+    }
+
+    private static void startDaemon(SocketChannel channel, boolean produce) {
+        Thread thread = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            try (SocketChannel peer = channel) {
+                while (true) {
+                    buffer.clear();
+                    if (produce) {
+                        peer.write(buffer);
+                    } else if (peer.read(buffer) < 0) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // fin du banc
+            }
+        }, produce ? "bench-source" : "bench-sink");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+// Accès aux classes du projet, qui sont dans le paquetage par défaut : un paquetage nommé ne peut
+// pas les importer. Les MethodHandle sont des constantes, que le JIT traite comme des appels directs.
+final class Project {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    static final Class<?> BLOCK_CHECKSUMS = type("BlockChecksums");
+    static final Class<?> CHECKSUM_BUILDER = type("BlockChecksums$Builder");
+
+    // TransferEngine.send(FileChannel, position, length, SocketChannel, OutputStream)
+    static final MethodHandle SEND = staticMethod("TransferEngine", "send", void.class,
+            FileChannel.class, long.class, long.class, SocketChannel.class, OutputStream.class);
+    // TransferEngine.send(FileChannel, position, length, BlockChecksums, nom, SocketChannel, OutputStream)
+    static final MethodHandle SEND_VERIFIED = staticMethod("TransferEngine", "send", void.class,
+            FileChannel.class, long.class, long.class, BLOCK_CHECKSUMS, String.class, SocketChannel.class,
+            OutputStream.class);
+    // TransferEngine.receive(SocketChannel, InputStream, FileChannel, position, length, Builder)
+    static final MethodHandle RECEIVE = staticMethod("TransferEngine", "receive", void.class,
+            SocketChannel.class, InputStream.class, FileChannel.class, long.class, long.class, CHECKSUM_BUILDER);
+    // TransferEngine.readVerified(FileChannel, BlockChecksums, nom, position, length)
+    static final MethodHandle READ_VERIFIED = staticMethod("TransferEngine", "readVerified", ByteBuffer.class,
+            FileChannel.class, BLOCK_CHECKSUMS, String.class, long.class, int.class);
+
+    static final MethodHandle NEW_BUILDER = constructor(CHECKSUM_BUILDER);
+    static final MethodHandle UPDATE = virtualMethod(CHECKSUM_BUILDER, "update", void.class, ByteBuffer.class);
+    static final MethodHandle FINISH = virtualMethod(CHECKSUM_BUILDER, "finish", BLOCK_CHECKSUMS);
+
+    private Project() {
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Classe du projet introuvable : " + name, e);
+        }
+    }
+
+    private static MethodHandle staticMethod(String owner, String name, Class<?> result, Class<?>... parameters) {
+        try {
+            return LOOKUP.findStatic(type(owner), name, MethodType.methodType(result, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Méthode du projet introuvable : " + owner + "." + name, e);
+        }
+    }
+
+    private static MethodHandle virtualMethod(Class<?> owner, String name, Class<?> result, Class<?>... parameters) {
+        try {
+            return LOOKUP.findVirtual(owner, name, MethodType.methodType(result, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Méthode du projet introuvable : " + owner.getName() + "." + name, e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner) {
+        try {
+            return LOOKUP.findConstructor(owner, MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Constructeur du projet introuvable : " + owner.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+// Lectures de plages d'objets compressés sur un vrai sous-serveur (port libre, répertoire de travail
+// des tests). Les blocs envoyés à l'encodeur ont la taille du tampon de la liaison, pas celle d'une
+// trame : la plage lue doit pourtant être exactement celle demandée.
+class FragmentCodecTest {
+    private static ServerConfigLoader.SubServerInfo node;
+
+    @BeforeAll
+    static void startSubServer() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Thread server = new Thread(() -> {
+            try {
+                new SubServer(port).start();
+            } catch (IOException e) {
+                // le test échouera à la connexion
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                break;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        node = new ServerConfigLoader.SubServerInfo("127.0.0.1", port);
+    }
+
+    @Test
+    void rangeReadsOfObjectWrittenInSmallBlocks() throws Exception {
+        byte[] raw = compressibleData(300_123);
+        for (int blockSize : new int[] {32 * 1024, 20_000, 100_000}) {
+            String object = "codec-" + blockSize;
+            byte[] stored = store(object, raw, blockSize);
+            assertArrayEquals(raw, FragmentCodec.decodeFrames(stored, raw.length));
+
+            long[][] ranges = {
+                    {0, 100}, {40_000, 10_000}, {FragmentCodec.FRAME_SIZE - 5, 10}, {FragmentCodec.FRAME_SIZE + 7, 70_000},
+                    {150_001, 1}, {200_000, 100_123}, {raw.length - 100, 100}, {0, raw.length}
+            };
+            for (long[] range : ranges) {
+                byte[] read = readRange(object, range[0], range[1]);
+                assertArrayEquals(Arrays.copyOfRange(raw, (int) range[0], (int) (range[0] + range[1])), read,
+                        "blocs de " + blockSize + ", plage " + range[0] + "+" + range[1]);
+            }
+        }
+    }
+
+    private static byte[] store(String object, byte[] raw, int blockSize) throws IOException {
+        FragmentCodec.Encoder encoder = new FragmentCodec.Encoder(true);
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        for (int offset = 0; offset < raw.length; offset += blockSize) {
+            stored.writeBytes(encoder.encode(raw, offset, Math.min(blockSize, raw.length - offset)));
+        }
+        stored.writeBytes(encoder.finish());
+        assertEquals(FragmentCodec.DEFLATE, encoder.codec());
+
+        byte[] bytes = stored.toByteArray();
+        SubServerConnection.Exchange store = SubServerPool.acquire(node).store(object);
+        store.write(bytes, 0, bytes.length);
+        store.finish();
+        return bytes;
+    }
+
+    private static byte[] readRange(String object, long offset, long length) throws IOException {
+        FragmentCodec.RangeReader reader = FragmentCodec.retrieve(SubServerPool.acquire(node), object,
+                FragmentCodec.DEFLATE, offset, length);
+        assertEquals(length, reader.awaitHeader());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] block;
+        while ((block = reader.nextData()) != null) {
+            out.writeBytes(block);
+        }
+        return out.toByteArray();
+    }
+
+    // Du texte répétitif avec des nombres aléatoires : Deflate le réduit sans le rendre trivial.
+    private static byte[] compressibleData(int size) {
+        Random random = new Random(13);
+        StringBuilder text = new StringBuilder(size + 32);
+        while (text.length() < size) {
+            text.append("ligne ").append(random.nextInt(100_000)).append(" du fragment\n");
+        }
+        return text.substring(0, size).getBytes();
+    }
+}